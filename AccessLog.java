@@ -0,0 +1,244 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.*;
+
+// Asynchronous access log. Request threads drop a record into a lock-free ring buffer and return immediately;
+// one background thread formats the records in batches and appends them through a single open channel.
+// If the buffer is full the record is dropped and counted rather than making the request wait for the disk.
+//
+// Each line has the form: time remote-address method path status bytes latency-ms
+public class AccessLog {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(AccessLog.class.getCanonicalName());
+    // Timestamp format for log lines
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ISO_INSTANT;
+    // Suffix format for rotated log files
+    private static final DateTimeFormatter ROTATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+    // Largest batch formatted in one write
+    private static final int MAX_BATCH = 1024;
+
+    // When the writer forces data to disk
+    public enum FsyncPolicy { NEVER, BATCH }
+
+    // One completed request, formatted later on the writer thread
+    private static final class Record {
+        final long timeMillis;
+        final String remote;
+        final String method;
+        final String path;
+        final int status;
+        final long bytes;
+        final long latencyNanos;
+
+        Record(long timeMillis, String remote, String method, String path, int status, long bytes, long latencyNanos) {
+            this.timeMillis = timeMillis;
+            this.remote = remote;
+            this.method = method;
+            this.path = path;
+            this.status = status;
+            this.bytes = bytes;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    private final Path file;
+    private final long flushMillis;
+    private final FsyncPolicy fsyncPolicy;
+    private final long rotateBytes;
+    private final long rotateMillis;
+
+    // Bounded multi-producer, single-consumer ring. Each slot has a sequence number: a producer may fill slot i
+    // for position p when its sequence equals p, and the consumer may take it when the sequence equals p + 1.
+    private final Record[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only touched by the writer thread
+    private long head;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    private volatile boolean running;
+    private Thread writer;
+    private FileChannel channel;
+    private long fileBytes;
+    private long openedAt;
+
+    // Constructor sets up a log that appends to the given file; capacity is rounded up to a power of two
+    public AccessLog(Path file, int capacity, long flushMillis, FsyncPolicy fsyncPolicy, long rotateBytes, long rotateMillis) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.file = file;
+        this.flushMillis = flushMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        this.rotateBytes = rotateBytes;
+        this.rotateMillis = rotateMillis;
+        this.slots = new Record[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // Opens the log file and starts the background writer
+    public void start() throws IOException {
+        open();
+        running = true;
+        writer = new Thread(this::writeLoop, "jhttp-access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Records a completed request; never blocks, and drops the record if the buffer is full
+    public void log(String remote, String method, String path, int status, long bytes, long latencyNanos) {
+        Record record = new Record(System.currentTimeMillis(), remote, method, path, status, bytes, latencyNanos);
+        long position;
+        while (true) {
+            position = tail.get();
+            long sequence = sequences.get((int) position & mask);
+            if (sequence < position) {
+                // The writer has not yet taken the record from the previous lap
+                dropped.increment();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+        int index = (int) position & mask;
+        slots[index] = record;
+        sequences.set(index, position + 1);
+    }
+
+    // Stops the writer after it has written everything already recorded
+    public void close() {
+        running = false;
+        if (writer == null) return;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The file currently being written; rotated files are moved aside under a timestamped name
+    public Path getFile() {
+        return file;
+    }
+
+    // Number of records dropped because the buffer was full
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Number of records written to the file
+    public long getWritten() {
+        return written.sum();
+    }
+
+    // Takes the next record from the ring, or returns null if it is empty
+    private Record poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) return null;
+        Record record = slots[index];
+        slots[index] = null;
+        // Hand the slot back to producers for the next lap
+        sequences.set(index, head + slots.length);
+        head++;
+        return record;
+    }
+
+    // Writer thread: sleep for the flush interval, then write everything that has accumulated
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while (true) {
+            boolean stopping = !running;
+            try {
+                int count;
+                boolean wrote = false;
+                do {
+                    count = 0;
+                    batch.setLength(0);
+                    Record record;
+                    while (count < MAX_BATCH && (record = poll()) != null) {
+                        format(record, batch);
+                        count++;
+                    }
+                    if (count > 0) {
+                        write(batch);
+                        wrote = true;
+                    }
+                } while (count == MAX_BATCH);
+                if (wrote && fsyncPolicy == FsyncPolicy.BATCH) channel.force(false);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error writing access log", ex);
+            }
+            if (stopping) break;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushMillis));
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error closing access log", ex);
+        }
+    }
+
+    private void format(Record record, StringBuilder out) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(record.timeMillis), out);
+        out.append(' ').append(record.remote)
+                .append(' ').append(record.method)
+                .append(' ').append(record.path)
+                .append(' ').append(record.status)
+                .append(' ').append(record.bytes)
+                .append(' ');
+        // Latency in milliseconds with three decimals, without going through String.format
+        long micros = record.latencyNanos / 1000;
+        out.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) out.append('0');
+        if (fraction < 10) out.append('0');
+        out.append(fraction).append('\n');
+        written.increment();
+    }
+
+    // Appends a formatted batch, rotating the file first if it is due
+    private void write(StringBuilder batch) throws IOException {
+        if ((rotateBytes > 0 && fileBytes >= rotateBytes)
+                || (rotateMillis > 0 && System.currentTimeMillis() - openedAt >= rotateMillis)) {
+            rotate();
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(batch));
+        while (buffer.hasRemaining()) {
+            fileBytes += channel.write(buffer);
+        }
+    }
+
+    // Renames the current file with a timestamp suffix and starts a new one
+    private void rotate() throws IOException {
+        channel.close();
+        Path rotated = file.resolveSibling(file.getFileName() + "." + ROTATE_FORMAT.format(Instant.now()));
+        Files.move(file, rotated, StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        openedAt = System.currentTimeMillis();
+    }
+}
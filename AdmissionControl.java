@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.*;
+
+// Decides whether the server takes on another connection, and turns away what it cannot serve in time with a short
+// "503 Service Unavailable" and a Retry-After header. A connection is shed when its client already holds the most
+// connections one address may have, when the pool's work queue is full, or when it waited in the queue past the
+// deadline, by which time the client has probably given up. Shedding costs one small write and a close, so an
+// overloaded server keeps answering quickly instead of letting its queue and latency grow without bound.
+public class AdmissionControl {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(AdmissionControl.class.getCanonicalName());
+    // Accepted connections that may wait for a pool thread; more are shed
+    static final int QUEUE_CAPACITY = Integer.getInteger("jhttp.pool.queueCapacity", 1000);
+    // Milliseconds a connection may wait in the queue before it is shed rather than served; 0 waits forever
+    static final long QUEUE_DEADLINE_MILLIS = Long.getLong("jhttp.pool.queueDeadlineMillis", 10000);
+    // Open connections allowed from one client address; 0 allows any number
+    static final int MAX_CONNECTIONS_PER_IP = Integer.getInteger("jhttp.maxConnectionsPerIp", 64);
+    // Seconds a shed client is asked to wait before trying again
+    static final int RETRY_AFTER_SECONDS = Integer.getInteger("jhttp.retryAfterSeconds", 1);
+
+    // Why a connection was shed
+    public enum Reason { QUEUE_FULL, QUEUE_TIMEOUT, PER_IP_LIMIT }
+
+    // The whole response, encoded once. It has no Date header, which a 5xx response may leave out.
+    private static final byte[] SERVICE_UNAVAILABLE;
+
+    static {
+        byte[] body = ("<HTML><HEAD><TITLE>Service Unavailable</TITLE></HEAD><BODY>"
+                + "<H1>HTTP Error 503: Service Unavailable</H1></BODY></HTML>").getBytes(StandardCharsets.US_ASCII);
+        byte[] head = ("HTTP/1.1 503 Service Unavailable\r\n"
+                + "Server: JHTTP 2.0\r\n"
+                + "Connection: close\r\n"
+                + "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n"
+                + "Content-length: " + body.length + "\r\n"
+                + "Content-type: text/html; charset=utf-8\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        SERVICE_UNAVAILABLE = new byte[head.length + body.length];
+        System.arraycopy(head, 0, SERVICE_UNAVAILABLE, 0, head.length);
+        System.arraycopy(body, 0, SERVICE_UNAVAILABLE, head.length, body.length);
+    }
+
+    // Open connections by client address; an address is removed when its last connection closes, so the map only
+    // ever holds the clients currently connected
+    private final ConcurrentHashMap<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+    private final int maxPerAddress;
+    private final long queueDeadlineNanos;
+
+    // Counters read by the metrics, one per reason
+    private final LongAdder[] shed = new LongAdder[Reason.values().length];
+
+    public AdmissionControl() {
+        this(MAX_CONNECTIONS_PER_IP, QUEUE_DEADLINE_MILLIS);
+    }
+
+    public AdmissionControl(int maxPerAddress, long queueDeadlineMillis) {
+        this.maxPerAddress = maxPerAddress;
+        this.queueDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(queueDeadlineMillis);
+        for (int i = 0; i < shed.length; i++) {
+            shed[i] = new LongAdder();
+        }
+    }
+
+    // Counts a new connection from an address and returns true, or returns false if the address already has as
+    // many connections as it may; only an admitted connection is released later
+    public boolean admit(InetAddress address) {
+        if (maxPerAddress <= 0 || address == null) return true;
+        boolean[] admitted = new boolean[1];
+        perAddress.compute(address, (key, open) -> {
+            int count = open != null ? open : 0;
+            if (count >= maxPerAddress) return open;
+            admitted[0] = true;
+            return count + 1;
+        });
+        return admitted[0];
+    }
+
+    // Counts a connection admitted from an address as closed
+    public void release(InetAddress address) {
+        if (maxPerAddress <= 0 || address == null) return;
+        perAddress.computeIfPresent(address, (key, open) -> open > 1 ? open - 1 : null);
+    }
+
+    // Returns true if a connection accepted at the given System.nanoTime() has waited too long to be served
+    public boolean isLate(long acceptedAt) {
+        return queueDeadlineNanos > 0 && System.nanoTime() - acceptedAt > queueDeadlineNanos;
+    }
+
+    // Answers a blocking connection with the 503 response and closes it without reading the request
+    public void reject(Socket socket, Reason reason) {
+        shed[reason.ordinal()].increment();
+        logger.fine("Shedding " + socket.getRemoteSocketAddress() + ": " + reason);
+        sendAndClose(socket, SERVICE_UNAVAILABLE);
+    }
+
+    // Same for a non-blocking channel
+    public void reject(SocketChannel channel, Reason reason) {
+        shed[reason.ordinal()].increment();
+        logger.fine("Shedding " + channel.socket().getRemoteSocketAddress() + ": " + reason);
+        sendAndClose(channel, SERVICE_UNAVAILABLE);
+    }
+
+    // Writes a complete response to a blocking connection that has not been read from, and closes it. The part of
+    // the request that has already arrived is discarded first, as closing a socket with unread input resets the
+    // connection and the client could lose the response.
+    static void sendAndClose(Socket socket, byte[] response) {
+        try (Socket s = socket) {
+            s.getOutputStream().write(response);
+            s.shutdownOutput();
+            InputStream in = s.getInputStream();
+            long available = in.available();
+            if (available > 0) in.skip(available);
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Error turning away connection", ex);
+        }
+    }
+
+    // Same for a non-blocking channel; a new connection's send buffer always has room for a short response
+    static void sendAndClose(SocketChannel channel, byte[] response) {
+        try (SocketChannel c = channel) {
+            c.write(ByteBuffer.wrap(response));
+            c.shutdownOutput();
+            ByteBuffer discard = ByteBuffer.allocate(8192);
+            while (c.read(discard) > 0) {
+                discard.clear();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Error turning away connection", ex);
+        }
+    }
+
+    // Number of connections shed for a reason
+    public long getShed(Reason reason) {
+        return shed[reason.ordinal()].sum();
+    }
+
+    // Number of client addresses with open connections
+    public int addresses() {
+        return perAddress.size();
+    }
+}
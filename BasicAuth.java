@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// HTTP Basic authentication for the files under the protected paths, checked against a UserStore. Checking a
+// password costs a deliberately slow hash, so an Authorization header that was verified is remembered for a short
+// time and a browser resending it with every request is let through at the cost of one SHA-256. Only a digest of
+// the header is kept, never the password. Remembered headers are forgotten as soon as the user file changes.
+// Protected paths are compared with canonical files, so "/./MyResource.html" or a symbolic link to a protected
+// file is protected as well.
+public class BasicAuth {
+
+    // Request paths whose files, and everything below them when they are directories, need a user; comma separated
+    static final String PROTECT = System.getProperty("jhttp.auth.protect", "/MyResource.html");
+    // Realm named in the challenge
+    static final String REALM = System.getProperty("jhttp.auth.realm", "JHTTP");
+    // Path that create_acc.html posts new accounts to
+    static final String SIGNUP_PATH = System.getProperty("jhttp.auth.signupPath", "/");
+    // How long a verified Authorization header is trusted without checking the password again
+    static final long CACHE_TTL_MILLIS = Long.getLong("jhttp.auth.cacheTtlMillis", 60000);
+    // Most headers remembered; when the cache fills up it is cleared rather than grown
+    static final int CACHE_MAX_ENTRIES = Integer.getInteger("jhttp.auth.cacheMaxEntries", 10000);
+
+    // A verified header: who it belongs to, until when it is trusted, and the user index it was checked against
+    private static final class Verified {
+        final String user;
+        final long until;
+        final long generation;
+
+        Verified(String user, long until, long generation) {
+            this.user = user;
+            this.until = until;
+            this.generation = generation;
+        }
+    }
+
+    private final UserStore users;
+    // Canonical files and directories that are protected
+    private final List<Path> protectedPaths = new ArrayList<>();
+    private final String challenge;
+    private final long cacheTtlNanos;
+    // SHA-256 of the header to what was verified
+    private final ConcurrentHashMap<String, Verified> verified = new ConcurrentHashMap<>();
+
+    // Counters read by the metrics
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    // Constructor protects the given request paths of the document root resolved by the resolver
+    public BasicAuth(UserStore users, PathResolver resolver, String protect) {
+        this(users, resolver, protect, CACHE_TTL_MILLIS);
+    }
+
+    public BasicAuth(UserStore users, PathResolver resolver, String protect, long cacheTtlMillis) {
+        this.users = users;
+        this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+        this.challenge = "WWW-Authenticate: Basic realm=\"" + REALM + "\", charset=\"UTF-8\"\r\n";
+        Path root = resolver.getRoot();
+        for (String prefix : protect.split(",")) {
+            prefix = prefix.trim();
+            if (prefix.isEmpty()) continue;
+            Path path = root.resolve(prefix.replaceFirst("^/+", "")).normalize();
+            // Protect the file a symbolic link leads to as well, if it already exists
+            try {
+                path = path.toRealPath();
+            } catch (IOException ex) {
+                // Not there yet; protected by name once it is created
+            }
+            protectedPaths.add(path);
+        }
+    }
+
+    // Returns true if a canonical file needs a user
+    public boolean isProtected(Path file) {
+        for (Path path : protectedPaths) {
+            if (file.startsWith(path)) return true;
+        }
+        return false;
+    }
+
+    // Returns the user an Authorization header proves, or null if it is missing, malformed or wrong
+    public String authenticate(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) return null;
+        String key = digest(authorization);
+        long now = System.nanoTime();
+        Verified known = verified.get(key);
+        if (known != null) {
+            if (now - known.until < 0 && known.generation == users.getGeneration()) {
+                cacheHits.increment();
+                return known.user;
+            }
+            verified.remove(key, known);
+        }
+
+        // Decode "user:password"; the password may itself contain colons
+        char[] credentials;
+        try {
+            byte[] decoded = Base64.getDecoder().decode(authorization.substring(6).trim());
+            CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(decoded));
+            credentials = new char[chars.remaining()];
+            chars.get(credentials);
+            Arrays.fill(decoded, (byte) 0);
+        } catch (IllegalArgumentException | CharacterCodingException ex) {
+            failures.increment();
+            return null;
+        }
+        int colon = -1;
+        for (int i = 0; i < credentials.length && colon < 0; i++) {
+            if (credentials[i] == ':') colon = i;
+        }
+        if (colon <= 0 || credentials.length - colon - 1 > UserStore.MAX_PASSWORD) {
+            failures.increment();
+            return null;
+        }
+        String user = new String(credentials, 0, colon);
+        char[] password = Arrays.copyOfRange(credentials, colon + 1, credentials.length);
+        Arrays.fill(credentials, '\0');
+
+        long generation = users.getGeneration();
+        verifications.increment();
+        boolean valid = users.verify(user, password);
+        Arrays.fill(password, '\0');
+        if (!valid) {
+            failures.increment();
+            return null;
+        }
+        if (cacheTtlNanos > 0) {
+            if (verified.size() >= CACHE_MAX_ENTRIES) verified.clear();
+            verified.put(key, new Verified(user, System.nanoTime() + cacheTtlNanos, generation));
+        }
+        return user;
+    }
+
+    // Returns true if authenticate() can answer for a header without checking a password: the header is missing, is
+    // not Basic, or was verified recently
+    public boolean isRemembered(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) return true;
+        Verified known = verified.get(digest(authorization));
+        return known != null && System.nanoTime() - known.until < 0 && known.generation == users.getGeneration();
+    }
+
+    // The header line that asks the client for a user, ending in CRLF
+    public String getChallenge() {
+        return challenge;
+    }
+
+    public UserStore getUsers() {
+        return users;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    // Number of passwords checked against their hash
+    public long getVerifications() {
+        return verifications.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    // Returns the SHA-256 of a header, Base64 encoded
+    private static String digest(String header) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(sha256.digest(header.getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
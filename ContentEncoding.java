@@ -0,0 +1,133 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Content negotiation for compressed responses, shared by RequestProcessor and the NIO engine.
+// A compressible file is sent gzip or deflate encoded when the client accepts it. A pre-compressed ".gz" file next
+// to the original is used when present; otherwise the body is compressed once and cached next to the raw entry.
+public class ContentEncoding {
+
+    // Files smaller than this are sent as they are, since compressing them saves almost nothing
+    static final int MIN_LENGTH = Integer.getInteger("jhttp.compression.minBytes", 256);
+    // Largest body compressed in memory; bigger files are streamed uncompressed
+    static final int MAX_LENGTH = Integer.getInteger("jhttp.compression.maxBytes", 4 * 1024 * 1024);
+
+    private ContentEncoding() {
+    }
+
+    // Returns true for text-like content types that are worth compressing; images, media and archives are
+    // already compressed and are always sent as they are
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) return false;
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/")
+                || type.contains("javascript")
+                || type.contains("json")
+                || type.contains("xml")
+                || type.startsWith("image/svg");
+    }
+
+    // Picks the coding to use from an Accept-Encoding header: "gzip", "deflate", or null for none.
+    // Codings with q=0 are refused, and gzip wins a tie because every browser supports it.
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        double gzip = 0, deflate = 0, any = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] fields = part.trim().split(";");
+            String coding = fields[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < fields.length; i++) {
+                String param = fields[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException ex) {
+                        q = 0;
+                    }
+                }
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding)) gzip = q;
+            else if ("deflate".equals(coding)) deflate = q;
+            else if ("*".equals(coding)) any = q;
+        }
+        if (gzip == 0 && !acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip")) gzip = any;
+        if (deflate == 0 && !acceptEncoding.toLowerCase(Locale.ROOT).contains("deflate")) deflate = any;
+        if (gzip > 0 && gzip >= deflate) return "gzip";
+        if (deflate > 0) return "deflate";
+        return null;
+    }
+
+    // Returns the entry to send for a request: the raw entry, a pre-compressed .gz file, or a cached compressed copy
+    public static FileCache.Entry select(FileCache cache, String fileName, FileCache.Entry raw, String contentType,
+                                         String acceptEncoding) throws IOException {
+        if (!isCompressible(contentType) || raw.getLength() < MIN_LENGTH) return raw;
+        String encoding = negotiate(acceptEncoding);
+        if (encoding == null) return raw;
+
+        String key = fileName + "\0" + encoding;
+        FileCache.Entry variant = cache.get(key);
+        if (variant != null) return smaller(variant, raw);
+
+        // Prefer a pre-compressed file shipped next to the original
+        if ("gzip".equals(encoding)) {
+            Path gz = raw.getPath().resolveSibling(raw.getPath().getFileName() + ".gz");
+            if (Files.isReadable(gz)) {
+                return smaller(cache.load(key, gz, encoding), raw);
+            }
+        }
+
+        // Compress the raw body once; bodies only available on disk are too big to compress in memory
+        if (raw.isStreamed() || raw.getLength() > MAX_LENGTH) return raw;
+        variant = cache.loadVariant(key, raw, encoding, () -> compress(body(raw), encoding));
+        return smaller(variant, raw);
+    }
+
+    // Keeps the raw body if compression did not make it smaller. The compressed copy stays cached either way, so the
+    // file is not compressed again on every request, and every request gets the same representation and ETag.
+    private static FileCache.Entry smaller(FileCache.Entry variant, FileCache.Entry raw) {
+        return variant.getLength() < raw.getLength() ? variant : raw;
+    }
+
+    // Returns true if select() can answer from the cache alone, without reading or compressing a file
+    public static boolean isCached(FileCache cache, String fileName, FileCache.Entry raw, String contentType,
+                                   String acceptEncoding) {
+        if (!isCompressible(contentType) || raw.getLength() < MIN_LENGTH) return true;
+        String encoding = negotiate(acceptEncoding);
+        return encoding == null || cache.contains(fileName + "\0" + encoding);
+    }
+
+    // Returns the Content-Encoding and Vary header lines for a response, or an empty string if none apply
+    public static String headers(FileCache.Entry entry, String contentType) {
+        String headers = "";
+        if (entry.getEncoding() != null) headers += "Content-Encoding: " + entry.getEncoding() + "\r\n";
+        // Caches must keep compressed and plain copies apart whenever the answer could depend on the request
+        if (isCompressible(contentType)) headers += "Vary: Accept-Encoding\r\n";
+        return headers;
+    }
+
+    // Copies an entry's body to a heap array, reading it from its off-heap copy if necessary
+    private static byte[] body(FileCache.Entry entry) throws IOException {
+        if (entry.getData() != null) return entry.getData();
+        ByteBuffer buffer = entry.acquireBuffer();
+        if (buffer == null) return Files.readAllBytes(entry.getPath());
+        try {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        } finally {
+            entry.releaseBuffer();
+        }
+    }
+
+    // Compresses a body with the given coding
+    static byte[] compress(byte[] data, String encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (OutputStream out = "gzip".equals(encoding) ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+// Immutable index of the files under the document root: request path to size and modification time. It is built at
+// startup by walking the directory tree in parallel on a fork-join pool, and used to preload the files most likely
+// to be requested into the FileCache before the first connection is accepted. The index and the hottest cache keys
+// are saved to a compact binary snapshot. On the next start a directory whose modification time still matches the
+// snapshot is not listed again: its files are only checked for a new size or modification time. Symbolic links are
+// not followed, so everything indexed is inside the root.
+public final class DocrootIndex {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(DocrootIndex.class.getCanonicalName());
+    // Identifies a snapshot file and its layout
+    private static final int MAGIC = 0x4a484958;
+    private static final int VERSION = 1;
+
+    // What the index knows about one file
+    public static final class FileInfo {
+        final String path;
+        final long size;
+        final long lastModified;
+
+        FileInfo(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final Path root;
+    // Files by request path ("/dir/name.html")
+    private final Map<String, FileInfo> files;
+    // Modification times of the directories by request path ("/" for the root), for checking the next snapshot
+    private final Map<String, Long> directories;
+    // Cache keys that were hot when the snapshot was taken, hottest first
+    private final List<String> hotList;
+    // Directories whose listing was taken from a snapshot instead of read again
+    private final int reusedDirectories;
+
+    private DocrootIndex(Path root, Map<String, FileInfo> files, Map<String, Long> directories, List<String> hotList,
+                         int reusedDirectories) {
+        this.root = root;
+        this.files = Collections.unmodifiableMap(new HashMap<>(files));
+        this.directories = Collections.unmodifiableMap(new HashMap<>(directories));
+        this.hotList = Collections.unmodifiableList(new ArrayList<>(hotList));
+        this.reusedDirectories = reusedDirectories;
+    }
+
+    // Builds the index of a document root, reusing a snapshot from an earlier run where it is still valid. A
+    // missing, unreadable or foreign snapshot is ignored and the whole tree is walked.
+    public static DocrootIndex build(Path root, Path snapshot, ForkJoinPool pool) throws IOException {
+        root = root.toRealPath();
+        Snapshot previous = null;
+        if (snapshot != null && Files.isReadable(snapshot)) {
+            try {
+                previous = Snapshot.read(snapshot, root);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Ignoring unreadable index snapshot " + snapshot, ex);
+            }
+        }
+
+        Map<String, FileInfo> files = new ConcurrentHashMap<>();
+        Map<String, Long> directories = new ConcurrentHashMap<>();
+        AtomicInteger reused = new AtomicInteger();
+        try {
+            pool.invoke(new Scan(root, root, "/", previous, files, directories, reused));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        List<String> hotList = previous != null ? previous.hotList : Collections.emptyList();
+        return new DocrootIndex(root, files, directories, hotList, reused.get());
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    // Total size of the indexed files
+    public long totalBytes() {
+        long total = 0;
+        for (FileInfo info : files.values()) total += info.size;
+        return total;
+    }
+
+    public int getReusedDirectories() {
+        return reusedDirectories;
+    }
+
+    public List<String> getHotList() {
+        return hotList;
+    }
+
+    // Loads files into the cache in parallel until about maxBytes have been read and returns the bytes loaded.
+    // Files on the hot list come first, then directory index pages, then the rest from the smallest up, which
+    // caches the most files for the budget. Files the cache would stream from disk are skipped, and so are files the
+    // resolver would not serve.
+    public long warm(FileCache cache, PathResolver resolver, long maxBytes, String indexFileName, ForkJoinPool pool) {
+        List<FileInfo> candidates = new ArrayList<>(files.values());
+        Map<String, Integer> hotRank = new HashMap<>();
+        for (int i = 0; i < hotList.size(); i++) hotRank.putIfAbsent(hotList.get(i), i);
+        String indexSuffix = "/" + indexFileName;
+        candidates.sort(Comparator
+                .comparingInt((FileInfo info) -> hotRank.getOrDefault(info.path, Integer.MAX_VALUE))
+                .thenComparing(info -> !info.path.endsWith(indexSuffix))
+                .thenComparingLong(info -> info.size));
+
+        List<FileInfo> chosen = new ArrayList<>();
+        long budget = maxBytes;
+        for (FileInfo info : candidates) {
+            if (info.size > cache.getStreamThreshold() || info.size > budget) continue;
+            chosen.add(info);
+            budget -= info.size;
+        }
+
+        AtomicLong loaded = new AtomicLong();
+        pool.submit(() -> chosen.parallelStream().forEach(info -> {
+            Path file = resolver.resolve(info.path);
+            if (file == null) return;
+            try {
+                loaded.addAndGet(cache.load(info.path, file).getLength());
+            } catch (IOException ex) {
+                // The file went away or became unreadable since it was indexed; requests will find out
+                logger.log(Level.FINE, "Could not preload " + info.path, ex);
+            }
+        })).join();
+        return loaded.get();
+    }
+
+    // Writes the index and the given hot cache keys to a snapshot, replacing the old one only once it is complete
+    public void save(Path snapshot, List<String> hotKeys) throws IOException {
+        Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(root.toString());
+            out.writeInt(directories.size());
+            for (Map.Entry<String, Long> directory : directories.entrySet()) {
+                out.writeUTF(directory.getKey());
+                out.writeLong(directory.getValue());
+            }
+            out.writeInt(files.size());
+            for (FileInfo info : files.values()) {
+                out.writeUTF(info.path);
+                out.writeLong(info.size);
+                out.writeLong(info.lastModified);
+            }
+            out.writeInt(hotKeys.size());
+            for (String key : hotKeys) {
+                out.writeUTF(key);
+            }
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The contents of a snapshot, with each directory's files and subdirectories grouped for the scan
+    private static final class Snapshot {
+        final Map<String, Long> directories = new HashMap<>();
+        final Map<String, List<FileInfo>> filesByDirectory = new HashMap<>();
+        final Map<String, List<String>> subdirectories = new HashMap<>();
+        final List<String> hotList = new ArrayList<>();
+
+        static Snapshot read(Path file, Path root) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not an index snapshot, or written by another version");
+                }
+                if (!root.toString().equals(in.readUTF())) {
+                    throw new IOException("Snapshot is of another document root");
+                }
+                Snapshot snapshot = new Snapshot();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    snapshot.directories.put(path, in.readLong());
+                    if (!"/".equals(path)) {
+                        snapshot.subdirectories.computeIfAbsent(parent(path), k -> new ArrayList<>()).add(path);
+                    }
+                }
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    FileInfo info = new FileInfo(in.readUTF(), in.readLong(), in.readLong());
+                    snapshot.filesByDirectory.computeIfAbsent(parent(info.path), k -> new ArrayList<>()).add(info);
+                }
+                count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    snapshot.hotList.add(in.readUTF());
+                }
+                return snapshot;
+            }
+        }
+
+        // Returns the request path of the directory holding a path, "/" for the root
+        private static String parent(String path) {
+            int slash = path.lastIndexOf('/');
+            return slash <= 0 ? "/" : path.substring(0, slash);
+        }
+    }
+
+    // Indexes one directory and forks a task for each subdirectory. An unchanged directory takes its listing from
+    // the snapshot and only re-reads the attributes of its files.
+    private static final class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final Path dir;
+        private final String path;
+        private final Snapshot previous;
+        private final Map<String, FileInfo> files;
+        private final Map<String, Long> directories;
+        private final AtomicInteger reused;
+
+        Scan(Path root, Path dir, String path, Snapshot previous, Map<String, FileInfo> files,
+             Map<String, Long> directories, AtomicInteger reused) {
+            this.root = root;
+            this.dir = dir;
+            this.path = path;
+            this.previous = previous;
+            this.files = files;
+            this.directories = directories;
+            this.reused = reused;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                long modified = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+                directories.put(path, modified);
+                Long recorded = previous != null ? previous.directories.get(path) : null;
+                List<Scan> subtasks = recorded != null && recorded == modified ? reuse() : list();
+                invokeAll(subtasks);
+            } catch (NoSuchFileException ex) {
+                // Removed while being indexed
+                directories.remove(path);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        // Reads the directory and indexes its regular files
+        private List<Scan> list() throws IOException {
+            List<Scan> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    String child = childPath(entry.getFileName().toString());
+                    if (attributes.isDirectory()) {
+                        subtasks.add(new Scan(root, entry, child, previous, files, directories, reused));
+                    } else if (attributes.isRegularFile()) {
+                        files.put(child, new FileInfo(child, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    }
+                }
+            }
+            return subtasks;
+        }
+
+        // Uses the snapshot's listing, checking each file's size and modification time, which a change to the
+        // contents of a file does not carry over to its directory
+        private List<Scan> reuse() {
+            reused.incrementAndGet();
+            for (FileInfo info : previous.filesByDirectory.getOrDefault(path, Collections.emptyList())) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(root.resolve(info.path.substring(1)),
+                            BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (!attributes.isRegularFile()) continue;
+                    long modified = attributes.lastModifiedTime().toMillis();
+                    files.put(info.path, attributes.size() == info.size && modified == info.lastModified
+                            ? info : new FileInfo(info.path, attributes.size(), modified));
+                } catch (IOException ex) {
+                    // Removed since the snapshot; the directory's time would normally have shown it
+                }
+            }
+            List<Scan> subtasks = new ArrayList<>();
+            for (String child : previous.subdirectories.getOrDefault(path, Collections.emptyList())) {
+                subtasks.add(new Scan(root, root.resolve(child.substring(1)), child, previous, files, directories, reused));
+            }
+            return subtasks;
+        }
+
+        private String childPath(String name) {
+            return "/".equals(path) ? "/" + name : path + "/" + name;
+        }
+    }
+}
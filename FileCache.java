@@ -0,0 +1,511 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.*;
+
+// Bounded in-memory cache of file contents shared by all request threads.
+// Keys are hashed onto independently locked stripes, and each stripe runs a segmented LRU: new entries start in a
+// probation segment and only move to the protected segment when they are hit again, so a scan over many one-off
+// files cannot push out the files that are requested all the time. A WatchService on the document root drops
+// entries whose files change on disk. Files larger than the streaming threshold are never read into memory;
+// their entries only describe the file so callers can send it straight from disk. With an OffHeapStore the bodies
+// are copied into direct buffers instead of heap arrays, and evicted bodies are handed back to the store.
+public class FileCache {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(FileCache.class.getCanonicalName());
+    // Number of independently locked stripes
+    private static final int STRIPES = 16;
+    // Share of each stripe's budget reserved for the protected segment
+    private static final double PROTECTED_RATIO = 0.8;
+
+    // A cached file body together with the file it was read from
+    public static final class Entry {
+        private final byte[] data;
+        private final OffHeapStore.Block block;
+        private final Path path;
+        private final long lastModified;
+        private final long length;
+        private final String encoding;
+        // Validators, worked out once when the entry is created rather than on every response
+        private final String etag;
+        private final String lastModifiedHeader;
+
+        Entry(byte[] data, OffHeapStore.Block block, Path path, long lastModified, long length, String encoding) {
+            this.data = data;
+            this.block = block;
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.encoding = encoding;
+            this.etag = etag(length, lastModified, encoding);
+            this.lastModifiedHeader = FileResponse.HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+        }
+
+        // File body on the heap, or null if it is held off-heap or streamed from disk
+        public byte[] getData() {
+            return data;
+        }
+
+        // Returns true if the body is neither on the heap nor off-heap and has to be sent from disk
+        public boolean isStreamed() {
+            return data == null && block == null;
+        }
+
+        // Pins the off-heap body and returns a view of it, or null if there is none or it was already freed;
+        // every non-null result must be handed back with releaseBuffer()
+        public ByteBuffer acquireBuffer() {
+            return block != null ? block.acquire() : null;
+        }
+
+        public void releaseBuffer() {
+            if (block != null) block.release();
+        }
+
+        // Called when the cache lets go of this entry
+        void retire() {
+            if (block != null) block.retire();
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+
+        // Content coding of the body ("gzip" or "deflate"), or null if it is the file as stored
+        public String getEncoding() {
+            return encoding;
+        }
+    }
+
+    // Strong entity tag from size and modification time; each content coding is a different representation
+    static String etag(long length, long lastModified, String encoding) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified)
+                + (encoding != null ? "-" + encoding : "") + "\"";
+    }
+
+    // Produces the body of a derived entry, such as a compressed copy of a cached file
+    public interface BodyLoader {
+        byte[] load() throws IOException;
+    }
+
+    // Produces an entry while holding the single-flight slot for its key
+    private interface Loader {
+        Entry load(long startGeneration) throws IOException;
+    }
+
+    private final Path rootDirectory;
+    private final long maxBytes;
+    private final long streamThreshold;
+    private final OffHeapStore store;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // Loads in progress, so concurrent misses for the same key share a single disk read
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    // Bumped on every invalidation so a load that raced with a file change does not cache stale data
+    private final AtomicLong generation = new AtomicLong();
+    // Told about every invalidation, so state derived from the file system can follow it
+    private final List<Consumer<Path>> invalidationListeners = new CopyOnWriteArrayList<>();
+
+    // Counters reported by JHTTP.logCacheInfo()
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    // Constructor creates an empty cache holding at most maxBytes of file data from rootDirectory;
+    // files larger than streamThreshold bytes are left on disk
+    public FileCache(File rootDirectory, long maxBytes, long streamThreshold) throws IOException {
+        this(rootDirectory, maxBytes, streamThreshold, null);
+    }
+
+    // Constructor for a cache whose bodies live in the given off-heap store instead of heap arrays
+    public FileCache(File rootDirectory, long maxBytes, long streamThreshold, OffHeapStore store) throws IOException {
+        this.rootDirectory = rootDirectory.getCanonicalFile().toPath();
+        this.maxBytes = maxBytes;
+        this.streamThreshold = streamThreshold;
+        this.store = store;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(maxBytes / STRIPES);
+        }
+    }
+
+    // Returns the cached entry for a key, or null on a miss
+    public Entry get(String key) {
+        Entry entry = stripeFor(key).get(key);
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    // Returns true if a key is cached, without counting a hit or a miss or promoting the entry
+    public boolean contains(String key) {
+        return stripeFor(key).contains(key);
+    }
+
+    // Reads a file into the cache under the given key; concurrent callers for the same key wait for one read.
+    // Files above the streaming threshold are described but not read.
+    public Entry load(String key, Path file) throws IOException {
+        return load(key, file, null);
+    }
+
+    // Reads a file whose contents are already in the given content coding, such as a pre-compressed .gz file
+    public Entry load(String key, Path file, String encoding) throws IOException {
+        return loadOnce(key, startGeneration -> {
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            long length = Files.size(file);
+            Entry entry;
+            if (length > streamThreshold) {
+                entry = new Entry(null, null, file, lastModified, length, encoding);
+            } else if (store != null) {
+                // A full off-heap store falls back to streaming rather than using the heap
+                OffHeapStore.Block block = store.load(file, length);
+                entry = new Entry(null, block, file, lastModified, length, encoding);
+                if (block != null) cache(key, entry, startGeneration);
+            } else {
+                byte[] data = Files.readAllBytes(file);
+                entry = new Entry(data, null, file, lastModified, data.length, encoding);
+                cache(key, entry, startGeneration);
+            }
+            return entry;
+        });
+    }
+
+    // Caches a body derived from another entry under its own key, computing it at most once at a time.
+    // The variant is tied to the source file, so it is invalidated together with it.
+    public Entry loadVariant(String key, Entry source, String encoding, BodyLoader loader) throws IOException {
+        return loadOnce(key, startGeneration -> {
+            byte[] data = loader.load();
+            Entry entry = new Entry(data, null, source.path, source.lastModified, data.length, encoding);
+            cache(key, entry, startGeneration);
+            return entry;
+        });
+    }
+
+    // Runs a loader for a key unless another thread is already loading it, in which case waits for that result
+    private Entry loadOnce(String key, Loader loader) throws IOException {
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        try {
+            // Another thread may have finished loading this key just before we registered
+            Entry entry = stripeFor(key).get(key);
+            if (entry == null) {
+                entry = loader.load(generation.get());
+            }
+            mine.complete(entry);
+            return entry;
+        } catch (IOException | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    // Stores a freshly loaded entry unless a file changed while it was being read
+    private void cache(String key, Entry entry, long startGeneration) {
+        if (generation.get() != startGeneration || !stripeFor(key).put(key, entry)) {
+            entry.retire();
+        }
+    }
+
+    // Drops every entry read from the given file, or from anything below it if it is a directory
+    public void invalidate(Path path) {
+        generation.incrementAndGet();
+        for (Stripe stripe : stripes) {
+            int removed = stripe.removeIf(path);
+            if (removed > 0) invalidations.add(removed);
+        }
+        for (Consumer<Path> listener : invalidationListeners) {
+            listener.accept(path);
+        }
+    }
+
+    // Registers a listener called with each changed path, or with the root when everything is dropped
+    public void addInvalidationListener(Consumer<Path> listener) {
+        invalidationListeners.add(listener);
+    }
+
+    // Drops every entry
+    public void clear() {
+        invalidate(rootDirectory);
+    }
+
+    // Starts a daemon thread that invalidates entries when files under the document root change
+    public void watch() throws IOException {
+        WatchService watcher = rootDirectory.getFileSystem().newWatchService();
+        registerAll(watcher, rootDirectory);
+
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    return;
+                }
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so nothing in the cache can be trusted
+                        clear();
+                        continue;
+                    }
+                    Path changed = dir.resolve((Path) event.context());
+                    invalidate(changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        try {
+                            registerAll(watcher, changed);
+                        } catch (IOException ex) {
+                            logger.log(Level.WARNING, "Error watching " + changed, ex);
+                        }
+                    }
+                }
+                key.reset();
+            }
+        }, "jhttp-cache-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Registers a directory and all of its subdirectories with the watch service
+    private static void registerAll(WatchService watcher, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Number of cached entries
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) size += stripe.size();
+        return size;
+    }
+
+    // Total bytes of file data currently cached
+    public long weightedSize() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) bytes += stripe.bytes();
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // Files larger than this are streamed from disk and never held in the cache
+    public long getStreamThreshold() {
+        return streamThreshold;
+    }
+
+    // Returns up to max keys of cached files, not of compressed variants: files hit more than once first, most
+    // recently used first within each stripe, then files seen once
+    public List<String> hotKeys(int max) {
+        List<String> hot = new ArrayList<>();
+        List<String> seenOnce = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.collectKeys(hot, seenOnce);
+        }
+        hot.addAll(seenOnce);
+        return hot.size() > max ? new ArrayList<>(hot.subList(0, max)) : hot;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    // Waits for another thread's load of the same key
+    private static Entry await(CompletableFuture<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for file load");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    // One lock-protected segmented LRU holding a share of the byte budget
+    private final class Stripe {
+        private final long maxBytes;
+        private final long maxProtectedBytes;
+        // Entries seen once, oldest first
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+        // Entries hit at least twice, least recently used first
+        private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationBytes;
+        private long protectedBytes;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+        }
+
+        synchronized Entry get(String key) {
+            Entry entry = protectedSegment.get(key);
+            if (entry != null) return entry;
+
+            // A second hit promotes the entry out of probation
+            entry = probation.remove(key);
+            if (entry != null) {
+                probationBytes -= entry.length;
+                protectedSegment.put(key, entry);
+                protectedBytes += entry.length;
+                demoteOverflow();
+            }
+            return entry;
+        }
+
+        synchronized boolean contains(String key) {
+            return protectedSegment.containsKey(key) || probation.containsKey(key);
+        }
+
+        // Adds an entry, returning false if it is too large for this stripe to hold
+        synchronized boolean put(String key, Entry entry) {
+            // Files too large for this stripe are served but never cached
+            if (entry.length > maxBytes) return false;
+
+            remove(key);
+            probation.put(key, entry);
+            probationBytes += entry.length;
+            evictOverflow();
+            return true;
+        }
+
+        synchronized int removeIf(Path path) {
+            int removed = 0;
+            for (Map<String, Entry> segment : List.of(probation, protectedSegment)) {
+                Iterator<Entry> it = segment.values().iterator();
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+                    if (entry.path.startsWith(path)) {
+                        it.remove();
+                        if (segment == probation) probationBytes -= entry.length;
+                        else protectedBytes -= entry.length;
+                        entry.retire();
+                        removed++;
+                    }
+                }
+            }
+            return removed;
+        }
+
+        synchronized int size() {
+            return probation.size() + protectedSegment.size();
+        }
+
+        // Adds the keys of the protected segment, most recently used first, and of the probation segment
+        synchronized void collectKeys(List<String> protectedKeys, List<String> probationKeys) {
+            List<String> keys = new ArrayList<>(protectedSegment.keySet());
+            Collections.reverse(keys);
+            for (String key : keys) {
+                if (key.indexOf('\0') < 0) protectedKeys.add(key);
+            }
+            for (String key : probation.keySet()) {
+                if (key.indexOf('\0') < 0) probationKeys.add(key);
+            }
+        }
+
+        synchronized long bytes() {
+            return probationBytes + protectedBytes;
+        }
+
+        private void remove(String key) {
+            Entry old = probation.remove(key);
+            if (old != null) {
+                probationBytes -= old.length;
+                old.retire();
+            }
+            old = protectedSegment.remove(key);
+            if (old != null) {
+                protectedBytes -= old.length;
+                old.retire();
+            }
+        }
+
+        // Moves the least recently used protected entries back to probation while the segment is over its share
+        private void demoteOverflow() {
+            Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+            while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+                Map.Entry<String, Entry> lru = it.next();
+                it.remove();
+                protectedBytes -= lru.getValue().length;
+                probation.put(lru.getKey(), lru.getValue());
+                probationBytes += lru.getValue().length;
+            }
+            evictOverflow();
+        }
+
+        // Evicts from the probation segment first, then from protected, until the stripe fits its budget
+        private void evictOverflow() {
+            while (probationBytes + protectedBytes > maxBytes) {
+                LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+                Iterator<Entry> it = segment.values().iterator();
+                Entry victim = it.next();
+                it.remove();
+                if (segment == probation) probationBytes -= victim.length;
+                else protectedBytes -= victim.length;
+                victim.retire();
+                evictions.increment();
+            }
+        }
+    }
+}
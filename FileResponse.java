@@ -0,0 +1,220 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The response to a GET or HEAD for a file, worked out independently of how it gets written, so RequestProcessor and
+// the NIO engine answer conditional and range requests the same way. Handles ETag/Last-Modified validators,
+// If-None-Match and If-Modified-Since (304), and Range/If-Range with single and multipart 206 responses.
+public class FileResponse {
+
+    // Largest number of ranges honoured in one request; more than that is answered with the whole file
+    private static final int MAX_RANGES = 16;
+    // Format of Last-Modified and the other HTTP date headers
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    // A piece of the body: literal bytes (multipart boundaries) or a slice of a cache entry's body
+    public static final class Segment {
+        final byte[] bytes;
+        final FileCache.Entry entry;
+        final long offset;
+        final long length;
+
+        Segment(byte[] bytes) {
+            this.bytes = bytes;
+            this.entry = null;
+            this.offset = 0;
+            this.length = bytes.length;
+        }
+
+        private Segment(FileCache.Entry entry, long offset, long length) {
+            this.bytes = null;
+            this.entry = entry;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    final int status;
+    final String statusLine;
+    // Content type, or null if the response has none
+    final String contentType;
+    // Content length, or -1 for a 304 which carries no length
+    final long contentLength;
+    // Extra header lines, each terminated by CRLF
+    final String headers;
+    final List<Segment> segments;
+
+    private FileResponse(int status, String statusLine, String contentType, long contentLength, String headers, List<Segment> segments) {
+        this.status = status;
+        this.statusLine = statusLine;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.headers = headers;
+        this.segments = segments;
+    }
+
+    // Works out the response for a file that was found; raw is the entry for the file as stored on disk
+    public static FileResponse forFile(String method, String fileName, FileCache.Entry raw, String contentType,
+                                       Map<String, String> requestHeaders, FileCache cache) throws IOException {
+        boolean get = "GET".equals(method);
+        String range = get ? requestHeaders.get("range") : null;
+
+        // Ranges are served from the uncompressed file so offsets mean the same thing to every client
+        FileCache.Entry entry = range == null
+                ? ContentEncoding.select(cache, fileName, raw, contentType, requestHeaders.get("accept-encoding"))
+                : raw;
+
+        String validators = "ETag: " + entry.getETag() + "\r\n"
+                + "Last-Modified: " + entry.getLastModifiedHeader() + "\r\n"
+                + "Accept-Ranges: bytes\r\n"
+                + ContentEncoding.headers(entry, contentType);
+
+        if (isNotModified(requestHeaders, entry)) {
+            return new FileResponse(304, "304 Not Modified", null, -1, validators, Collections.emptyList());
+        }
+
+        long length = entry.getLength();
+        if (range != null && ifRangeMatches(requestHeaders.get("if-range"), entry)) {
+            List<long[]> ranges = parseRanges(range, length);
+            if (ranges != null && ranges.isEmpty()) {
+                return new FileResponse(416, "416 Range Not Satisfiable", null, 0,
+                        validators + "Content-Range: bytes */" + length + "\r\n", Collections.emptyList());
+            }
+            if (ranges != null && ranges.size() == 1) {
+                long[] r = ranges.get(0);
+                return new FileResponse(206, "206 Partial Content", contentType, r[1] - r[0] + 1,
+                        validators + "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + length + "\r\n",
+                        Collections.singletonList(new Segment(entry, r[0], r[1] - r[0] + 1)));
+            }
+            if (ranges != null) {
+                return multipart(entry, contentType, ranges, validators);
+            }
+        }
+
+        List<Segment> body = get ? Collections.singletonList(new Segment(entry, 0, length)) : Collections.emptyList();
+        return new FileResponse(200, "200 OK", contentType, length, validators, body);
+    }
+
+    // Returns true if forFile() can answer from the cache alone, without reading or compressing a file
+    public static boolean isCached(String method, String fileName, FileCache.Entry raw, String contentType,
+                                   Map<String, String> requestHeaders, FileCache cache) {
+        if ("GET".equals(method) && requestHeaders.get("range") != null) return true;
+        return ContentEncoding.isCached(cache, fileName, raw, contentType, requestHeaders.get("accept-encoding"));
+    }
+
+    // Builds a multipart/byteranges body with one part per range
+    private static FileResponse multipart(FileCache.Entry entry, String contentType, List<long[]> ranges, String validators) {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+        long length = entry.getLength();
+        List<Segment> segments = new ArrayList<>();
+        long total = 0;
+        for (long[] r : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            segments.add(new Segment(partHeader));
+            segments.add(new Segment(entry, r[0], r[1] - r[0] + 1));
+            total += partHeader.length + r[1] - r[0] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        segments.add(new Segment(end));
+        total += end.length;
+        return new FileResponse(206, "206 Partial Content", "multipart/byteranges; boundary=" + boundary, total,
+                validators, segments);
+    }
+
+    // Returns true if the client's cached copy is still current. If-None-Match takes precedence over
+    // If-Modified-Since, and both use the weak comparison the spec requires for GET and HEAD.
+    static boolean isNotModified(Map<String, String> requestHeaders, FileCache.Entry entry) {
+        String ifNoneMatch = requestHeaders.get("if-none-match");
+        if (ifNoneMatch != null) {
+            String etag = opaqueTag(entry.getETag());
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if ("*".equals(candidate) || opaqueTag(candidate).equals(etag)) return true;
+            }
+            return false;
+        }
+        long since = parseDate(requestHeaders.get("if-modified-since"));
+        return since >= 0 && entry.getLastModified() / 1000 <= since / 1000;
+    }
+
+    // Returns true if a Range request should be honoured: there is no If-Range, or it names the current
+    // version by strong ETag or exact Last-Modified date
+    static boolean ifRangeMatches(String ifRange, FileCache.Entry entry) {
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(entry.getETag());
+        }
+        long date = parseDate(ifRange);
+        return date >= 0 && date / 1000 == entry.getLastModified() / 1000;
+    }
+
+    // Parses a "bytes=" Range header into inclusive [first, last] pairs clipped to the length.
+    // Returns null if the header is malformed or asks for too many ranges (serve the whole file instead),
+    // or an empty list if none of the ranges overlap the file (416).
+    static List<long[]> parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<long[]> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            try {
+                long first;
+                long last;
+                if (dash == 0) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue;
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        // Open-ended range: from first to the end of the file
+                        last = length - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) return null;
+                        last = Math.min(last, length - 1);
+                    }
+                }
+                if (first < length && first <= last) {
+                    ranges.add(new long[] { first, last });
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    // Removes the weak marker so two tags can be compared weakly
+    private static String opaqueTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    // Parses an HTTP date, returning epoch milliseconds or -1 if it is missing or invalid
+    private static long parseDate(String value) {
+        if (value == null) return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), HTTP_DATE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+}
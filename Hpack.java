@@ -0,0 +1,463 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// HPACK header compression for HTTP/2 (RFC 7541): the static table, one dynamic table per direction and the
+// Huffman code. The decoder is handed a whole header block, since Http2Connection only decodes once the last
+// CONTINUATION frame is in, and returns the fields in the order they were sent. The encoder adds the response
+// headers that repeat from one response to the next, such as server or content-type, to its dynamic table, so later
+// responses send each of them as a single byte; headers that change with every response, like date or etag, go out
+// as literals that leave the table alone. Names and values are ISO-8859-1 strings, one char per byte, the same as
+// RequestParser makes of HTTP/1.x headers.
+final class Hpack {
+
+    // Size of a dynamic table until the other side's SETTINGS_HEADER_TABLE_SIZE says otherwise
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // Thrown for a header block that cannot be decoded; the connection has to be closed with COMPRESSION_ERROR, as
+    // the two dynamic tables no longer agree
+    static final class CompressionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    // The static table (RFC 7541 Appendix A); index 1 is the first entry
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+            { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+            { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+            { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+            { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+            { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+            { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+            { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+            { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+            { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+            { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+            { "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+            { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+            { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" },
+            { "via", "" }, { "www-authenticate", "" }
+    };
+    // Static index of each name, and of each name and value, the lowest one where a name appears more than once
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    // Huffman code of each byte, right-aligned, and its length in bits (RFC 7541 Appendix B)
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+    };
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    };
+    // The end-of-string symbol, which only ever appears as padding
+    private static final int EOS_CODE = 0x3fffffff;
+    private static final int EOS_LENGTH = 30;
+    private static final int EOS = 256;
+    // Decoding tree of the code: the children of node n are TREE[2 n] and TREE[2 n + 1]. A positive child is
+    // another node, and a negative one the leaf ~symbol.
+    private static final int[] TREE = new int[2 * EOS];
+
+    static {
+        for (int i = STATIC_TABLE.length; i > 0; i--) {
+            String[] field = STATIC_TABLE[i - 1];
+            STATIC_NAMES.put(field[0], i);
+            STATIC_FIELDS.put(field[0] + '\0' + field[1], i);
+        }
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = symbol < EOS ? CODES[symbol] : EOS_CODE;
+            int length = symbol < EOS ? LENGTHS[symbol] : EOS_LENGTH;
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (TREE[slot] == 0) TREE[slot] = nodes++;
+                node = TREE[slot];
+            }
+            TREE[2 * node + (code & 1)] = ~symbol;
+        }
+    }
+
+    private Hpack() {
+    }
+
+    // A dynamic table, held in a ring with the field added last at index 0
+    private static final class Table {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        // Slot of the newest field
+        private int first;
+        private int count;
+        // Size as HPACK counts it, and the most it may reach
+        private int size;
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String name(int index) {
+            return names[slot(index)];
+        }
+
+        String value(int index) {
+            return values[slot(index)];
+        }
+
+        int count() {
+            return count;
+        }
+
+        int maxSize() {
+            return maxSize;
+        }
+
+        // Adds a field, evicting the oldest ones to make room; a field larger than the whole table just empties it
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            while (count > 0 && size + entrySize > maxSize) evict();
+            if (entrySize > maxSize) return;
+            if (count == names.length) grow();
+            first = (first - 1) & (names.length - 1);
+            names[first] = name;
+            values[first] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            while (size > maxSize) evict();
+        }
+
+        // Returns the index of a field, or of a field with the name when value is null, or -1
+        int find(String name, String value) {
+            for (int i = 0; i < count; i++) {
+                int slot = slot(i);
+                if (names[slot].equals(name) && (value == null || values[slot].equals(value))) return i;
+            }
+            return -1;
+        }
+
+        private int slot(int index) {
+            return (first + index) & (names.length - 1);
+        }
+
+        private void evict() {
+            int last = slot(count - 1);
+            size -= entrySize(names[last], values[last]);
+            names[last] = null;
+            values[last] = null;
+            count--;
+        }
+
+        private void grow() {
+            String[] grownNames = new String[names.length * 2];
+            String[] grownValues = new String[values.length * 2];
+            for (int i = 0; i < count; i++) {
+                grownNames[i] = names[slot(i)];
+                grownValues[i] = values[slot(i)];
+            }
+            names = grownNames;
+            values = grownValues;
+            first = 0;
+        }
+    }
+
+    // Size of a table entry: the octets of its name and value plus 32 (RFC 7541 4.1)
+    static int entrySize(String name, String value) {
+        return name.length() + value.length() + 32;
+    }
+
+    // Decodes the header blocks of one direction of a connection; not thread-safe
+    static final class Decoder {
+        private final Table table;
+        // The most the encoder may set the table to, which is what this side announced
+        private final int maxTableSize;
+        // Most a decoded header list may add up to, counted like entrySize()
+        private final int maxHeaderListSize;
+
+        // The block being decoded
+        private byte[] in;
+        private int pos;
+        private int end;
+
+        Decoder(int maxTableSize, int maxHeaderListSize) {
+            this.table = new Table(maxTableSize);
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        // Decodes a complete header block into name and value pairs. A list larger than the limit is still decoded
+        // to the end, so the table stays in step, but null is returned instead of it.
+        List<String[]> decode(byte[] block, int length) throws CompressionException {
+            in = block;
+            pos = 0;
+            end = length;
+            List<String[]> fields = new ArrayList<>();
+            long listSize = 0;
+            while (pos < end) {
+                int b = in[pos] & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    // Indexed field
+                    int index = readInt(7);
+                    name = name(index);
+                    value = value(index);
+                } else if ((b & 0x40) != 0) {
+                    // Literal added to the table
+                    int index = readInt(6);
+                    name = index == 0 ? readString() : name(index);
+                    value = readString();
+                    table.add(name, value);
+                } else if ((b & 0x20) != 0) {
+                    // Table size update, only allowed before the first field
+                    if (listSize > 0) throw new CompressionException("Table size update after a header field");
+                    int size = readInt(5);
+                    if (size > maxTableSize) throw new CompressionException("Table size " + size + " over " + maxTableSize);
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    // Literal without indexing, or never indexed
+                    int index = readInt(4);
+                    name = index == 0 ? readString() : name(index);
+                    value = readString();
+                }
+                listSize += entrySize(name, value);
+                if (listSize <= maxHeaderListSize) fields.add(new String[] { name, value });
+            }
+            in = null;
+            return listSize <= maxHeaderListSize ? fields : null;
+        }
+
+        private String name(int index) throws CompressionException {
+            if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1][0];
+            checkDynamic(index);
+            return table.name(index - STATIC_TABLE.length - 1);
+        }
+
+        private String value(int index) throws CompressionException {
+            if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1][1];
+            checkDynamic(index);
+            return table.value(index - STATIC_TABLE.length - 1);
+        }
+
+        private void checkDynamic(int index) throws CompressionException {
+            if (index <= 0 || index - STATIC_TABLE.length > table.count()) {
+                throw new CompressionException("Invalid table index " + index);
+            }
+        }
+
+        // Reads an integer with an N-bit prefix (RFC 7541 5.1); the first byte is known to be there
+        private int readInt(int prefixBits) throws CompressionException {
+            int max = (1 << prefixBits) - 1;
+            long value = in[pos++] & max;
+            if (value < max) return (int) value;
+            for (int shift = 0; shift <= 28; shift += 7) {
+                if (pos >= end) throw new CompressionException("Truncated integer");
+                int b = in[pos++] & 0xff;
+                value += (long) (b & 0x7f) << shift;
+                if (value > Integer.MAX_VALUE) break;
+                if ((b & 0x80) == 0) return (int) value;
+            }
+            throw new CompressionException("Integer too large");
+        }
+
+        // Reads a string literal, Huffman coded or not (RFC 7541 5.2)
+        private String readString() throws CompressionException {
+            if (pos >= end) throw new CompressionException("Truncated header field");
+            boolean huffman = (in[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - pos) throw new CompressionException("String longer than the header block");
+            String s = huffman ? huffmanDecode(in, pos, length) : new String(in, pos, length, StandardCharsets.ISO_8859_1);
+            pos += length;
+            return s;
+        }
+    }
+
+    // Encodes the header blocks of one direction of a connection; not thread-safe
+    static final class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        // Smallest and latest table size set since the last header block, or -1; both have to be announced at the
+        // start of the next block (RFC 7541 4.2)
+        private int smallestUpdate = -1;
+        private int latestUpdate = -1;
+
+        // Applies the other side's SETTINGS_HEADER_TABLE_SIZE. The table never grows past the default, which holds
+        // the few repeated response headers many times over.
+        void setMaxTableSize(long settingsValue) {
+            int size = (int) Math.min(settingsValue, DEFAULT_TABLE_SIZE);
+            if (size == table.maxSize() && latestUpdate < 0) return;
+            smallestUpdate = smallestUpdate < 0 ? size : Math.min(smallestUpdate, size);
+            latestUpdate = size;
+            table.setMaxSize(size);
+        }
+
+        // Starts a header block, writing any table size updates that are due
+        void begin(ByteArrayOutputStream out) {
+            if (latestUpdate < 0) return;
+            if (smallestUpdate < latestUpdate) writeInt(out, 0x20, 5, smallestUpdate);
+            writeInt(out, 0x20, 5, latestUpdate);
+            smallestUpdate = -1;
+            latestUpdate = -1;
+        }
+
+        // Encodes a field; with index set a field that is not in a table yet is added to the dynamic table
+        void encode(ByteArrayOutputStream out, String name, String value, boolean index) {
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            int found = exact != null ? exact : dynamicIndex(table.find(name, value));
+            if (found > 0) {
+                writeInt(out, 0x80, 7, found);
+                return;
+            }
+            Integer staticName = STATIC_NAMES.get(name);
+            int nameIndex = staticName != null ? staticName : dynamicIndex(table.find(name, null));
+            if (index) {
+                writeInt(out, 0x40, 6, Math.max(0, nameIndex));
+            } else {
+                writeInt(out, 0x00, 4, Math.max(0, nameIndex));
+            }
+            if (nameIndex <= 0) writeString(out, name);
+            writeString(out, value);
+            if (index) table.add(name, value);
+        }
+
+        private static int dynamicIndex(int index) {
+            return index < 0 ? -1 : STATIC_TABLE.length + 1 + index;
+        }
+    }
+
+    // Writes an integer with an N-bit prefix, the prefix bits ORed into pattern
+    private static void writeInt(ByteArrayOutputStream out, int pattern, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Writes a string literal, Huffman coded when that is shorter
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += LENGTHS[s.charAt(i) & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength < s.length()) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            huffmanEncode(out, s);
+        } else {
+            writeInt(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i));
+            }
+        }
+    }
+
+    private static void huffmanEncode(ByteArrayOutputStream out, String s) {
+        long pending = 0;
+        int bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int b = s.charAt(i) & 0xff;
+            pending = (pending << LENGTHS[b]) | CODES[b];
+            bits += LENGTHS[b];
+            while (bits >= 8) {
+                bits -= 8;
+                out.write((int) (pending >>> bits));
+            }
+            pending &= (1L << bits) - 1;
+        }
+        // Pad the last byte with the leading bits of EOS, which are all ones
+        if (bits > 0) out.write((int) ((pending << (8 - bits)) | (0xff >>> bits)));
+    }
+
+    // Decodes a Huffman coded string. Padding longer than 7 bits, padding that is not all ones, and EOS itself are
+    // errors (RFC 7541 5.2).
+    static String huffmanDecode(byte[] buf, int from, int length) throws CompressionException {
+        // The shortest code is 5 bits
+        char[] chars = new char[length * 8 / 5];
+        int n = 0;
+        int node = 0;
+        int pendingBits = 0;
+        boolean allOnes = true;
+        for (int i = from; i < from + length; i++) {
+            int b = buf[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = TREE[2 * node + one];
+                if (next < 0) {
+                    if (~next == EOS) throw new CompressionException("EOS in a Huffman coded string");
+                    chars[n++] = (char) ~next;
+                    node = 0;
+                    pendingBits = 0;
+                    allOnes = true;
+                } else {
+                    node = next;
+                    pendingBits++;
+                    allOnes &= one == 1;
+                }
+            }
+        }
+        if (pendingBits > 7 || !allOnes) throw new CompressionException("Invalid Huffman padding");
+        return new String(chars, 0, n);
+    }
+}
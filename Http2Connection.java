@@ -0,0 +1,949 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.*;
+
+// One HTTP/2 connection in cleartext (h2c, RFC 7540), taken over from RequestProcessor after the client sent the
+// connection preface or was switched over by "Upgrade: h2c". The connection's worker thread does all the work: it
+// reads frames, answers each request from the file cache as soon as its headers are complete, and writes the
+// responses' DATA frames in turns across the streams, one frame each, as far as the flow-control windows allow.
+// Input that has already arrived is always read before the next frame is written, so a WINDOW_UPDATE, RST_STREAM or
+// new request is seen between any two frames without a second thread. Requests are answered like GET and HEAD over
+// HTTP/1.1, with the same authentication, rate limits, access log and metrics; other methods get 501.
+public class Http2Connection {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(Http2Connection.class.getCanonicalName());
+    // Set to false to serve HTTP/1.x only: the preface is refused like any unknown method and Upgrade is ignored
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jhttp.h2c", "true"));
+    // Streams a client may have open at once; more are refused with REFUSED_STREAM, which it can safely retry
+    static final int MAX_CONCURRENT_STREAMS = Integer.getInteger("jhttp.h2.maxConcurrentStreams", 100);
+    // Largest header list accepted, counted as HPACK counts table entries
+    static final int MAX_HEADER_LIST_SIZE = RequestParser.MAX_HEAD;
+
+    // The client connection preface; RequestParser reads its first part as a request with method PRI
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int PREFACE_HEAD = 18;
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    // Frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    // Frame flags
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+    // Error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+    private static final int HTTP_1_1_REQUIRED = 0xd;
+    // Settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // Window and frame size every connection starts with, which this side never changes
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+    // Request headers that are only meaningful on a HTTP/1.1 connection and make a HTTP/2 request malformed
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+    // Response headers worth a place in the HPACK table, as they repeat across responses
+    private static final Set<String> INDEXED_HEADERS = new HashSet<>(Arrays.asList(
+            "server", "content-type", "cache-control", "vary", "accept-ranges", "content-encoding", "www-authenticate"));
+
+    // A connection error: the connection is ended with a GOAWAY carrying the code
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    // A request and the response being sent on it
+    private final class Stream {
+        final int id;
+        // Bytes of DATA this side may still send on the stream
+        long window = peerInitialWindow;
+        // True once the client ended its side of the stream
+        boolean remoteClosed;
+        // True while the stream waits in the sendable queue
+        boolean queued;
+        // True once the response is complete; the stream stays open only until the client ends its side
+        boolean answered;
+        String method = "-";
+        String target = "-";
+        long started = System.nanoTime();
+        int status;
+        long bytesSent;
+        // The body still to send: its segments, the current one and the position in it
+        List<FileResponse.Segment> segments;
+        int segment;
+        long offset;
+        // Where a body that is not on the heap is read from: a pinned off-heap buffer or the file
+        ByteBuffer pinned;
+        FileCache.Entry pinnedEntry;
+        FileChannel file;
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        boolean hasBody() {
+            return segments != null && segment < segments.size();
+        }
+
+        // Lets go of whatever the current segment was read from
+        void releaseBody() {
+            if (pinnedEntry != null) {
+                pinnedEntry.releaseBuffer();
+                pinnedEntry = null;
+                pinned = null;
+            }
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Error closing " + segments.get(segment).entry.getPath(), ex);
+                }
+                file = null;
+            }
+        }
+    }
+
+    private final RequestProcessor owner;
+    private final Socket connection;
+    private final RequestParser in;
+    private final OutputStream out;
+    private final PathResolver resolver;
+    private final BasicAuth auth;
+    private final RateLimiter rateLimiter;
+    private final ReverseProxy proxy;
+    private final String indexFileName;
+    private final FileCache cache;
+    private final AccessLog accessLog;
+    private final Metrics metrics;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream(256);
+    // Parses the :path of each request
+    private final RequestParser targets = new RequestParser();
+
+    // Open streams, and the ones with DATA to send and window to send it with, in the order they take turns
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final ArrayDeque<Stream> sendable = new ArrayDeque<>();
+
+    // Frame header being read and written, the payload read, and room for a body read from off-heap or disk
+    private final byte[] frameIn = new byte[9];
+    private final byte[] frameOut = new byte[9];
+    private final byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+    private final byte[] chunk = new byte[DEFAULT_FRAME_SIZE];
+
+    // The client's settings
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private boolean settingsReceived;
+    // Bytes of DATA this side may still send on the connection, and bytes received since the last WINDOW_UPDATE
+    private long sendWindow = DEFAULT_WINDOW;
+    private int received;
+
+    // The header block being put together from HEADERS and CONTINUATION frames, and the stream it belongs to
+    private byte[] block = new byte[4096];
+    private int blockLength;
+    private int blockStream;
+    private boolean blockEndStream;
+
+    // The part of the preface still to be read, highest stream id the client opened, and how the connection ends
+    private int prefaceFrom;
+    private int lastStreamId;
+    private boolean goAwaySent;
+    private boolean goAwayReceived;
+
+    // Constructor for a connection whose requests RequestProcessor has read so far
+    Http2Connection(RequestProcessor owner, Socket connection, RequestParser in, OutputStream out, PathResolver resolver,
+                    BasicAuth auth, RateLimiter rateLimiter, ReverseProxy proxy, String indexFileName, FileCache cache,
+                    AccessLog accessLog, Metrics metrics) {
+        this.owner = owner;
+        this.connection = connection;
+        this.in = in;
+        this.out = out;
+        this.resolver = resolver;
+        this.auth = auth;
+        this.rateLimiter = rateLimiter;
+        this.proxy = proxy;
+        this.indexFileName = indexFileName;
+        this.cache = cache;
+        this.accessLog = accessLog;
+        this.metrics = metrics;
+    }
+
+    // Returns true if a parsed request head is the start of the client connection preface
+    static boolean isPreface(String method, String target, String version, Map<String, String> headers) {
+        return ENABLED && "PRI".equals(method) && "*".equals(target) && "HTTP/2.0".equals(version) && headers.isEmpty();
+    }
+
+    // Returns the settings of a HTTP/1.1 request that asks to switch to h2c (RFC 7540 3.2), or null if it does not
+    // ask or cannot be switched. Only requests without a body are switched, so the request is complete when its
+    // head is and can become the first stream.
+    static byte[] upgradeSettings(String version, String method, Map<String, String> headers) {
+        if (!ENABLED || !"HTTP/1.1".equals(version) || !("GET".equals(method) || "HEAD".equals(method))
+                || !hasToken(headers.get("upgrade"), "h2c") || !hasToken(headers.get("connection"), "upgrade")
+                || !hasToken(headers.get("connection"), "http2-settings") || headers.containsKey("transfer-encoding")
+                || !"0".equals(headers.getOrDefault("content-length", "0"))) {
+            return null;
+        }
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(headers.getOrDefault("http2-settings", "").trim());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static boolean hasToken(String header, String token) {
+        if (header == null) return false;
+        for (String part : header.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) return true;
+        }
+        return false;
+    }
+
+    // Serves a connection that started with the preface, once RequestProcessor has read its first part
+    void runPriorKnowledge() throws IOException {
+        prefaceFrom = PREFACE_HEAD;
+        writeSettings();
+        serve();
+    }
+
+    // Switches a connection over after a HTTP/1.1 request asking for h2c, and serves that request as stream 1
+    void runUpgrade(byte[] settings, String method, String target, Map<String, String> headers, long started)
+            throws IOException {
+        out.write(SWITCHING_PROTOCOLS);
+        writeSettings();
+        prefaceFrom = 0;
+        try {
+            applySettings(settings, settings.length);
+        } catch (ConnectionError ex) {
+            goAway(ex.code, ex.getMessage());
+            return;
+        }
+        lastStreamId = 1;
+        Stream stream = new Stream(1);
+        stream.remoteClosed = true;
+        stream.started = started;
+        streams.put(stream.id, stream);
+        Map<String, String> requestHeaders = new HashMap<>(headers);
+        requestHeaders.keySet().removeAll(CONNECTION_HEADERS);
+        requestHeaders.remove("http2-settings");
+        respond(stream, method, target, requestHeaders);
+        serve();
+    }
+
+    // Reads frames and sends responses until both sides are done with the connection
+    private void serve() throws IOException {
+        try {
+            while (true) {
+                if (owner.isDraining() && !goAwaySent) goAway(NO_ERROR, "Server stopping");
+                if ((goAwaySent || goAwayReceived) && streams.isEmpty()) break;
+
+                // Send the next frame in turn unless the client has something to say first
+                if (sendWindow > 0 && !sendable.isEmpty() && !in.ready()) {
+                    sendData(sendable.poll());
+                    continue;
+                }
+
+                // Nothing can be sent until the client sends more; an idle connection waits up to the keep-alive
+                // timeout, one with responses in progress up to the read timeout for a window to open
+                out.flush();
+                boolean idle = streams.isEmpty();
+                if (idle) {
+                    owner.setIdle(true);
+                    if (owner.isDraining()) continue;
+                }
+                connection.setSoTimeout(idle ? RequestProcessor.KEEP_ALIVE_TIMEOUT : RequestProcessor.READ_TIMEOUT);
+                try {
+                    if (prefaceFrom < PREFACE.length) {
+                        readPreface();
+                    } else if (!readFrame()) {
+                        break;
+                    }
+                } catch (SocketTimeoutException ex) {
+                    if (!idle) throw ex;
+                    logger.fine("Keep-alive timeout for " + connection.getRemoteSocketAddress());
+                    goAway(NO_ERROR, "Idle");
+                    break;
+                } finally {
+                    owner.setIdle(false);
+                }
+            }
+        } catch (ConnectionError ex) {
+            logger.fine("HTTP/2 error from " + connection.getRemoteSocketAddress() + ": " + ex.getMessage());
+            goAway(ex.code, ex.getMessage());
+        } catch (Hpack.CompressionException ex) {
+            logger.fine("HPACK error from " + connection.getRemoteSocketAddress() + ": " + ex.getMessage());
+            goAway(COMPRESSION_ERROR, ex.getMessage());
+        } finally {
+            for (Stream stream : streams.values()) {
+                stream.releaseBody();
+            }
+            streams.clear();
+            sendable.clear();
+        }
+        out.flush();
+    }
+
+    // Reads what is left of the client connection preface
+    private void readPreface() throws IOException {
+        int n = in.read(payload, 0, PREFACE.length - prefaceFrom);
+        if (n < 0) throw new EOFException("Connection closed in the HTTP/2 preface");
+        for (int i = 0; i < n; i++) {
+            if (payload[i] != PREFACE[prefaceFrom + i]) throw new ConnectionError(PROTOCOL_ERROR, "Invalid preface");
+        }
+        prefaceFrom += n;
+    }
+
+    // Reads and handles one frame; returns false if the client closed the connection between frames
+    private boolean readFrame() throws IOException {
+        int n;
+        try {
+            n = in.read(frameIn, 0, frameIn.length);
+        } catch (SocketException ex) {
+            // Clients often drop an idle connection without a GOAWAY
+            if (!streams.isEmpty()) throw ex;
+            logger.fine("Connection reset by " + connection.getRemoteSocketAddress());
+            return false;
+        }
+        if (n < 0) return false;
+        readFully(frameIn, n, frameIn.length);
+        int length = (frameIn[0] & 0xff) << 16 | (frameIn[1] & 0xff) << 8 | (frameIn[2] & 0xff);
+        int type = frameIn[3] & 0xff;
+        int flags = frameIn[4] & 0xff;
+        int streamId = readInt(frameIn, 5) & 0x7fffffff;
+        if (length > DEFAULT_FRAME_SIZE) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        readFully(payload, 0, length);
+
+        // The first frame must be SETTINGS, and a header block must not be interrupted
+        if (!settingsReceived && type != SETTINGS) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Preface not followed by SETTINGS");
+        }
+        if (blockStream != 0 && (type != CONTINUATION || streamId != blockStream)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted");
+        }
+
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, length);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, length);
+                break;
+            case PRIORITY:
+                if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                if (length != 5) resetStream(streamId, FRAME_SIZE_ERROR);
+                break;
+            case RST_STREAM:
+                onReset(streamId, length);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, length);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING:
+                if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+                if (length != 8) throw new ConnectionError(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+                if ((flags & ACK) == 0) {
+                    writeFrameHeader(8, PING, ACK, 0);
+                    out.write(payload, 0, 8);
+                }
+                break;
+            case GOAWAY:
+                if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+                if (length < 8) throw new ConnectionError(FRAME_SIZE_ERROR, "GOAWAY of " + length + " bytes");
+                goAwayReceived = true;
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            case CONTINUATION:
+                if (blockStream == 0) throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                appendBlock(0, length);
+                if ((flags & END_HEADERS) != 0) endBlock();
+                break;
+            default:
+                // Unknown frame types are ignored
+                break;
+        }
+        return true;
+    }
+
+    private void readFully(byte[] b, int from, int to) throws IOException {
+        while (from < to) {
+            int n = in.read(b, from, to - from);
+            if (n < 0) throw new EOFException("Connection closed in the middle of a frame");
+            from += n;
+        }
+    }
+
+    // Request bodies are not used by any response, so DATA is discarded and the windows opened again right away
+    private void onData(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        if (streamId > lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+        received += length;
+        if (received > DEFAULT_WINDOW) throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        if (received >= DEFAULT_WINDOW / 2) {
+            writeWindowUpdate(0, received);
+            received = 0;
+        }
+        if ((flags & PADDED) != 0 && (length == 0 || (payload[0] & 0xff) >= length)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds the frame");
+        }
+
+        // DATA for a stream that was reset may still be on its way, and is dropped
+        Stream stream = streams.get(streamId);
+        if (stream == null) return;
+        if (stream.remoteClosed) {
+            resetStream(streamId, STREAM_CLOSED);
+            return;
+        }
+        if ((flags & END_STREAM) != 0) {
+            endRemote(stream);
+        } else if (length > 0) {
+            writeWindowUpdate(streamId, length);
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        int from = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            if (length == 0) throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds the frame");
+            end -= payload[0] & 0xff;
+            from = 1;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            if (from + 5 <= end && (readInt(payload, from) & 0x7fffffff) == streamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Stream " + streamId + " depends on itself");
+            }
+            from += 5;
+        }
+        if (end < from) throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds the frame");
+
+        // A new stream has an odd id above every earlier one; HEADERS on an open stream are trailers
+        if (!streams.containsKey(streamId)) {
+            if ((streamId & 1) == 0 || streamId <= lastStreamId) {
+                throw new ConnectionError(streamId <= lastStreamId ? STREAM_CLOSED : PROTOCOL_ERROR,
+                        "HEADERS on stream " + streamId);
+            }
+            lastStreamId = streamId;
+        }
+        blockStream = streamId;
+        blockEndStream = (flags & END_STREAM) != 0;
+        blockLength = 0;
+        appendBlock(from, end - from);
+        if ((flags & END_HEADERS) != 0) endBlock();
+    }
+
+    private void appendBlock(int from, int length) throws IOException {
+        if (blockLength + length > MAX_HEADER_LIST_SIZE) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block over " + MAX_HEADER_LIST_SIZE + " bytes");
+        }
+        if (blockLength + length > block.length) {
+            block = Arrays.copyOf(block, Math.max(blockLength + length, block.length * 2));
+        }
+        System.arraycopy(payload, from, block, blockLength, length);
+        blockLength += length;
+    }
+
+    // Decodes a complete header block and starts the request, or takes it as the trailers of an open stream
+    private void endBlock() throws IOException {
+        int streamId = blockStream;
+        boolean endStream = blockEndStream;
+        blockStream = 0;
+        List<String[]> fields = decoder.decode(block, blockLength);
+
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            if (!endStream || stream.remoteClosed) {
+                resetStream(streamId, PROTOCOL_ERROR);
+            } else {
+                endRemote(stream);
+            }
+            return;
+        }
+        if (goAwaySent) return;
+        if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        stream = new Stream(streamId);
+        stream.remoteClosed = endStream;
+        streams.put(streamId, stream);
+        if (fields == null) {
+            respondPage(stream, "431 Request Header Fields Too Large", "Too many headers", null, null);
+            return;
+        }
+
+        // Split the pseudo-headers from the rest and check the request is well formed (RFC 7540 8.1.2)
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        boolean regular = false;
+        boolean malformed = false;
+        Map<String, String> headers = new HashMap<>();
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            if (name.startsWith(":")) {
+                malformed |= regular;
+                if (":method".equals(name) && method == null) {
+                    method = value;
+                } else if (":scheme".equals(name) && scheme == null) {
+                    scheme = value;
+                } else if (":path".equals(name) && path == null) {
+                    path = value;
+                } else if (":authority".equals(name) && authority == null) {
+                    authority = value;
+                } else {
+                    malformed = true;
+                }
+                continue;
+            }
+            regular = true;
+            malformed |= !isLowerCase(name) || CONNECTION_HEADERS.contains(name)
+                    || ("te".equals(name) && !"trailers".equals(value));
+            headers.merge(name, value, (previous, next) -> previous + ("cookie".equals(name) ? "; " : ", ") + next);
+        }
+        if (malformed || method == null || scheme == null || path == null || path.isEmpty()) {
+            logger.fine("Malformed request on stream " + streamId + " from " + connection.getRemoteSocketAddress());
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        if (authority != null) headers.putIfAbsent("host", authority);
+        respond(stream, method, path, headers);
+    }
+
+    private static boolean isLowerCase(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') return false;
+        }
+        return !name.isEmpty();
+    }
+
+    private void onReset(int streamId, int length) throws IOException {
+        if (length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Stream stream = streams.remove(streamId);
+        if (stream != null && !stream.answered) finish(stream);
+    }
+
+    private void onSettings(int flags, int streamId, int length) throws IOException {
+        if (streamId != 0) throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+        if ((flags & ACK) != 0) {
+            if (length != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+            return;
+        }
+        if (length % 6 != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        applySettings(payload, length);
+        settingsReceived = true;
+        writeFrameHeader(0, SETTINGS, ACK, 0);
+    }
+
+    // Applies the client's settings from a SETTINGS payload or the HTTP2-Settings header
+    private void applySettings(byte[] buf, int length) throws IOException {
+        for (int i = 0; i < length; i += 6) {
+            int id = (buf[i] & 0xff) << 8 | (buf[i + 1] & 0xff);
+            long value = readInt(buf, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize(value);
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) throw new ConnectionError(PROTOCOL_ERROR, "ENABLE_PUSH of " + value);
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) throw new ConnectionError(FLOW_CONTROL_ERROR, "Window of " + value);
+                    // The change applies to the windows of the open streams as well
+                    long delta = value - peerInitialWindow;
+                    peerInitialWindow = (int) value;
+                    for (Stream stream : streams.values()) {
+                        stream.window += delta;
+                        if (stream.window > MAX_WINDOW) {
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "Window of stream " + stream.id + " overflowed");
+                        }
+                        schedule(stream);
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "MAX_FRAME_SIZE of " + value);
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS and MAX_HEADER_LIST_SIZE limit what this side opens and sends in
+                    // requests, which it never does; unknown settings are ignored
+                    break;
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            sendWindow += increment;
+            if (sendWindow > MAX_WINDOW) throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflowed");
+            return;
+        }
+        if (streamId > lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+        Stream stream = streams.get(streamId);
+        if (stream == null) return;
+        stream.window += increment;
+        if (increment == 0 || stream.window > MAX_WINDOW) {
+            resetStream(streamId, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+            return;
+        }
+        schedule(stream);
+    }
+
+    // Puts a stream with a body to send in line, if its window allows and it is not in line already
+    private void schedule(Stream stream) {
+        if (!stream.queued && stream.window > 0 && stream.hasBody()) {
+            stream.queued = true;
+            sendable.add(stream);
+        }
+    }
+
+    // Answers a request the way RequestProcessor answers GET and HEAD, from the file cache
+    private void respond(Stream stream, String method, String target, Map<String, String> headers) throws IOException {
+        stream.method = method;
+        stream.target = target;
+        String path;
+        try {
+            path = targets.parseTarget(target);
+        } catch (RequestParser.BadRequestException ex) {
+            respondPage(stream, ex.getStatusLine(), ex.getMessage(), null, null);
+            return;
+        }
+        logger.fine(connection.getRemoteSocketAddress() + " " + method + " " + target + " on stream " + stream.id);
+
+        long wait = rateLimiter.acquire(connection.getInetAddress(), path);
+        if (wait > 0) {
+            respondPage(stream, "429 Too Many Requests", "Slow down",
+                    "retry-after", Long.toString(RateLimiter.retryAfterSeconds(wait)));
+            return;
+        }
+        // The proxy forwards HTTP/1.1 exchanges only; the client is asked to send the request again over HTTP/1.1
+        if (proxy.route(method, path) != null) {
+            resetStream(stream.id, HTTP_1_1_REQUIRED);
+            return;
+        }
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            respondPage(stream, "501 Not Implemented", "Not Implemented", null, null);
+            return;
+        }
+
+        // The reserved metrics path is answered with the server's metrics rather than a file
+        if (!Metrics.PATH.isEmpty() && Metrics.PATH.equals(path)) {
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            respondBytes(stream, "200 OK", Metrics.CONTENT_TYPE, body, "Cache-Control: no-store\r\n");
+            return;
+        }
+
+        String fileName = path.endsWith("/") ? path + indexFileName : path;
+        String contentType = URLConnection.getFileNameMap().getContentTypeFor(fileName);
+        FileCache.Entry entry = RequestProcessor.loadFile(resolver, fileName, cache);
+        if (entry == null) {
+            respondPage(stream, "404 File Not Found", "File Not Found", null, null);
+            return;
+        }
+        if (auth.isProtected(entry.getPath()) && auth.authenticate(headers.get("authorization")) == null) {
+            respondBytes(stream, "401 Unauthorized", "text/html; charset=utf-8", page("401 Unauthorized", "Unauthorized"),
+                    auth.getChallenge());
+            return;
+        }
+
+        FileResponse response = FileResponse.forFile(method, fileName, entry, contentType, headers, cache);
+        long length = 0;
+        for (FileResponse.Segment segment : response.segments) {
+            length += segment.length;
+        }
+        writeHeaders(stream, response.statusLine, response.contentType, response.contentLength, response.headers,
+                length == 0);
+        startBody(stream, length == 0 ? null : response.segments);
+    }
+
+    // Answers with a short HTML page and, when name is not null, one extra header
+    private void respondPage(Stream stream, String statusLine, String message, String name, String value)
+            throws IOException {
+        String extraHeaders = name != null ? name + ": " + value + "\r\n" : "";
+        respondBytes(stream, statusLine, "text/html; charset=utf-8", page(statusLine, message), extraHeaders);
+    }
+
+    private static byte[] page(String statusLine, String message) {
+        return ("<HTML><HEAD><TITLE>" + statusLine.substring(4) + "</TITLE></HEAD><BODY>"
+                + "<H1>HTTP Error " + statusLine + "</H1><p>" + message + "</p></BODY></HTML>")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void respondBytes(Stream stream, String statusLine, String contentType, byte[] body, String extraHeaders)
+            throws IOException {
+        boolean empty = "HEAD".equals(stream.method) || body.length == 0;
+        writeHeaders(stream, statusLine, contentType, body.length, extraHeaders, empty);
+        startBody(stream, empty ? null : Collections.singletonList(new FileResponse.Segment(body)));
+    }
+
+    // Sends the response headers as a HEADERS frame, followed by CONTINUATION frames if they do not fit in one
+    private void writeHeaders(Stream stream, String statusLine, String contentType, long contentLength,
+                              String extraHeaders, boolean endStream) throws IOException {
+        stream.status = ResponseHeaders.statusCode(statusLine);
+        headerBlock.reset();
+        encoder.begin(headerBlock);
+        encoder.encode(headerBlock, ":status", statusLine.substring(0, 3), false);
+        encoder.encode(headerBlock, "server", "JHTTP 2.0", true);
+        encoder.encode(headerBlock, "date", ResponseHeaders.date(), false);
+        if (contentType != null) encoder.encode(headerBlock, "content-type", contentType, true);
+        if (contentLength >= 0) encoder.encode(headerBlock, "content-length", Long.toString(contentLength), false);
+
+        // Extra headers come as HTTP/1.1 lines; HTTP/2 wants lower-case names and no connection headers
+        int start = 0;
+        while (start < extraHeaders.length()) {
+            int end = extraHeaders.indexOf("\r\n", start);
+            if (end < 0) end = extraHeaders.length();
+            int colon = extraHeaders.indexOf(':', start);
+            if (colon > start && colon < end) {
+                String name = extraHeaders.substring(start, colon).trim().toLowerCase(Locale.ROOT);
+                String value = extraHeaders.substring(colon + 1, end).trim();
+                if (!CONNECTION_HEADERS.contains(name)) {
+                    encoder.encode(headerBlock, name, value, INDEXED_HEADERS.contains(name));
+                }
+            }
+            start = end + 2;
+        }
+
+        byte[] encoded = headerBlock.toByteArray();
+        int from = 0;
+        do {
+            int n = Math.min(peerMaxFrameSize, encoded.length - from);
+            int flags = from + n == encoded.length ? END_HEADERS : 0;
+            if (from == 0) {
+                writeFrameHeader(n, HEADERS, flags | (endStream ? END_STREAM : 0), stream.id);
+            } else {
+                writeFrameHeader(n, CONTINUATION, flags, stream.id);
+            }
+            out.write(encoded, from, n);
+            from += n;
+        } while (from < encoded.length);
+        metrics.recordFirstByte(System.nanoTime() - stream.started);
+    }
+
+    // Puts a stream's body in line to be sent, or finishes the stream if there is none
+    private void startBody(Stream stream, List<FileResponse.Segment> segments) throws IOException {
+        if (segments == null) {
+            finish(stream);
+            return;
+        }
+        stream.segments = segments;
+        schedule(stream);
+    }
+
+    // Sends one DATA frame of a stream's body, as much as the windows and frame size allow and no more than the
+    // current segment, and puts the stream back in line if it has more to send and window left
+    private void sendData(Stream stream) throws IOException {
+        stream.queued = false;
+        FileResponse.Segment segment = stream.segments.get(stream.segment);
+        long left = segment.length - stream.offset;
+        int n = (int) Math.min(Math.min(left, Math.min(peerMaxFrameSize, chunk.length)),
+                Math.min(stream.window, sendWindow));
+        // A SETTINGS frame may have shrunk the window since the stream was put in line
+        if (n <= 0 && left > 0) return;
+        boolean last = n == left && stream.segment == stream.segments.size() - 1;
+
+        byte[] data;
+        int from;
+        if (segment.bytes != null) {
+            data = segment.bytes;
+            from = (int) stream.offset;
+        } else if (segment.entry.getData() != null) {
+            data = segment.entry.getData();
+            from = (int) (segment.offset + stream.offset);
+        } else {
+            if (!readBody(stream, segment, n)) {
+                logger.warning("File truncated while sending " + segment.entry.getPath());
+                resetStream(stream.id, INTERNAL_ERROR);
+                return;
+            }
+            data = chunk;
+            from = 0;
+        }
+        writeFrameHeader(n, DATA, last ? END_STREAM : 0, stream.id);
+        out.write(data, from, n);
+        stream.offset += n;
+        stream.bytesSent += n;
+        stream.window -= n;
+        sendWindow -= n;
+
+        if (stream.offset == segment.length) {
+            stream.releaseBody();
+            stream.segment++;
+            stream.offset = 0;
+        }
+        if (last) {
+            finish(stream);
+        } else {
+            schedule(stream);
+        }
+    }
+
+    // Reads the next n bytes of a segment that is not on the heap into chunk: from the off-heap buffer, pinned for as
+    // long as the segment is being sent, or from disk if there is none. Returns false if the file came up short.
+    private boolean readBody(Stream stream, FileResponse.Segment segment, int n) throws IOException {
+        long position = segment.offset + stream.offset;
+        if (stream.pinned == null && stream.file == null) {
+            stream.pinned = segment.entry.acquireBuffer();
+            if (stream.pinned != null) {
+                stream.pinnedEntry = segment.entry;
+            } else {
+                stream.file = FileChannel.open(segment.entry.getPath(), StandardOpenOption.READ);
+            }
+        }
+        if (stream.pinned != null) {
+            stream.pinned.clear().position((int) position);
+            stream.pinned.get(chunk, 0, n);
+            return true;
+        }
+        ByteBuffer target = ByteBuffer.wrap(chunk, 0, n);
+        while (target.hasRemaining()) {
+            if (stream.file.read(target, position + target.position()) < 0) return false;
+        }
+        return true;
+    }
+
+    // Ends a stream's response: it is complete or the client reset the stream. The request goes to the access log
+    // and the metrics. A stream whose client is still sending a request body stays open, and the rest of the body is
+    // read and dropped, as some clients take a reset to mean the response is lost.
+    private void finish(Stream stream) {
+        stream.answered = true;
+        if (stream.queued) sendable.remove(stream);
+        stream.releaseBody();
+        if (stream.remoteClosed) streams.remove(stream.id);
+
+        long latency = System.nanoTime() - stream.started;
+        accessLog.log(remoteAddress(), stream.method, stream.target, stream.status, stream.bytesSent, latency);
+        metrics.recordRequest(stream.method, stream.status, stream.bytesSent, latency);
+    }
+
+    // The client ended its side of a stream; an answered stream is done with
+    private void endRemote(Stream stream) {
+        stream.remoteClosed = true;
+        if (stream.answered) streams.remove(stream.id);
+    }
+
+    // Resets a stream; one that was open is dropped without being logged, as it got no response
+    private void resetStream(int streamId, int code) throws IOException {
+        Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            if (stream.queued) sendable.remove(stream);
+            stream.releaseBody();
+        }
+        writeFrameHeader(4, RST_STREAM, 0, streamId);
+        writeInt(code);
+    }
+
+    private void writeSettings() throws IOException {
+        writeFrameHeader(12, SETTINGS, 0, 0);
+        writeSetting(SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        writeSetting(SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+    }
+
+    private void writeSetting(int id, int value) throws IOException {
+        out.write(id >>> 8);
+        out.write(id);
+        writeInt(value);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrameHeader(4, WINDOW_UPDATE, 0, streamId);
+        writeInt(increment);
+    }
+
+    // Tells the client the connection is ending and which of its streams were or will be processed
+    private void goAway(int code, String message) throws IOException {
+        logger.fine("GOAWAY to " + connection.getRemoteSocketAddress() + ": " + message);
+        goAwaySent = true;
+        writeFrameHeader(8, GOAWAY, 0, 0);
+        writeInt(lastStreamId);
+        writeInt(code);
+        out.flush();
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+        frameOut[0] = (byte) (length >>> 16);
+        frameOut[1] = (byte) (length >>> 8);
+        frameOut[2] = (byte) length;
+        frameOut[3] = (byte) type;
+        frameOut[4] = (byte) flags;
+        frameOut[5] = (byte) (streamId >>> 24);
+        frameOut[6] = (byte) (streamId >>> 16);
+        frameOut[7] = (byte) (streamId >>> 8);
+        frameOut[8] = (byte) streamId;
+        out.write(frameOut);
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(byte[] buf, int from) {
+        return (buf[from] & 0xff) << 24 | (buf[from + 1] & 0xff) << 16 | (buf[from + 2] & 0xff) << 8 | (buf[from + 3] & 0xff);
+    }
+
+    private String remoteAddress() {
+        InetAddress address = connection.getInetAddress();
+        return address != null ? address.getHostAddress() : "-";
+    }
+}
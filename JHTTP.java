@@ -1,14 +1,16 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.*;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.logging.*;
-import javax.swing.SwingUtilities;
 
-public class JHTTP {
+public class JHTTP implements Server {
 
     // Logger for logging messages
     private static final Logger logger = Logger.getLogger(JHTTP.class.getCanonicalName());
@@ -16,17 +18,86 @@ public class JHTTP {
     private static final int NUM_THREADS = 50;
     // Default file to serve if the requested file is a directory
     private static final String INDEX_FILE = "index.html";
+    // Execution engine chosen at startup: "pool" (blocking thread pool), "virtual" (one virtual thread
+    // per connection) or "nio" (selector event loops)
+    private static final String MODE = System.getProperty("jhttp.mode", "pool");
+    // Where cached file bodies live: "heap" (byte arrays) or "offheap" (direct buffers, outside the Java heap)
+    private static final String STORE = System.getProperty("jhttp.store", "heap");
+    // Most bytes the off-heap store may hold at once
+    private static final long OFFHEAP_MAX_BYTES = Long.getLong("jhttp.offheap.maxBytes", 256L * 1024 * 1024);
+    // Byte budget for file contents held in the cache, by default the whole off-heap budget when that store is used
+    private static final long CACHE_MAX_BYTES = Long.getLong("jhttp.cache.maxBytes",
+            "offheap".equals(STORE) ? OFFHEAP_MAX_BYTES : 64L * 1024 * 1024);
+    // Files larger than this many bytes skip the cache and are sent from disk with FileChannel.transferTo
+    private static final long SENDFILE_THRESHOLD = Long.getLong("jhttp.sendfile.threshold", 256L * 1024);
+    // Access log file, ring buffer size, how often the writer flushes, whether it fsyncs ("never" or "batch"),
+    // and when the file is rotated (0 turns size or time rotation off)
+    private static final String ACCESS_LOG_FILE = System.getProperty("jhttp.accessLog.file", "connection_log.txt");
+    private static final int ACCESS_LOG_CAPACITY = Integer.getInteger("jhttp.accessLog.capacity", 65536);
+    private static final long ACCESS_LOG_FLUSH_MILLIS = Long.getLong("jhttp.accessLog.flushMillis", 1000);
+    private static final String ACCESS_LOG_FSYNC = System.getProperty("jhttp.accessLog.fsync", "never");
+    private static final long ACCESS_LOG_ROTATE_BYTES = Long.getLong("jhttp.accessLog.rotateBytes", 64L * 1024 * 1024);
+    private static final long ACCESS_LOG_ROTATE_MINUTES = Long.getLong("jhttp.accessLog.rotateMinutes", 0);
+    // Number of selector loops used by the NIO engine, one per core by default
+    private static final int NIO_LOOPS = Integer.getInteger("jhttp.nio.loops", Runtime.getRuntime().availableProcessors());
+    // Threads the NIO engine reads uncached files and checks passwords on, so its loops never wait for either
+    private static final int NIO_WORKERS = Integer.getInteger("jhttp.nio.workers", 4);
+    // Run without the admin UI, so AWT is never loaded; on by default when java.awt.headless is set or, on Unix
+    // systems other than macOS, when there is no display to open a window on
+    private static final boolean HEADLESS = Boolean.parseBoolean(System.getProperty("jhttp.headless",
+            String.valueOf(Boolean.getBoolean("java.awt.headless") || noDisplay())));
+    // Number of threads accepting connections in pool and virtual mode. Each gets its own listening socket bound with
+    // SO_REUSEPORT, so the kernel spreads new connections across them; without SO_REUSEPORT they share one socket.
+    private static final int ACCEPTORS = Math.max(1, Integer.getInteger("jhttp.acceptors", 1));
+    // Length of the queue of connections the kernel has completed but no acceptor has taken yet
+    private static final int BACKLOG = Integer.getInteger("jhttp.backlog", 1024);
+    // How long stop() lets requests in progress finish before closing their connections
+    private static final long DRAIN_MILLIS = Long.getLong("jhttp.drain.millis", 30000);
+    // How often the cache and metrics summary is logged, 0 to turn it off
+    private static final long REPORT_SECONDS = Long.getLong("jhttp.report.seconds", 60);
+    // Optional startup phase: index the document root in parallel and preload the cache before accepting connections
+    private static final boolean INDEX = Boolean.getBoolean("jhttp.index");
+    // Snapshot of the index and of the hottest cache keys, read at startup and written again when the server stops
+    private static final String INDEX_SNAPSHOT = System.getProperty("jhttp.index.snapshot", "docroot-index.bin");
+    // Most bytes of files preloaded into the cache at startup
+    private static final long WARMUP_MAX_BYTES = Long.getLong("jhttp.warmup.maxBytes", CACHE_MAX_BYTES / 2);
+    // Threads walking the document root and preloading files; most of their time is spent waiting on the disk
+    private static final int INDEX_PARALLELISM = Integer.getInteger("jhttp.index.parallelism",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    // Most hot cache keys saved with the snapshot
+    private static final int HOT_LIST_SIZE = 1000;
+    // User file for Basic authentication and signups, relative to the document root unless absolute
+    private static final String USER_FILE = System.getProperty("jhttp.auth.userFile", "user.txt");
 
     private final File rootDirectory;
     private final int port;
 
-    // Server socket, thread pool, and flag to track server status
-    private ServerSocket serverSocket;
+    // Listening sockets, thread pool, and flag to track server status
+    private final List<ServerSocketChannel> serverChannels = new CopyOnWriteArrayList<>();
     private ExecutorService pool;
-    private boolean isRunning;
+    private NioServer nioServer;
+    private volatile boolean isRunning;
+    // Connections accepted by the pool engine and not yet closed, so stop() can drain them
+    private final Set<RequestProcessor> connections = ConcurrentHashMap.newKeySet();
 
-    // Cache map to store frequently requested files in memory
-    private Map<String, byte[]> cacheMap = new HashMap<>();
+    // Bounded cache of frequently requested files, shared by all request threads
+    private final FileCache cache;
+    // Request path to file lookups, remembered until the files change; holds the canonical document root
+    private final PathResolver resolver;
+    // Basic authentication for the protected paths, against the users in USER_FILE
+    private final BasicAuth auth;
+    // Access log written in the background, one line per request
+    private final AccessLog accessLog;
+    // Request, connection and latency metrics shared by both engines
+    private final Metrics metrics = new Metrics();
+    // Per-client connection limits and load shedding, shared by both engines
+    private final AdmissionControl admission = new AdmissionControl();
+    // Per-client request rates by path prefix, shared by both engines
+    private final RateLimiter rateLimiter = new RateLimiter();
+    // Backends for the proxied path prefixes, with their pooled connections; used by the pool and virtual engines
+    private final ReverseProxy proxy = new ReverseProxy();
+    // Index of the document root built at startup, or null if indexing is off or failed
+    private volatile DocrootIndex index;
 
     // Constructor initializes the web server with a document root directory and a port number
     public JHTTP(File rootDirectory, int port) throws IOException {
@@ -36,83 +107,424 @@ public class JHTTP {
         }
         this.rootDirectory = rootDirectory;
         this.port = port;
+        OffHeapStore store = "offheap".equals(STORE) ? new OffHeapStore(OFFHEAP_MAX_BYTES) : null;
+        this.cache = new FileCache(rootDirectory, CACHE_MAX_BYTES, SENDFILE_THRESHOLD, store);
+        this.resolver = new PathResolver(rootDirectory.toPath());
+        // Changes seen by the cache's watcher also reach the remembered lookups
+        cache.addInvalidationListener(resolver::invalidate);
+        // The user file is never served, even when it sits in the document root
+        Path userFile = rootDirectory.toPath().resolve(USER_FILE);
+        resolver.hide(userFile);
+        // Nor is the index snapshot, which lists every path in it and is written to the working directory by default
+        resolver.hide(Paths.get(INDEX_SNAPSHOT));
+        this.auth = new BasicAuth(new UserStore(userFile), resolver, BasicAuth.PROTECT);
+        this.accessLog = new AccessLog(Paths.get(ACCESS_LOG_FILE), ACCESS_LOG_CAPACITY, ACCESS_LOG_FLUSH_MILLIS,
+                AccessLog.FsyncPolicy.valueOf(ACCESS_LOG_FSYNC.toUpperCase()), ACCESS_LOG_ROTATE_BYTES,
+                TimeUnit.MINUTES.toMillis(ACCESS_LOG_ROTATE_MINUTES));
+
+        // Components that keep their own counters are read by the metrics when they are exported
+        metrics.counter("jhttp_cache_hits_total", "File cache hits.", cache::getHits);
+        metrics.counter("jhttp_cache_misses_total", "File cache misses.", cache::getMisses);
+        metrics.counter("jhttp_cache_evictions_total", "Files evicted from the cache to stay within its budget.", cache::getEvictions);
+        metrics.counter("jhttp_cache_invalidations_total", "Cached files dropped because they changed on disk.", cache::getInvalidations);
+        metrics.gauge("jhttp_cache_entries", "Files in the cache.", cache::size);
+        metrics.gauge("jhttp_cache_bytes", "Bytes of file content held by the cache.", cache::weightedSize);
+        metrics.counter("jhttp_path_lookups_total", "Request paths looked up on the file system.", resolver::getLookups);
+        metrics.counter("jhttp_path_negative_hits_total", "Requests for missing files answered from memory.", resolver::getNegativeHits);
+        metrics.gauge("jhttp_path_entries", "Request paths remembered as found or not found.", resolver::size);
+        metrics.counter("jhttp_access_log_dropped_total", "Access log lines dropped because the buffer was full.", accessLog::getDropped);
+        metrics.counter("jhttp_shed_queue_full_total", "Connections answered 503 because the work queue was full.",
+                () -> admission.getShed(AdmissionControl.Reason.QUEUE_FULL));
+        metrics.counter("jhttp_shed_queue_timeout_total", "Connections answered 503 because they waited too long in the queue.",
+                () -> admission.getShed(AdmissionControl.Reason.QUEUE_TIMEOUT));
+        metrics.counter("jhttp_shed_per_ip_total", "Connections answered 503 because their client had too many open.",
+                () -> admission.getShed(AdmissionControl.Reason.PER_IP_LIMIT));
+        metrics.counter("jhttp_auth_verifications_total", "Passwords checked against their hash.", auth::getVerifications);
+        metrics.counter("jhttp_auth_cache_hits_total", "Requests let through on an already verified Authorization header.", auth::getCacheHits);
+        metrics.counter("jhttp_auth_failures_total", "Authorization headers refused.", auth::getFailures);
+        metrics.counter("jhttp_auth_reloads_total", "Times the user file was loaded.", auth.getUsers()::getReloads);
+        metrics.gauge("jhttp_auth_users", "Users in the credential index.", auth.getUsers()::size);
+        metrics.counter("jhttp_rate_limited_requests_total", "Requests answered 429 because their client was over its rate limit.",
+                rateLimiter::getLimitedRequests);
+        metrics.counter("jhttp_rate_limited_connections_total", "Connections answered 429 before their request was read.",
+                rateLimiter::getLimitedConnections);
+        metrics.counter("jhttp_rate_limit_overflow_total", "Requests from new clients counted against a shared bucket because the buckets were full.",
+                rateLimiter::getOverflowed);
+        metrics.gauge("jhttp_rate_limit_buckets", "Client buckets held by the rate limiter.", rateLimiter::size);
+        metrics.gauge("jhttp_client_addresses", "Client addresses with open connections.", admission::addresses);
+        metrics.counter("jhttp_proxy_requests_total", "Requests forwarded to a backend.", proxy::getRequests);
+        metrics.counter("jhttp_proxy_connections_opened_total", "Connections opened to backends.", proxy::getConnectionsOpened);
+        metrics.counter("jhttp_proxy_connections_reused_total", "Requests sent on a pooled backend connection.", proxy::getConnectionsReused);
+        metrics.counter("jhttp_proxy_failures_total", "Backend connect errors, timeouts, broken responses and 502/503/504 answers.",
+                proxy::getFailures);
+        metrics.counter("jhttp_proxy_ejections_total", "Times a backend was left out after failing repeatedly.", proxy::getEjections);
+        metrics.gauge("jhttp_proxy_idle_connections", "Idle pooled connections to backends.", proxy::idleConnections);
+        metrics.gauge("jhttp_proxy_ejected_backends", "Backends currently left out.", proxy::ejectedBackends);
     }
 
     // Getter method for checking if the server is running
+    @Override
     public boolean isRunning() {
         return isRunning;
     }
 
             
+    // Getter method for the server's metrics
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Getter method for the document root index, null unless jhttp.index is on
+    public DocrootIndex getIndex() {
+        return index;
+    }
+
+    // Getter method for the access log file the admin UI tails
+    public Path getAccessLogFile() {
+        return accessLog.getFile();
+    }
+
     // Getter method for getting the port number
     public int getPort() {
         return port;
     }
 
-    // Logs information about incoming connections, including remote address and timestamp
-    private void logConnection(Socket request) {
-        try {
-            // Create a log entry and append it to the connection_log.txt file
-            String logEntry = "Connection from: " + request.getRemoteSocketAddress() + " at " + new Date() + "\n";
-            Files.write(Paths.get("connection_log.txt"), logEntry.getBytes(), StandardOpenOption.APPEND);
+    // Logs information about the cache: entries, bytes used against the budget, and hit/miss/eviction counts
+    private void logCacheInfo() {
+        logger.info("Cache Size: " + cache.size() + " files, " + cache.weightedSize() + " of " + cache.getMaxBytes()
+                + " bytes, hits: " + cache.getHits() + ", misses: " + cache.getMisses()
+                + ", evictions: " + cache.getEvictions() + ", invalidations: " + cache.getInvalidations());
+    }
+
+    // Logs request totals and latency percentiles alongside the cache information
+    private void logMetrics() {
+        long[] total = metrics.getTotal().snapshot();
+        logger.info("Requests: " + metrics.getRequests() + ", open connections: " + metrics.getActiveConnections()
+                + ", bytes sent: " + metrics.getBytesSent()
+                + ", request time p50/p99: " + LatencyHistogram.percentile(total, 0.50) + "/"
+                + LatencyHistogram.percentile(total, 0.99) + " us");
+        logCacheInfo();
+    }
+
+    // Starts a daemon thread that logs the cache and metrics summary every REPORT_SECONDS, or returns null if
+    // reporting is turned off
+    private ScheduledExecutorService startReporting() {
+        if (REPORT_SECONDS <= 0) return null;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jhttp-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            try {
+                logMetrics();
+            } catch (RuntimeException ex) {
+                // An exception would cancel the schedule, so log it and keep reporting
+                logger.log(Level.WARNING, "Error logging server statistics", ex);
+            }
+        }, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    // Returns true on a Unix system, other than macOS, with no X11 or Wayland display set
+    private static boolean noDisplay() {
+        String os = System.getProperty("os.name", "").toLowerCase();
+        if (os.startsWith("windows") || os.startsWith("mac")) return false;
+        return System.getenv("DISPLAY") == null && System.getenv("WAYLAND_DISPLAY") == null;
+    }
+
+    // Starts the web server, accepts incoming connections, and processes them using a thread pool; returns
+    // when the server stops
+    @Override
+    public void start() throws IOException {
+        // Drop cached files as soon as they change on disk
+        cache.watch();
+        // Start the access log writer. When the JVM is asked to exit, drain the connections first and then let the
+        // writer write out what is buffered, so a restart neither cuts off requests nor loses their log lines.
+        accessLog.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stop();
+            accessLog.close();
+        }, "jhttp-shutdown"));
+
+        // Index the document root and warm the cache before the first connection arrives
+        if (INDEX) indexDocroot();
 
-            // Log cache-related information
-            logCacheInfo();
-        } catch (IOException e) {
-            // Log a warning if an error occurs while logging the connection
-            logger.log(Level.WARNING, "Error logging connection", e);
+        // Open the admin UI unless running headless; ServerAdminUI is only loaded here, so a headless server
+        // never initializes AWT
+        if (HEADLESS) {
+            logger.info("Running headless, admin UI disabled");
+        } else {
+            ServerAdminUI.launch(this);
+        }
+
+        ScheduledExecutorService reporter = startReporting();
+        try {
+            if ("nio".equals(MODE)) {
+                startNio();
+            } else {
+                startPool();
+            }
+        } finally {
+            if (reporter != null) reporter.shutdownNow();
         }
     }
 
-    // Logs information about the cache, including cache size and details of each cached file
-    private void logCacheInfo() {
-        logger.info("Cache Size: " + cacheMap.size());
-        for (Map.Entry<String, byte[]> entry : cacheMap.entrySet()) {
-            logger.info("Cached File: " + entry.getKey() + ", Size: " + entry.getValue().length);
+    // Runs the selector-based engine and blocks until it stops
+    private void startNio() throws IOException {
+        if (proxy.isEnabled()) logger.warning("The nio engine does not proxy, jhttp.proxy is ignored");
+        nioServer = new NioServer(accessLog, metrics, admission, resolver, auth, rateLimiter, INDEX_FILE, port, NIO_LOOPS,
+                NIO_WORKERS, BACKLOG, cache);
+        nioServer.start();
+        isRunning = true;
+        logger.info("Document Root: " + rootDirectory);
+        try {
+            nioServer.awaitTermination();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
+        isRunning = false;
     }
 
-    // Starts the web server, accepts incoming connections, and processes them using a thread pool
-    public void start() throws IOException {
-        // Create a fixed-size thread pool for handling incoming requests
-        pool = Executors.newFixedThreadPool(NUM_THREADS);
-        // Create a server socket to listen on the specified port
-        serverSocket = new ServerSocket(port);
+    // Runs the blocking accept loop that hands each connection to the thread pool
+    private void startPool() throws IOException {
+        // Create the executor for handling incoming requests
+        pool = "virtual".equals(MODE) ? newVirtualThreadExecutor() : newBoundedPool();
+        if (pool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) pool;
+            metrics.gauge("jhttp_pool_queue_depth", "Accepted connections waiting for a pool thread.", () -> executor.getQueue().size());
+            metrics.gauge("jhttp_pool_active_threads", "Pool threads serving a connection.", executor::getActiveCount);
+        }
+        openServerChannels();
         // Set the server status flag to true
         isRunning = true;
         // Log server information
-        logger.info("Accepting connections on port " + serverSocket.getLocalPort());
+        logger.info("Accepting connections on port " + serverChannels.get(0).socket().getLocalPort() + " with "
+                + ACCEPTORS + " acceptor thread(s) and " + serverChannels.size() + " listening socket(s)");
         logger.info("Document Root: " + rootDirectory);
 
-        // Create ServerAdminUI instance and start the server
-        SwingUtilities.invokeLater(() -> {
+        // Run the acceptors and wait for them; they return once stop() closes the listening sockets
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 0; i < ACCEPTORS; i++) {
+            ServerSocketChannel serverChannel = serverChannels.get(i % serverChannels.size());
+            Thread acceptor = new Thread(() -> acceptConnections(serverChannel), "jhttp-acceptor-" + i);
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        for (Thread acceptor : acceptors) {
             try {
-                ServerAdminUI adminUI = new ServerAdminUI(this);
-                adminUI.setVisible(true);
-            } catch (Exception e) {
-                // Log a severe error if starting ServerAdminUI fails
-                logger.log(Level.SEVERE, "Error starting ServerAdminUI", e);
+                acceptor.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
             }
-        });
+        }
+    }
+
+    // Opens the listening sockets: one per acceptor bound with SO_REUSEPORT when the platform supports it, otherwise
+    // a single socket all acceptors share. The sockets are backed by channels so accepted sockets have a
+    // SocketChannel that large files can be transferred to directly.
+    private void openServerChannels() throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = ACCEPTORS > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        try {
+            if (reusePort) first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            first.bind(new InetSocketAddress(port), BACKLOG);
+            serverChannels.add(first);
+            // Bind the others to the port the first one got, which matters when port 0 asked for any free port
+            int boundPort = first.socket().getLocalPort();
+            for (int i = 1; reusePort && i < ACCEPTORS; i++) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannels.add(serverChannel);
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                serverChannel.bind(new InetSocketAddress(boundPort), BACKLOG);
+            }
+        } catch (IOException ex) {
+            first.close();
+            closeServerChannels();
+            throw ex;
+        }
+        if (ACCEPTORS > 1 && !reusePort) {
+            logger.info("SO_REUSEPORT is not available, " + ACCEPTORS + " acceptors share one listening socket");
+        }
+    }
 
-        // Continuously accept and process incoming connections while the server is running
+    // Accepts connections from one listening socket and hands each to the pool until the socket is closed
+    private void acceptConnections(ServerSocketChannel serverChannel) {
         while (isRunning) {
             try {
                 // Accept an incoming connection
-                Socket request = serverSocket.accept();
-                // Log information about the connection
-                logConnection(request);
+                SocketChannel channel = serverChannel.accept();
+                Socket request = channel.socket();
+                long acceptedAt = System.nanoTime();
+                metrics.connectionOpened();
+                // Turn the client away if it is over its rate limit or already has as many connections open as it
+                // may, before it takes a place in the queue
+                InetAddress address = request.getInetAddress();
+                if (!rateLimiter.admit(address)) {
+                    rateLimiter.reject(request);
+                    metrics.connectionClosed();
+                    continue;
+                }
+                if (!admission.admit(address)) {
+                    admission.reject(request, AdmissionControl.Reason.PER_IP_LIMIT);
+                    metrics.connectionClosed();
+                    continue;
+                }
                 // Create a RequestProcessor instance for the incoming request and submit it to the thread pool
-                Runnable r = new RequestProcessor(rootDirectory, INDEX_FILE, request, "GET", cacheMap);
-                pool.submit(r);
+                RequestProcessor processor = new RequestProcessor(resolver, auth, rateLimiter, proxy, INDEX_FILE, request, cache,
+                        accessLog, metrics, acceptedAt);
+                connections.add(processor);
+                // A connection accepted while stop() was running still gets its request answered, then closed
+                if (!isRunning) processor.drain();
+                try {
+                    pool.submit(() -> {
+                        try {
+                            // A connection that sat in the queue past the deadline is shed rather than served late
+                            if (admission.isLate(acceptedAt)) {
+                                admission.reject(request, AdmissionControl.Reason.QUEUE_TIMEOUT);
+                                metrics.connectionClosed();
+                            } else {
+                                processor.run();
+                            }
+                        } finally {
+                            connections.remove(processor);
+                            admission.release(address);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    connections.remove(processor);
+                    admission.release(address);
+                    metrics.connectionClosed();
+                    if (pool.isShutdown()) {
+                        // The pool has already shut down
+                        request.close();
+                    } else {
+                        // Every thread is busy and the queue is full
+                        admission.reject(request, AdmissionControl.Reason.QUEUE_FULL);
+                    }
+                }
+            } catch (ClosedChannelException ex) {
+                // stop() closed the listening socket
+                break;
             } catch (IOException ex) {
                 // Log a warning if an error occurs while accepting a connection
                 logger.log(Level.WARNING, "Error accepting connection", ex);
             }
-            
         }
     }
 
+    // Stops accepting connections and drains the ones open: requests in progress are finished and answered with
+    // Connection: close, idle persistent connections are closed, and whatever is still running after DRAIN_MILLIS
+    // is cut off. Returns once the engine has stopped.
+    @Override
+    public void stop() {
+        if (!isRunning) return;
+        isRunning = false;
+        logger.info("Stopping, draining connections for up to " + DRAIN_MILLIS + " ms");
+
+        if (nioServer != null) {
+            nioServer.stop(DRAIN_MILLIS);
+            try {
+                nioServer.awaitTermination();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            stopPool();
+        }
+        proxy.close();
+        saveIndex();
+    }
+
+    // Closes the listening sockets and drains the pool engine's connections
+    private void stopPool() {
+        closeServerChannels();
+        if (pool == null) return;
+        // Connections still waiting in the pool's queue are served once and closed
+        pool.shutdown();
+        for (RequestProcessor processor : connections) {
+            processor.drain();
+        }
+        try {
+            if (!pool.awaitTermination(DRAIN_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warning(connections.size() + " connection(s) still open after " + DRAIN_MILLIS + " ms, closing them");
+                for (RequestProcessor processor : connections) {
+                    processor.close();
+                }
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Indexes the document root, reusing the snapshot of the last run where it is still valid, preloads the cache
+    // up to WARMUP_MAX_BYTES and saves the new snapshot. A failure is logged and the server starts with a cold cache.
+    private void indexDocroot() {
+        ForkJoinPool indexPool = new ForkJoinPool(INDEX_PARALLELISM);
+        try {
+            long started = System.nanoTime();
+            Path snapshot = Paths.get(INDEX_SNAPSHOT);
+            DocrootIndex built = DocrootIndex.build(rootDirectory.toPath(), snapshot, indexPool);
+            long indexed = System.nanoTime();
+            long loaded = built.warm(cache, resolver, WARMUP_MAX_BYTES, INDEX_FILE, indexPool);
+            logger.info("Indexed " + built.size() + " files (" + built.totalBytes() + " bytes) in "
+                    + TimeUnit.NANOSECONDS.toMillis(indexed - started) + " ms, " + built.getReusedDirectories()
+                    + " directories unchanged since the snapshot; preloaded " + cache.size() + " files ("
+                    + loaded + " bytes) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - indexed) + " ms");
+            built.save(snapshot, built.getHotList());
+            index = built;
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.WARNING, "Could not index " + rootDirectory + ", starting with a cold cache", ex);
+        } finally {
+            indexPool.shutdown();
+        }
+    }
+
+    // Saves the index with the cache's hottest keys, so the next start preloads what was being served
+    private void saveIndex() {
+        DocrootIndex current = index;
+        if (current == null) return;
+        try {
+            current.save(Paths.get(INDEX_SNAPSHOT), cache.hotKeys(HOT_LIST_SIZE));
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not save the index snapshot " + INDEX_SNAPSHOT, ex);
+        }
+    }
+
+    // Closes every listening socket, which makes the acceptors blocked in accept() return
+    private void closeServerChannels() {
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            try {
+                serverChannel.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error closing server socket", ex);
+            }
+        }
+    }
+
+    // Creates an executor that starts a new virtual thread for every task, falling back to the
+    // fixed platform pool on runtimes older than Java 21 where virtual threads do not exist
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Looked up reflectively so the server still compiles and runs on Java 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            logger.warning("Virtual threads need Java 21 or newer, using a fixed pool of " + NUM_THREADS + " threads");
+            return newBoundedPool();
+        }
+    }
+
+    // Creates the fixed pool of platform threads. Its queue is bounded, so when every thread is busy and the queue
+    // is full the pool refuses the connection and the acceptor sheds it, instead of the queue growing until the
+    // server runs out of memory.
+    private static ExecutorService newBoundedPool() {
+        return new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, AdmissionControl.QUEUE_CAPACITY)));
+    }
+
     // Main method to start the web server with the specified document root and port
     public static void main(String[] args) {
         File docroot;
@@ -147,14 +559,8 @@ public class JHTTP {
         try {
             // Create an instance of the JHTTP web server with the specified document root and port
             JHTTP webserver = new JHTTP(docroot, port);
-            // Start the web server
+            // Start the web server; this blocks until it stops, logging statistics every REPORT_SECONDS
             webserver.start();
-
-            // Continuous loop to log cache information
-            while (webserver.isRunning()) {
-                webserver.logCacheInfo();
-            }
-
         } catch (IOException ex) {
             // Log a severe error if the web server fails to start
             logger.log(Level.SEVERE, "Server could not start", ex);
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of durations in the spirit of HdrHistogram. Values are kept in microseconds; below 16 us each
+// microsecond has its own bucket, and above that every power of two is split into 16 equal buckets, so a recorded
+// value is known to within about 6% anywhere from 1 us to 25 days. Recording is one atomic increment and two adds,
+// with no locks and no allocation, so it can sit on the request path.
+public final class LatencyHistogram {
+
+    // log2 of the number of sub-buckets per power of two
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Largest power of two of microseconds tracked; longer durations land in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    // Records one duration
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sumNanos.add(Math.max(0, nanos));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    // Copies the bucket counts; readers work on the copy while requests keep recording
+    public long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    // Returns the duration in microseconds below which the given fraction (0 to 1) of a snapshot's values fall,
+    // or 0 if nothing has been recorded
+    public static long percentile(long[] snapshot, double fraction) {
+        long total = 0;
+        for (long c : snapshot) total += c;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) return upperBound(i);
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    // Returns how many values of a snapshot are known to be at most the given number of microseconds. Buckets that
+    // straddle the limit are left out, so the count may be low by part of one bucket.
+    public static long countAtMost(long[] snapshot, long micros) {
+        long total = 0;
+        for (int i = 0; i < snapshot.length && upperBound(i) <= micros + 1; i++) {
+            total += snapshot[i];
+        }
+        return total;
+    }
+
+    // Returns the bucket a value in microseconds belongs to
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (micros >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Returns the exclusive upper bound, in microseconds, of a bucket
+    static long upperBound(int index) {
+        int block = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (block == 0) return sub + 1;
+        return (long) (SUB_BUCKETS + sub + 1) << (block - 1);
+    }
+}
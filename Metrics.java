@@ -0,0 +1,168 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Server-wide metrics shared by both engines: request counts by method and status, bytes sent, connections, and
+// latency histograms for time to first byte and total request time. Request threads only touch LongAdders and
+// atomic arrays, so recording takes no locks. Other components (cache, thread pool, access log) register gauges
+// that are read when the metrics are exported. Exposed in Prometheus text format at PATH and in ServerAdminUI.
+public class Metrics {
+
+    // Reserved request path that returns the metrics instead of a file; empty turns the endpoint off
+    static final String PATH = System.getProperty("jhttp.metrics.path", "/metrics");
+    // Content type of the Prometheus text exposition format
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Methods counted separately; anything else is counted as "OTHER"
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "OTHER" };
+    // Bucket bounds, in seconds, of the exported histograms
+    private static final double[] BOUNDS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+            0.25, 0.5, 1, 2.5, 5, 10 };
+
+    // Request counters indexed by method and status code, created the first time each pair is seen
+    private final AtomicReferenceArray<LongAdder> requests = new AtomicReferenceArray<>(METHODS.length * 600);
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LatencyHistogram firstByte = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    // A value owned by another component, read only when the metrics are exported
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    // Registers a value that only ever grows, such as the cache hit count
+    public void counter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "counter", value));
+    }
+
+    // Registers a value that goes up and down, such as the pool's queue depth
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "gauge", value));
+    }
+
+    public void connectionOpened() {
+        connectionsAccepted.increment();
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    // Records the time from accepting the connection, or from reading the request on a reused connection, until
+    // the first byte of the response was written
+    public void recordFirstByte(long nanos) {
+        firstByte.record(nanos);
+    }
+
+    // Records a finished request
+    public void recordRequest(String method, int status, long bytes, long nanos) {
+        int index = methodIndex(method) * 600 + Math.min(Math.max(status, 0), 599);
+        LongAdder counter = requests.get(index);
+        if (counter == null) {
+            requests.compareAndSet(index, null, new LongAdder());
+            counter = requests.get(index);
+        }
+        counter.increment();
+        bytesSent.add(bytes);
+        total.record(nanos);
+    }
+
+    public long getRequests() {
+        return total.getCount();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    public LatencyHistogram getFirstByte() {
+        return firstByte;
+    }
+
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    // Returns the current value of a registered gauge or counter, or -1 if there is none by that name
+    public long getGauge(String name) {
+        for (Gauge gauge : gauges) {
+            if (gauge.name.equals(name)) return gauge.value.getAsLong();
+        }
+        return -1;
+    }
+
+    // Writes every metric in the Prometheus text exposition format
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP jhttp_requests_total Requests served, by method and status code.\n");
+        out.append("# TYPE jhttp_requests_total counter\n");
+        for (int i = 0; i < requests.length(); i++) {
+            LongAdder counter = requests.get(i);
+            if (counter == null) continue;
+            out.append("jhttp_requests_total{method=\"").append(METHODS[i / 600])
+                    .append("\",code=\"").append(i % 600).append("\"} ").append(counter.sum()).append('\n');
+        }
+        sample(out, "jhttp_response_bytes_total", "Response body bytes sent.", "counter", bytesSent.sum());
+        sample(out, "jhttp_connections_accepted_total", "Connections accepted.", "counter", connectionsAccepted.sum());
+        sample(out, "jhttp_connections_active", "Connections currently open.", "gauge", activeConnections.sum());
+        for (Gauge gauge : gauges) {
+            sample(out, gauge.name, gauge.help, gauge.type, gauge.value.getAsLong());
+        }
+        histogram(out, "jhttp_time_to_first_byte_seconds",
+                "Time from accepting the connection or reading the request to the first response byte.", firstByte);
+        histogram(out, "jhttp_request_duration_seconds", "Time from reading the request to the end of the response.", total);
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String help, String type, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        long[] snapshot = histogram.snapshot();
+        long count = 0;
+        for (long c : snapshot) count += c;
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        for (double bound : BOUNDS) {
+            out.append(name).append("_bucket{le=\"").append(bound).append("\"} ")
+                    .append(LatencyHistogram.countAtMost(snapshot, Math.round(bound * 1_000_000))).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum ").append(histogram.getSumNanos() / 1e9).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+
+    private static int methodIndex(String method) {
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) return i;
+        }
+        return METHODS.length - 1;
+    }
+}
@@ -0,0 +1,783 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+
+// Non-blocking event-loop engine that serves the same document root and cache as RequestProcessor.
+// One selector loop runs per core; each connection is a small state machine instead of a thread. A request the
+// cache cannot answer, or that needs a password checked, is handed to a small pool of worker threads, so no loop
+// ever waits for the disk or a password hash.
+public class NioServer implements Server {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(NioServer.class.getCanonicalName());
+
+    // Size of a connection's input buffer, enough for a typical request head. It doubles up to
+    // RequestParser.MAX_HEAD only while a longer head arrives, so idle keep-alive connections stay small.
+    private static final int INPUT_SIZE = Math.min(1024, RequestParser.MAX_HEAD);
+
+    private final AccessLog accessLog;
+    private final Metrics metrics;
+    private final AdmissionControl admission;
+    private final PathResolver resolver;
+    private final BasicAuth auth;
+    private final RateLimiter rateLimiter;
+    private final String indexFileName;
+    private final int port;
+    private final int numLoops;
+    private final int numWorkers;
+    private final int backlog;
+    private final FileCache cache;
+
+    // Listening channel, selector loops, and flag to track server status
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    // Threads reading files the cache does not hold yet and checking passwords
+    private ExecutorService workers;
+    private volatile boolean isRunning;
+    // System.nanoTime() by which connections still open after stop() are closed
+    private volatile long drainDeadline;
+
+    // Constructor initializes the engine with the server's document root, port and shared cache
+    public NioServer(AccessLog accessLog, Metrics metrics, AdmissionControl admission, PathResolver resolver,
+                     BasicAuth auth, RateLimiter rateLimiter, String indexFileName, int port, int numLoops, int numWorkers,
+                     int backlog, FileCache cache) throws IOException {
+        this.accessLog = accessLog;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.resolver = resolver;
+        this.auth = auth;
+        this.rateLimiter = rateLimiter;
+        this.indexFileName = indexFileName;
+        this.port = port;
+        this.numLoops = Math.max(1, numLoops);
+        this.numWorkers = Math.max(1, numWorkers);
+        this.backlog = backlog;
+        this.cache = cache;
+    }
+
+    // Opens the listening channel and starts one selector thread per loop
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        serverChannel.configureBlocking(false);
+
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(numWorkers, r -> {
+            Thread thread = new Thread(r, "jhttp-nio-worker-" + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        loops = new EventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        // The first loop also owns the listening channel and hands accepted connections out round-robin
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        isRunning = true;
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        logger.info("NIO engine accepting connections on port " + port + " with " + numLoops + " event loops");
+    }
+
+    // Stops all loops at once and closes the listening channel
+    @Override
+    public void stop() {
+        stop(0);
+    }
+
+    // Closes the listening channel and lets the loops finish the requests in progress for up to drainMillis.
+    // Connections waiting for another request are closed, the others close once their response is written, and
+    // each loop exits when it has no connections left or the time is up.
+    public void stop(long drainMillis) {
+        drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        isRunning = false;
+        // Loads already handed to the workers still finish
+        if (workers != null) workers.shutdown();
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error closing server channel", ex);
+        }
+    }
+
+    // Getter method for checking if the engine is running
+    @Override
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    // Blocks the calling thread until every event loop has exited
+    public void awaitTermination() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.thread.join();
+        }
+    }
+
+    // A single selector thread and the connections registered with it
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        // Connections accepted by loop 0 waiting to be registered with this selector
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        // Work handed back by the workers, run on this loop's thread
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private int nextLoop;
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "jhttp-nio-" + index);
+        }
+
+        // Hands a freshly accepted connection to this loop from another thread
+        void enqueue(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        // Runs a task on this loop's thread, from another thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (isRunning || (hasConnections() && System.nanoTime() - drainDeadline < 0)) {
+                try {
+                    // Wake up at least once a second so idle connections can be timed out, and more often while
+                    // draining so connections can be closed as soon as they finish
+                    selector.select(isRunning ? 1000 : 100);
+                    registerPending();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            ((Connection) key.attachment()).handle(key);
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (!isRunning) {
+                        closeBetweenRequests();
+                    } else if (now - lastSweep >= 1000) {
+                        closeIdle(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Error in event loop", ex);
+                }
+            }
+            closeAll();
+        }
+
+        // Closes connections that have waited too long for their next request
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection && ((Connection) attachment).isIdle(now)) {
+                    ((Connection) attachment).close(key);
+                }
+            }
+        }
+
+        // Returns true while any connection is registered with this loop
+        private boolean hasConnections() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) return true;
+            }
+            return !pending.isEmpty();
+        }
+
+        // Closes connections waiting for their next request, while the server drains
+        private void closeBetweenRequests() {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection && ((Connection) attachment).isBetweenRequests()) {
+                    ((Connection) attachment).close(key);
+                }
+            }
+        }
+
+        // Accepts every pending connection and distributes them across the loops
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    metrics.connectionOpened();
+                    // Turn the client away if it is over its rate limit or already has as many connections open as
+                    // it may
+                    InetAddress address = channel.socket().getInetAddress();
+                    if (!rateLimiter.admit(address)) {
+                        rateLimiter.reject(channel);
+                        metrics.connectionClosed();
+                        continue;
+                    }
+                    if (!admission.admit(address)) {
+                        admission.reject(channel, AdmissionControl.Reason.PER_IP_LIMIT);
+                        metrics.connectionClosed();
+                        continue;
+                    }
+                    EventLoop target = loops[nextLoop];
+                    Connection connection = new Connection(channel, target);
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    if (target == this) {
+                        channel.register(selector, SelectionKey.OP_READ, connection);
+                    } else {
+                        target.enqueue(connection);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error accepting connection", ex);
+            }
+        }
+
+        // Registers connections handed over by the accepting loop
+        private void registerPending() {
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                try {
+                    connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException ex) {
+                    metrics.connectionClosed();
+                    admission.release(connection.address);
+                    logger.log(Level.FINE, "Connection closed before registration", ex);
+                }
+            }
+        }
+
+        // Runs the tasks the workers have handed back
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        // Closes every channel still registered with this selector on shutdown
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close(key);
+                    continue;
+                }
+                try {
+                    key.channel().close();
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Error closing channel", ex);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error closing selector", ex);
+            }
+        }
+    }
+
+    // Possible states of a connection; WAITING while a worker builds the response
+    private enum State { READING, WAITING, WRITING }
+
+    // Per-connection state machine: read a request head, write its response, then either wait for the
+    // next request on the same connection or close it
+    private class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final InetAddress address;
+        // Bytes of the request head being read; grows for a long head and goes back to INPUT_SIZE once it is parsed
+        private ByteBuffer input = ByteBuffer.allocate(INPUT_SIZE);
+        private final RequestParser parser = new RequestParser();
+        // Parts of the response still to be written: ByteBuffers and FileRegions, in order
+        private final ArrayDeque<Object> output = new ArrayDeque<>();
+        // Reused for every gathering write and every response header on this connection
+        private ByteBuffer[] gather = new ByteBuffer[8];
+        private final ResponseHeaders responseHeaders = new ResponseHeaders();
+        // Cache entries whose off-heap bodies are pinned until the response has been written
+        private List<FileCache.Entry> pinned = Collections.emptyList();
+        private State state = State.READING;
+        private boolean keepAlive;
+        private int served;
+        private long lastActive = System.currentTimeMillis();
+        // When the request head being read started to arrive, or the connection was accepted for the first request
+        private long headStarted = lastActive;
+        private final long acceptedAt = System.nanoTime();
+        private boolean closed;
+        // Whether the first byte of the current response has been written and its delay recorded
+        private boolean firstByteSent;
+        // Details of the request being answered, for the access log
+        private long requestStarted;
+        private String requestMethod;
+        private String requestPath;
+        private int status;
+        private long bodyLength;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.address = channel.socket().getInetAddress();
+        }
+
+        // Dispatches a ready key according to the current state
+        void handle(SelectionKey key) {
+            try {
+                if (state == State.READING && key.isReadable()) {
+                    read(key);
+                } else if (state == State.WRITING && key.isWritable()) {
+                    write(key);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error talking to " + channel.socket().getRemoteSocketAddress(), ex);
+                close(key);
+            }
+        }
+
+        // Returns true if the connection has waited longer than the keep-alive timeout for a request, or a request
+        // head has taken longer than the header timeout to arrive, however steadily its bytes trickle in
+        boolean isIdle(long now) {
+            if (state != State.READING) return false;
+            if (served == 0 || input.position() > 0) return now - headStarted > RequestProcessor.HEADER_TIMEOUT;
+            return now - lastActive > RequestProcessor.KEEP_ALIVE_TIMEOUT;
+        }
+
+        // Returns true if the connection has served a request and has not started on another; a new connection is
+        // left alone, as its first request may already be on the way
+        boolean isBetweenRequests() {
+            return state == State.READING && input.position() == 0 && served > 0;
+        }
+
+        // Reads available bytes and processes the request once its head is complete
+        private void read(SelectionKey key) throws IOException {
+            boolean empty = input.position() == 0;
+            int n = channel.read(input);
+            if (n < 0) {
+                close(key);
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (empty && served > 0) headStarted = lastActive;
+            processRequest(key);
+        }
+
+        // Parses the next buffered request, if it is complete, and starts writing its response
+        private void processRequest(SelectionKey key) throws IOException {
+            skipBlankLines();
+            requestStarted = System.nanoTime();
+            firstByteSent = false;
+            int end = RequestParser.headEnd(input.array(), 0, 0, input.position());
+            Response response;
+            if (end < 0) {
+                if (input.hasRemaining()) return;
+                if (input.capacity() < RequestParser.MAX_HEAD) {
+                    // A long head: make room for the rest of it
+                    resizeInput(Math.min(input.capacity() * 2, RequestParser.MAX_HEAD));
+                    return;
+                }
+                // The request head does not fit in the buffer
+                response = badRequest(RequestParser.tooLarge(input.array(), 0, input.position()));
+            } else {
+                try {
+                    parser.parse(input.array(), 0, end);
+                    // Drop the consumed head but keep any pipelined bytes that follow it
+                    input.flip().position(end);
+                    input.compact();
+                    if (input.capacity() > INPUT_SIZE && input.position() <= INPUT_SIZE) resizeInput(INPUT_SIZE);
+                    response = null;
+                } catch (RequestParser.BadRequestException ex) {
+                    response = badRequest(ex);
+                }
+            }
+
+            if (response == null) {
+                String method = parser.getMethod();
+                String version = parser.getVersion();
+                Map<String, String> headers = parser.getHeaders();
+                logger.fine(channel.socket().getRemoteSocketAddress() + " " + method + " " + parser.getTarget());
+                served++;
+                // Only GET and HEAD are served here and no request body is read, so a request that announces one
+                // closes the connection after its response; otherwise the body would be taken for the next request
+                boolean hasBody;
+                try {
+                    hasBody = RequestBody.open(parser, headers, RequestBody.MAX_BYTES).isPresent();
+                } catch (RequestParser.BadRequestException ex) {
+                    hasBody = true;
+                    response = badRequest(ex);
+                }
+                keepAlive = RequestProcessor.isKeepAlive(version, headers)
+                        && served < RequestProcessor.MAX_KEEP_ALIVE_REQUESTS
+                        && ("GET".equals(method) || "HEAD".equals(method)) && !hasBody;
+
+                // A client over its rate limit is told when to come back, and the connection is closed
+                long wait = response == null ? rateLimiter.acquire(address, parser.getPath()) : 0;
+                if (wait > 0) {
+                    keepAlive = false;
+                    response = error(method, version, "HTTP/1.1".equals(version) ? "HTTP/1.1" : "HTTP/1.0", false, responseHeaders,
+                            "429 Too Many Requests", "HTTP Error 429: Too Many Requests", "Too Many Requests",
+                            "Retry-After: " + RateLimiter.retryAfterSeconds(wait) + "\r\n");
+                } else if (response == null) {
+                    response = respond(method, parser.getPath(), version, headers, keepAlive, responseHeaders, null, false);
+                }
+                requestMethod = method;
+                requestPath = parser.getTarget();
+                if (response.deferred) {
+                    respondOnWorker(key, method, parser.getPath(), version, headers, response.entry);
+                    return;
+                }
+            }
+            send(key, response);
+        }
+
+        // Hands a request the loop could not answer without blocking to a worker; the connection neither reads nor
+        // writes until the response is back
+        private void respondOnWorker(SelectionKey key, String method, String path, String version,
+                                     Map<String, String> headers, FileCache.Entry entry) throws IOException {
+            state = State.WAITING;
+            key.interestOps(0);
+            boolean keepAlive = this.keepAlive;
+            try {
+                workers.execute(() -> {
+                    try {
+                        Response response = respond(method, path, version, headers, keepAlive, responseHeaders, entry, true);
+                        loop.execute(() -> resume(key, response, null));
+                    } catch (IOException | RuntimeException ex) {
+                        loop.execute(() -> resume(key, null, ex));
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // The server is stopping and takes no more loads; finish the request here
+                send(key, respond(method, path, version, headers, keepAlive, responseHeaders, entry, true));
+            }
+        }
+
+        // Continues on the loop with the response a worker built, or closes the connection if building it failed
+        private void resume(SelectionKey key, Response response, Exception failure) {
+            if (closed) {
+                // Closed by a shutdown while the worker was busy; nothing will write the response
+                if (response != null) {
+                    for (FileCache.Entry entry : response.pinned) entry.releaseBuffer();
+                }
+                return;
+            }
+            if (failure == null) {
+                try {
+                    send(key, response);
+                    return;
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+            }
+            logger.log(Level.WARNING, "Error talking to " + channel.socket().getRemoteSocketAddress(), failure);
+            close(key);
+        }
+
+        // Starts writing a response
+        private void send(SelectionKey key, Response response) throws IOException {
+            status = response.status;
+            bodyLength = response.bodyLength;
+            output.addAll(response.parts);
+            pinned = response.pinned;
+            state = State.WRITING;
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        }
+
+        // Writes as much of the response as the socket accepts, then reads the next request or closes
+        private void write(SelectionKey key) throws IOException {
+            while (!output.isEmpty()) {
+                if (output.peek() instanceof FileRegion) {
+                    if (!((FileRegion) output.peek()).transferTo(channel)) return;
+                    output.poll();
+                    continue;
+                }
+
+                // Send consecutive buffers with one gathering write
+                int count = 0;
+                for (Object part : output) {
+                    if (!(part instanceof ByteBuffer)) break;
+                    if (count == gather.length) gather = Arrays.copyOf(gather, count * 2);
+                    gather[count++] = (ByteBuffer) part;
+                }
+                channel.write(gather, 0, count);
+                if (!firstByteSent) {
+                    // The first response on a connection is timed from the accept, later ones from reading their request
+                    metrics.recordFirstByte(System.nanoTime() - (served <= 1 ? acceptedAt : requestStarted));
+                    firstByteSent = true;
+                }
+                Arrays.fill(gather, 0, count, null);
+                while (!output.isEmpty() && output.peek() instanceof ByteBuffer && !((ByteBuffer) output.peek()).hasRemaining()) {
+                    output.poll();
+                }
+                // The socket is full; wait for the next OP_WRITE
+                if (!output.isEmpty() && output.peek() instanceof ByteBuffer) return;
+            }
+            unpin();
+
+            // Hand the finished request to the access log writer
+            InetAddress remote = channel.socket().getInetAddress();
+            long latency = System.nanoTime() - requestStarted;
+            accessLog.log(remote != null ? remote.getHostAddress() : "-", requestMethod, requestPath, status, bodyLength, latency);
+            metrics.recordRequest(requestMethod, status, bodyLength, latency);
+
+            // While the server drains, a connection closes after its response
+            if (!keepAlive || !isRunning) {
+                close(key);
+                return;
+            }
+            state = State.READING;
+            lastActive = System.currentTimeMillis();
+            // Pipelined bytes already buffered belong to a head that starts arriving now
+            headStarted = lastActive;
+            key.interestOps(SelectionKey.OP_READ);
+            // A pipelined request may already be waiting in the buffer
+            processRequest(key);
+        }
+
+        // Builds the response to a request head the parser refused; the connection is closed after it because the
+        // rest of the input cannot be trusted to start at a request boundary
+        private Response badRequest(RequestParser.BadRequestException ex) {
+            logger.fine("Bad request from " + channel.socket().getRemoteSocketAddress() + ": " + ex.getMessage());
+            keepAlive = false;
+            requestMethod = "-";
+            requestPath = "-";
+            String statusLine = ex.getStatusLine();
+            return error("-", "HTTP/1.1", "HTTP/1.1", false, responseHeaders, statusLine, "HTTP Error " + statusLine,
+                    statusLine.substring(4));
+        }
+
+        // Moves the buffered input into a new buffer of the given size
+        private void resizeInput(int size) {
+            ByteBuffer resized = ByteBuffer.allocate(size);
+            input.flip();
+            resized.put(input);
+            input = resized;
+        }
+
+        // Discards CR and LF bytes sent between pipelined requests
+        private void skipBlankLines() {
+            byte[] buf = input.array();
+            int skip = 0;
+            while (skip < input.position() && (buf[skip] == '\r' || buf[skip] == '\n')) skip++;
+            if (skip > 0) {
+                input.flip().position(skip);
+                input.compact();
+            }
+        }
+
+        private void unpin() {
+            for (FileCache.Entry entry : pinned) {
+                entry.releaseBuffer();
+            }
+            pinned = Collections.emptyList();
+        }
+
+        void close(SelectionKey key) {
+            if (!closed) {
+                closed = true;
+                metrics.connectionClosed();
+                admission.release(address);
+            }
+            unpin();
+            for (Object part : output) {
+                if (part instanceof FileRegion) ((FileRegion) part).close();
+            }
+            output.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Error closing connection", ex);
+            }
+        }
+    }
+
+    // Part of a file sent with FileChannel.transferTo, so the kernel copies it to the socket
+    private static final class FileRegion {
+        private final Path path;
+        private long position;
+        private final long end;
+        private FileChannel file;
+
+        FileRegion(Path path, long position, long end) {
+            this.path = path;
+            this.position = position;
+            this.end = end;
+        }
+
+        // Transfers as much as the socket accepts; returns true once the whole region has been sent
+        boolean transferTo(SocketChannel channel) throws IOException {
+            if (file == null) file = FileChannel.open(path, StandardOpenOption.READ);
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                if (n == 0) {
+                    if (position >= file.size()) throw new EOFException("File truncated while sending " + path);
+                    // A zero-byte transfer means the socket is full
+                    return false;
+                }
+                position += n;
+            }
+            close();
+            return true;
+        }
+
+        void close() {
+            try {
+                if (file != null) file.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Error closing file", ex);
+            }
+            file = null;
+        }
+    }
+
+    // Parts of a response in the order they are written; off-heap bodies stay pinned in their cache entries
+    // until the response has been written
+    private static final class Response {
+        final int status;
+        final long bodyLength;
+        final List<Object> parts = new ArrayList<>();
+        final List<FileCache.Entry> pinned = new ArrayList<>();
+        // Set instead of any parts when the response has to be built on a worker, with the entry found so far
+        boolean deferred;
+        FileCache.Entry entry;
+
+        Response(int status, long bodyLength) {
+            this.status = status;
+            this.bodyLength = bodyLength;
+        }
+
+        static Response deferred(FileCache.Entry entry) {
+            Response response = new Response(0, 0);
+            response.deferred = true;
+            response.entry = entry;
+            return response;
+        }
+    }
+
+    // Builds the response for a request, following RequestProcessor.handleGetHeadRequest. On a loop (mayBlock false)
+    // it stops short of reading a file the cache does not hold, compressing one or checking a password, and returns
+    // a deferred response instead; a worker then calls it again with mayBlock set and the entry the loop found, if any.
+    private Response respond(String method, String path, String version, Map<String, String> headers, boolean keepAlive,
+                             ResponseHeaders encoder, FileCache.Entry found, boolean mayBlock) throws IOException {
+        String responseVersion = "HTTP/1.1".equals(version) ? "HTTP/1.1" : "HTTP/1.0";
+
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return error(method, version, responseVersion, keepAlive, encoder, "501 Not Implemented", "HTTP Error 501: Not Implemented", "Not Implemented");
+        }
+        // The reserved metrics path is answered with the server's metrics rather than a file
+        if (!Metrics.PATH.isEmpty() && Metrics.PATH.equals(path)) {
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            Response response = new Response(200, "HEAD".equals(method) ? 0 : body.length);
+            response.parts.add(encoder.encode(responseVersion, "200 OK", Metrics.CONTENT_TYPE, body.length, keepAlive,
+                    "Cache-Control: no-store\r\n"));
+            if (!"HEAD".equals(method)) response.parts.add(ByteBuffer.wrap(body));
+            return response;
+        }
+
+        // If the file name ends with "/", append the default index file name
+        String fileName = path;
+        if (fileName.endsWith("/")) fileName += indexFileName;
+        String contentType = URLConnection.getFileNameMap().getContentTypeFor(fileName);
+
+        FileCache.Entry entry = mayBlock ? found : cache.get(fileName);
+        if (entry == null) {
+            if (!mayBlock) return Response.deferred(null);
+            // Find the readable file inside the root the name refers to and read it into the cache; concurrent
+            // misses for the same file share one read
+            Path file = resolver.resolve(fileName);
+            if (file != null) entry = cache.load(fileName, file);
+        }
+        if (entry == null) {
+            return error(method, version, responseVersion, keepAlive, encoder, "404 File Not Found", "HTTP Error 404: File Not Found", "File Not Found");
+        }
+        // A protected file needs a user; a password not verified recently costs a deliberately slow hash, so it is
+        // checked on a worker
+        boolean locked = auth.isProtected(entry.getPath());
+        String authorization = headers.get("authorization");
+        if (locked && !mayBlock && !auth.isRemembered(authorization)) return Response.deferred(entry);
+        if (locked && auth.authenticate(authorization) == null) {
+            return error(method, version, responseVersion, keepAlive, encoder, "401 Unauthorized", "HTTP Error 401: Unauthorized", "Unauthorized",
+                    auth.getChallenge());
+        }
+
+        // Work out the status, validators and body, honouring conditional and range headers
+        if (!mayBlock && !FileResponse.isCached(method, fileName, entry, contentType, headers, cache)) {
+            return Response.deferred(entry);
+        }
+        FileResponse file = FileResponse.forFile(method, fileName, entry, contentType, headers, cache);
+        Response response = new Response(file.status, "HEAD".equals(method) ? 0 : Math.max(0, file.contentLength));
+        response.parts.add(encoder.encode(responseVersion, file.statusLine, file.contentType, file.contentLength, keepAlive, file.headers));
+        for (FileResponse.Segment segment : file.segments) {
+            if (segment.bytes != null) {
+                response.parts.add(ByteBuffer.wrap(segment.bytes));
+            } else if (segment.entry.getData() != null) {
+                response.parts.add(ByteBuffer.wrap(segment.entry.getData(), (int) segment.offset, (int) segment.length));
+            } else {
+                // Write an off-heap body directly, or send the file from disk if it has none
+                ByteBuffer buffer = segment.entry.acquireBuffer();
+                if (buffer != null) {
+                    response.pinned.add(segment.entry);
+                    buffer.position((int) segment.offset).limit((int) (segment.offset + segment.length));
+                    response.parts.add(buffer);
+                } else {
+                    response.parts.add(new FileRegion(segment.entry.getPath(), segment.offset, segment.offset + segment.length));
+                }
+            }
+        }
+        return response;
+    }
+
+    // Builds an HTML error response
+    private Response error(String method, String version, String responseVersion, boolean keepAlive,
+                           ResponseHeaders encoder, String status, String heading, String title) {
+        return error(method, version, responseVersion, keepAlive, encoder, status, heading, title, "");
+    }
+
+    // Same with extra header lines, each ending in CRLF
+    private Response error(String method, String version, String responseVersion, boolean keepAlive,
+                           ResponseHeaders encoder, String status, String heading, String title, String extraHeaders) {
+        byte[] body = ("<HTML><HEAD><TITLE>" + title + "</TITLE></HEAD><BODY>"
+                + "<H1>" + heading + "</H1></BODY></HTML>").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer header = version.startsWith("HTTP/")
+                ? encoder.encode(responseVersion, status, "text/html; charset=utf-8", body.length, keepAlive, extraHeaders)
+                : ByteBuffer.allocate(0);
+        boolean head = "HEAD".equals(method);
+        Response response = new Response(ResponseHeaders.statusCode(status), head ? 0 : body.length);
+        response.parts.add(header);
+        if (!head) response.parts.add(ByteBuffer.wrap(body));
+        return response;
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+// Keeps file bodies outside the Java heap in direct buffers, so a large cache does not lengthen GC pauses. Files are
+// copied in rather than memory mapped: a mapped file that is truncated while cached faults whoever reads the missing
+// pages (SIGBUS, or an InternalError in Java), and document roots are edited while the server runs. Every body is
+// reference counted: the cache holds one reference and each response being written holds another. When the cache
+// drops an entry the memory is only freed after the last response using it has finished. The buffers count against
+// -XX:MaxDirectMemorySize; a body that does not fit there is sent from disk like one over the budget.
+public class OffHeapStore {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(OffHeapStore.class.getCanonicalName());
+
+    // sun.misc.Unsafe.invokeCleaner, used to free a direct buffer without waiting for GC; null if unavailable
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            logger.log(Level.INFO, "Explicit freeing unavailable, off-heap bodies will be released by GC", ex);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final long maxBytes;
+    // Bytes held right now, including bodies already dropped by the cache but still being written
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    // Constructor creates a store that never holds more than maxBytes at once
+    public OffHeapStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Copies the first length bytes of a file off the heap, or returns null if they do not fit in the budget
+    public Block load(Path file, long length) throws IOException {
+        // Reserve the bytes first so concurrent loads cannot overshoot the budget together
+        long reserved = usedBytes.addAndGet(length);
+        if (reserved > maxBytes || length > Integer.MAX_VALUE) {
+            usedBytes.addAndGet(-length);
+            return null;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect((int) length);
+        } catch (OutOfMemoryError ex) {
+            usedBytes.addAndGet(-length);
+            logger.fine("No direct memory left for " + file + ": " + ex.getMessage());
+            return null;
+        }
+        Block block = new Block(buffer, length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new EOFException("File truncated while loading " + file);
+            }
+            buffer.flip();
+            return block;
+        } catch (IOException | RuntimeException ex) {
+            block.retire();
+            throw ex;
+        }
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // A reference-counted off-heap copy of one file
+    public final class Block {
+        private final ByteBuffer buffer;
+        private final long length;
+        // Starts at one for the reference held by the cache
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private final AtomicBoolean retired = new AtomicBoolean();
+
+        private Block(ByteBuffer buffer, long length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        // Pins the body and returns a private read-only view of it, or null if it has already been freed
+        public ByteBuffer acquire() {
+            while (true) {
+                int current = refs.get();
+                if (current == 0) return null;
+                if (refs.compareAndSet(current, current + 1)) {
+                    return buffer.asReadOnlyBuffer();
+                }
+            }
+        }
+
+        // Releases a pin taken by acquire(); the last release of a retired body frees it
+        public void release() {
+            if (refs.decrementAndGet() == 0) {
+                free();
+            }
+        }
+
+        // Drops the cache's reference once; called when the entry is evicted or invalidated
+        public void retire() {
+            if (retired.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        private void free() {
+            usedBytes.addAndGet(-length);
+            if (INVOKE_CLEANER == null) return;
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException ex) {
+                logger.log(Level.FINE, "Error freeing buffer", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.*;
+
+// Maps request paths to the files they name, remembering the answer so a cache miss does not have to ask the file
+// system again. A path resolves to the canonical path of a readable regular file inside the document root, or to
+// nothing. Found files are remembered until the file cache reports a change under them; paths that were not found
+// are remembered for a short time, so clients asking for many missing paths do not reach the disk on every request.
+// The root is canonicalized once, and a file only counts as inside it if its canonical path starts with every name
+// of the root's path, so a sibling directory such as /srv/www-private does not pass for /srv/www.
+public class PathResolver {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(PathResolver.class.getCanonicalName());
+    // How long a path that was not found is remembered
+    static final long NEGATIVE_TTL_MILLIS = Long.getLong("jhttp.resolve.negativeTtlMillis", 5000);
+    // Most paths remembered of each kind; when either map fills up it is cleared rather than grown
+    static final int MAX_ENTRIES = Integer.getInteger("jhttp.resolve.maxEntries", 65536);
+
+    private final Path root;
+    // Request path to canonical file
+    private final ConcurrentHashMap<String, Path> found = new ConcurrentHashMap<>();
+    // Request path to the System.nanoTime() until which it is known not to exist
+    private final ConcurrentHashMap<String, Long> notFound = new ConcurrentHashMap<>();
+    private final long negativeTtlNanos;
+    // Canonical files inside the root that are never served, such as the user file
+    private final Set<Path> hidden = ConcurrentHashMap.newKeySet();
+
+    // Counters read by the metrics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+
+    // Constructor canonicalizes the document root once for all requests
+    public PathResolver(Path rootDirectory) throws IOException {
+        this(rootDirectory, NEGATIVE_TTL_MILLIS);
+    }
+
+    public PathResolver(Path rootDirectory, long negativeTtlMillis) throws IOException {
+        this.root = rootDirectory.toRealPath();
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    // Keeps a file from ever being resolved, under any name; paths already resolved to it are forgotten
+    public void hide(Path file) {
+        Path canonical;
+        try {
+            canonical = file.toRealPath();
+        } catch (IOException ex) {
+            // Not there yet: canonicalise its directory, so the file is still matched once it is created
+            canonical = file.toAbsolutePath().normalize();
+            if (canonical.getParent() != null) {
+                try {
+                    canonical = canonical.getParent().toRealPath().resolve(canonical.getFileName());
+                } catch (IOException missing) {
+                    // Neither is its directory; keep the absolute path
+                }
+            }
+        }
+        hidden.add(canonical);
+        found.values().removeIf(canonical::equals);
+    }
+
+    // Returns the canonical path of the readable regular file a decoded request path ("/dir/name.html") names, or
+    // null if there is none inside the document root
+    public Path resolve(String requestPath) {
+        Path file = found.get(requestPath);
+        if (file != null) {
+            hits.increment();
+            return file;
+        }
+        Long until = notFound.get(requestPath);
+        if (until != null) {
+            if (System.nanoTime() - until < 0) {
+                negativeHits.increment();
+                return null;
+            }
+            notFound.remove(requestPath, until);
+        }
+
+        lookups.increment();
+        file = lookup(requestPath);
+        if (file != null) {
+            if (found.size() >= MAX_ENTRIES) found.clear();
+            found.put(requestPath, file);
+        } else if (negativeTtlNanos > 0) {
+            if (notFound.size() >= MAX_ENTRIES) notFound.clear();
+            notFound.put(requestPath, System.nanoTime() + negativeTtlNanos);
+        }
+        return file;
+    }
+
+    // Asks the file system
+    private Path lookup(String requestPath) {
+        if (!requestPath.startsWith("/") || requestPath.indexOf('\0') >= 0) return null;
+        try {
+            Path file = root.resolve(requestPath.substring(1)).toRealPath();
+            if (!file.startsWith(root) || hidden.contains(file)) return null;
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile() || !Files.isReadable(file)) return null;
+            return file;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | InvalidPathException ex) {
+            logger.log(Level.FINE, "Cannot resolve " + requestPath, ex);
+            return null;
+        }
+    }
+
+    // Forgets what is known about a changed file or directory: found files at or below it, and every path that was
+    // not found, since any of them may exist now
+    public void invalidate(Path changed) {
+        notFound.clear();
+        if (changed.equals(root)) {
+            found.clear();
+            return;
+        }
+        found.values().removeIf(file -> file.startsWith(changed));
+        // The change may be a symbolic link or directory that other request paths went through
+        if (Files.isSymbolicLink(changed) || !Files.exists(changed, LinkOption.NOFOLLOW_LINKS)) {
+            found.clear();
+        }
+    }
+
+    // Number of request paths remembered, found or not
+    public int size() {
+        return found.size() + notFound.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    // Number of times the file system had to be asked
+    public long getLookups() {
+        return lookups.sum();
+    }
+}
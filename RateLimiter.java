@@ -0,0 +1,252 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.*;
+
+// Per-client request rate limits with token buckets, one set of buckets per path prefix. A client is an IPv4
+// address or an IPv6 /64 by default, so one host cannot dodge its limit by cycling through the addresses of its
+// network. Each bucket is a single AtomicLong holding the time at which it will be full again; taking a token moves
+// that time on by one interval with a compare-and-set, and no lock is ever taken. A bucket that is full again is
+// the same as no bucket, so idle entries are dropped by a background sweep without losing anything. Each rule keeps
+// at most MAX_CLIENTS buckets; while it is full, new clients share one overflow bucket, which keeps memory bounded
+// however many addresses show up, and a background sweep is started to make room.
+public class RateLimiter {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(RateLimiter.class.getCanonicalName());
+    // Rules as "prefix=rate[:burst]" separated by commas, such as "/=50:100,/api/=5"; rate is requests per second
+    // and burst the most taken at once, one second's worth by default. Empty turns rate limiting off.
+    static final String RULES = System.getProperty("jhttp.rateLimit", "");
+    // Leading bits of an address that identify a client
+    static final int IPV4_PREFIX = Integer.getInteger("jhttp.rateLimit.ipv4Prefix", 32);
+    static final int IPV6_PREFIX = Integer.getInteger("jhttp.rateLimit.ipv6Prefix", 64);
+    // Most clients tracked per rule
+    static final int MAX_CLIENTS = Integer.getInteger("jhttp.rateLimit.maxClients", 100000);
+    // How often idle buckets are swept out
+    static final long SWEEP_MILLIS = Long.getLong("jhttp.rateLimit.sweepMillis", 10000);
+
+    // The limit for one path prefix and the buckets of the clients using it
+    private static final class Rule {
+        final String prefix;
+        // Nanoseconds per token, and how far ahead of now a bucket's full time may run before it is empty
+        final long interval;
+        final long tolerance;
+        final ConcurrentHashMap<Long, AtomicLong> buckets = new ConcurrentHashMap<>();
+        // Shared by the clients that arrive while the map is full
+        final AtomicLong overflow = new AtomicLong(System.nanoTime());
+
+        Rule(String prefix, double rate, double burst) {
+            this.prefix = prefix;
+            this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+            this.tolerance = (long) (interval * (Math.max(1, burst) - 1));
+        }
+    }
+
+    // Rules with the longest prefix first, so the most specific one applies
+    private final List<Rule> rules = new ArrayList<>();
+    // The rule for "/", checked when a connection is accepted, or null
+    private final Rule rootRule;
+    private final int ipv4Prefix;
+    private final int ipv6Prefix;
+    private final int maxClients;
+    private final long sweepNanos;
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    // Counters read by the metrics
+    private final LongAdder limitedRequests = new LongAdder();
+    private final LongAdder limitedConnections = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+
+    public RateLimiter() {
+        this(RULES, IPV4_PREFIX, IPV6_PREFIX, MAX_CLIENTS, SWEEP_MILLIS);
+    }
+
+    public RateLimiter(String rules, int ipv4Prefix, int ipv6Prefix, int maxClients, long sweepMillis) {
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) continue;
+            int equals = rule.lastIndexOf('=');
+            if (equals <= 0 || !rule.startsWith("/")) {
+                throw new IllegalArgumentException("Rate limit rule is not prefix=rate[:burst]: " + rule);
+            }
+            String[] limit = rule.substring(equals + 1).split(":");
+            double rate = Double.parseDouble(limit[0]);
+            double burst = limit.length > 1 ? Double.parseDouble(limit[1]) : Math.max(1, rate);
+            if (!(rate > 0)) throw new IllegalArgumentException("Rate must be positive: " + rule);
+            this.rules.add(new Rule(rule.substring(0, equals), rate, burst));
+        }
+        this.rules.sort(Comparator.comparingInt((Rule r) -> r.prefix.length()).reversed());
+        Rule root = null;
+        for (Rule rule : this.rules) {
+            if ("/".equals(rule.prefix)) root = rule;
+        }
+        this.rootRule = root;
+        this.ipv4Prefix = Math.max(0, Math.min(32, ipv4Prefix));
+        this.ipv6Prefix = Math.max(0, Math.min(64, ipv6Prefix));
+        this.maxClients = Math.max(1, maxClients);
+        this.sweepNanos = TimeUnit.MILLISECONDS.toNanos(sweepMillis);
+    }
+
+    public boolean isEnabled() {
+        return !rules.isEmpty();
+    }
+
+    // Returns true if a new connection may go ahead: its client has a token left under the rule for "/". No token
+    // is taken, as the requests on the connection pay for themselves; this only keeps a client that is already
+    // over its limit from occupying a worker to be told so.
+    public boolean admit(InetAddress address) {
+        if (rootRule == null || address == null) return true;
+        long now = System.nanoTime();
+        AtomicLong bucket = rootRule.buckets.get(clientKey(address));
+        return bucket == null || bucket.get() - now <= rootRule.tolerance;
+    }
+
+    // Takes a token for a request and returns 0, or returns the nanoseconds until the client may try again
+    public long acquire(InetAddress address, String path) {
+        if (rules.isEmpty() || address == null) return 0;
+        Rule rule = ruleFor(path);
+        if (rule == null) return 0;
+        long now = System.nanoTime();
+        maybeSweep(now);
+        AtomicLong bucket = bucket(rule, clientKey(address), now);
+        while (true) {
+            long full = bucket.get();
+            long start = full - now > 0 ? full : now;
+            long wait = start - now - rule.tolerance;
+            if (wait > 0) {
+                limitedRequests.increment();
+                return wait;
+            }
+            if (bucket.compareAndSet(full, start + rule.interval)) return 0;
+        }
+    }
+
+    // Answers a connection refused by admit() with 429 and closes it
+    public void reject(Socket socket) {
+        limitedConnections.increment();
+        AdmissionControl.sendAndClose(socket, tooManyRequests(retryAfter(socket.getInetAddress())));
+    }
+
+    public void reject(SocketChannel channel) {
+        limitedConnections.increment();
+        AdmissionControl.sendAndClose(channel, tooManyRequests(retryAfter(channel.socket().getInetAddress())));
+    }
+
+    // Returns the value of a Retry-After header for a wait in nanoseconds: whole seconds, rounded up
+    public static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    // Number of buckets held across all rules
+    public int size() {
+        int size = 0;
+        for (Rule rule : rules) size += rule.buckets.size();
+        return size;
+    }
+
+    public long getLimitedRequests() {
+        return limitedRequests.sum();
+    }
+
+    public long getLimitedConnections() {
+        return limitedConnections.sum();
+    }
+
+    // Number of requests from new clients counted against a rule's shared bucket because its map was full
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+
+    private Rule ruleFor(String path) {
+        for (Rule rule : rules) {
+            if (path.startsWith(rule.prefix)) return rule;
+        }
+        return null;
+    }
+
+    // Finds or adds the client's bucket. When the map is full the shared overflow bucket is used, so memory stays
+    // bounded, and a sweep is started in the background to make room; the request thread never sweeps.
+    private AtomicLong bucket(Rule rule, long key, long now) {
+        AtomicLong bucket = rule.buckets.get(key);
+        if (bucket != null) return bucket;
+        if (rule.buckets.size() >= maxClients) {
+            overflowed.increment();
+            startSweep();
+            return rule.overflow;
+        }
+        // A new bucket starts full: its full time is now
+        return rule.buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+
+    // Starts a sweep of idle buckets in the background when one is due
+    private void maybeSweep(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + sweepNanos)) return;
+        startSweep();
+    }
+
+    // Sweeps the idle buckets of every rule in the background unless a sweep is already running
+    private void startSweep() {
+        if (!sweeping.compareAndSet(false, true)) return;
+        ForkJoinPool.commonPool().execute(() -> {
+            try {
+                long start = System.nanoTime();
+                int before = size();
+                for (Rule rule : rules) sweep(rule, start);
+                logger.fine("Rate limiter swept " + (before - size()) + " idle buckets");
+            } finally {
+                sweeping.set(false);
+            }
+        });
+    }
+
+    // Drops the buckets that are full again; a request racing with the removal just starts a new, full bucket
+    private static void sweep(Rule rule, long now) {
+        rule.buckets.entrySet().removeIf(entry -> entry.getValue().get() - now <= 0);
+    }
+
+    // Returns the Retry-After seconds for a client refused at accept time
+    private long retryAfter(InetAddress address) {
+        AtomicLong bucket = rootRule != null && address != null ? rootRule.buckets.get(clientKey(address)) : null;
+        long wait = bucket != null ? bucket.get() - System.nanoTime() - rootRule.tolerance : 0;
+        return retryAfterSeconds(wait);
+    }
+
+    // Maps an address to its client: the leading bits of the address packed in a long. IPv4 keys have bit 32 set,
+    // which no IPv6 /64 that is handed out starts with.
+    long clientKey(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            long bits = ((bytes[0] & 0xffL) << 24) | ((bytes[1] & 0xffL) << 16) | ((bytes[2] & 0xffL) << 8) | (bytes[3] & 0xffL);
+            long mask = ipv4Prefix == 0 ? 0 : (0xffffffffL << (32 - ipv4Prefix)) & 0xffffffffL;
+            return (1L << 32) | (bits & mask);
+        }
+        long high = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[i] & 0xffL);
+        }
+        return ipv6Prefix == 0 ? 0 : high & (-1L << (64 - ipv6Prefix));
+    }
+
+    // The whole 429 response for a connection turned away before its request was read
+    private static byte[] tooManyRequests(long retryAfterSeconds) {
+        String body = "<HTML><HEAD><TITLE>Too Many Requests</TITLE></HEAD><BODY>"
+                + "<H1>HTTP Error 429: Too Many Requests</H1></BODY></HTML>";
+        return ("HTTP/1.1 429 Too Many Requests\r\n"
+                + "Server: JHTTP 2.0\r\n"
+                + "Connection: close\r\n"
+                + "Retry-After: " + retryAfterSeconds + "\r\n"
+                + "Content-length: " + body.length() + "\r\n"
+                + "Content-type: text/html; charset=utf-8\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII);
+    }
+}
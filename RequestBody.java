@@ -0,0 +1,270 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Locale;
+import java.util.Map;
+
+// The body of a request, read from the connection as the handler asks for it. The body is framed by Content-Length
+// or by chunked transfer coding and never reads past its end, so the next request on a persistent connection starts
+// in the right place. A body larger than the configured maximum is refused with 413 Payload Too Large, before any of
+// it is read when the length is announced up front. Handlers either read the stream incrementally or spool() it,
+// which keeps small bodies in memory and moves larger ones to a temp file; whatever they leave is discard()ed.
+public class RequestBody extends InputStream {
+
+    // Largest body accepted
+    static final long MAX_BYTES = Long.getLong("jhttp.request.maxBodyBytes", 16 * 1024 * 1024);
+    // Bodies larger than this are spooled to a temp file instead of the heap
+    static final int SPILL_BYTES = Integer.getInteger("jhttp.request.spillBytes", 64 * 1024);
+    // Longest chunk-size line or trailer line
+    private static final int MAX_CHUNK_LINE = 1024;
+    // Largest number of trailer lines after the last chunk
+    private static final int MAX_TRAILERS = 32;
+
+    private final RequestParser source;
+    private final long length;
+    private final boolean chunked;
+    private final long maxBytes;
+    private long consumed;
+    // Bytes left in the current chunk, or in the whole body when it has a fixed length
+    private long remaining;
+    private boolean finished;
+    private final byte[] single = new byte[1];
+
+    private RequestBody(RequestParser source, long length, boolean chunked, long maxBytes) {
+        this.source = source;
+        this.length = length;
+        this.chunked = chunked;
+        this.maxBytes = maxBytes;
+        this.remaining = chunked ? 0 : length;
+        this.finished = !chunked && length == 0;
+    }
+
+    // Works out how the body of the request just parsed is framed. A request with neither Content-Length nor
+    // Transfer-Encoding has no body. Throws 400 for conflicting or malformed framing, 501 for a transfer coding other
+    // than chunked, and 413 if the announced length is over the limit.
+    public static RequestBody open(RequestParser parser, Map<String, String> headers, long maxBytes)
+            throws RequestParser.BadRequestException {
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if (transferEncoding != null) {
+            // A message with both could be framed differently by a proxy in front of us, so it is refused
+            if (contentLength != null) {
+                throw new RequestParser.BadRequestException("400 Bad Request", "Both Content-Length and Transfer-Encoding");
+            }
+            if (!"chunked".equals(transferEncoding.trim().toLowerCase(Locale.ROOT))) {
+                throw new RequestParser.BadRequestException("501 Not Implemented", "Unsupported transfer coding " + transferEncoding);
+            }
+            return new RequestBody(parser, -1, true, maxBytes);
+        }
+        if (contentLength == null) {
+            return new RequestBody(parser, 0, false, maxBytes);
+        }
+
+        long length = parseLength(contentLength);
+        if (length > maxBytes) {
+            throw new RequestParser.BadRequestException("413 Payload Too Large", "Body of " + length + " bytes");
+        }
+        return new RequestBody(parser, length, false, maxBytes);
+    }
+
+    // Parses a Content-Length value; repeated headers joined by the parser must all agree
+    private static long parseLength(String value) throws RequestParser.BadRequestException {
+        long length = -1;
+        for (String part : value.split(",")) {
+            long parsed = parseDigits(part.trim());
+            if (parsed < 0 || (length >= 0 && parsed != length)) {
+                throw new RequestParser.BadRequestException("400 Bad Request", "Invalid Content-Length " + value);
+            }
+            length = parsed;
+        }
+        return length;
+    }
+
+    // Returns the value of a string of decimal digits, or -1 if it is empty, has other characters or is too long
+    private static long parseDigits(String digits) {
+        if (digits.isEmpty() || digits.length() > 18) return -1;
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') return -1;
+        }
+        return Long.parseLong(digits);
+    }
+
+    // Returns the announced length, or -1 for a chunked body
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    // Returns true if the request has a body that may still need reading
+    public boolean isPresent() {
+        return chunked || length > 0;
+    }
+
+    // Returns true once the whole body has been read
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (finished) return -1;
+        if (chunked && remaining == 0) {
+            if (consumed > 0) readChunkEnd();
+            remaining = readChunkSize();
+            if (remaining == 0) {
+                readTrailers();
+                finished = true;
+                return -1;
+            }
+            if (consumed + remaining > maxBytes) {
+                throw new RequestParser.BadRequestException("413 Payload Too Large", "Chunked body over " + maxBytes + " bytes");
+            }
+        }
+
+        int n = source.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0) {
+            throw new EOFException("Connection closed with " + remaining + " body bytes still to come");
+        }
+        consumed += n;
+        remaining -= n;
+        if (!chunked && remaining == 0) finished = true;
+        return n;
+    }
+
+    // Reads and throws away whatever is left of the body, so the connection can carry another request
+    public void discard() throws IOException {
+        byte[] buffer = new byte[8192];
+        while (read(buffer, 0, buffer.length) >= 0) {
+        }
+    }
+
+    // Reads the whole body, keeping up to threshold bytes in memory and moving anything larger to a temp file
+    public Spooled spool(int threshold) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream((int) Math.min(threshold, length >= 0 ? length : 8192));
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = read(buffer, 0, buffer.length)) >= 0) {
+            if (memory.size() + n > threshold) {
+                return spill(memory, buffer, n);
+            }
+            memory.write(buffer, 0, n);
+        }
+        return new Spooled(memory.toByteArray(), null, memory.size());
+    }
+
+    // Moves a body that outgrew memory to a temp file: what has been read so far, then the rest of the stream
+    private Spooled spill(ByteArrayOutputStream memory, byte[] buffer, int n) throws IOException {
+        Path file = Files.createTempFile("jhttp-body-", ".tmp");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            memory.writeTo(out);
+            long total = memory.size();
+            do {
+                out.write(buffer, 0, n);
+                total += n;
+            } while ((n = read(buffer, 0, buffer.length)) >= 0);
+            return new Spooled(null, file, total);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+    }
+
+    // Reads a chunk-size line and returns the size; chunk extensions are ignored
+    private long readChunkSize() throws IOException {
+        String line = readLine();
+        int end = line.indexOf(';');
+        long size = parseHex((end >= 0 ? line.substring(0, end) : line).trim());
+        if (size < 0) {
+            throw new RequestParser.BadRequestException("400 Bad Request", "Invalid chunk size " + line);
+        }
+        return size;
+    }
+
+    // Returns the value of a string of hex digits, or -1 if it is empty, has other characters (signs included) or
+    // is too long
+    private static long parseHex(String digits) {
+        if (digits.isEmpty() || digits.length() > 15) return -1;
+        long value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+            if (digit < 0) return -1;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    // Reads the CRLF that follows the data of a chunk
+    private void readChunkEnd() throws IOException {
+        if (!readLine().isEmpty()) {
+            throw new RequestParser.BadRequestException("400 Bad Request", "Missing CRLF after chunk data");
+        }
+    }
+
+    // Skips the trailer section after the last chunk, up to the blank line that ends the body
+    private void readTrailers() throws IOException {
+        for (int i = 0; i <= MAX_TRAILERS; i++) {
+            if (readLine().isEmpty()) return;
+        }
+        throw new RequestParser.BadRequestException("400 Bad Request", "Too many trailer lines");
+    }
+
+    // Reads one line of chunk framing without its line ending, one byte at a time so nothing past it is consumed
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int n = source.read(single, 0, 1);
+            if (n < 0) throw new EOFException("Connection closed inside chunked body");
+            char c = (char) (single[0] & 0xff);
+            if (c == '\n') break;
+            if (line.length() >= MAX_CHUNK_LINE) {
+                throw new RequestParser.BadRequestException("400 Bad Request", "Chunk line too long");
+            }
+            line.append(c);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+        return line.toString();
+    }
+
+    // A body read to the end, held in memory or in a temp file that is deleted on close
+    public static final class Spooled implements Closeable {
+        private final byte[] data;
+        private final Path file;
+        private final long length;
+
+        private Spooled(byte[] data, Path file, long length) {
+            this.data = data;
+            this.file = file;
+            this.length = length;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        // Returns the body if it is in memory, or null if it was spooled to a file
+        public byte[] getData() {
+            return data;
+        }
+
+        // Returns the temp file holding the body, or null if it is in memory
+        public Path getFile() {
+            return file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) Files.deleteIfExists(file);
+        }
+    }
+}
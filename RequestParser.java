@@ -0,0 +1,437 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Parses HTTP/1.x request heads straight from bytes, shared by RequestProcessor and the NIO engine.
+// The request line and headers are checked against fixed limits, the target is split into a percent-decoded path
+// and a raw query, and header names are lower-cased. Methods, versions and common header names come from constant
+// tables, and the buffers and header map are reused for every request on the connection, so the only strings a
+// typical request creates are its target and header values.
+//
+// RequestProcessor reads through the parser, which also hands out the bytes of a request body that arrived with
+// the head; the NIO engine finds the end of the head itself and passes its own buffer to parse().
+public final class RequestParser {
+
+    // Largest request line or header line
+    static final int MAX_LINE = Integer.getInteger("jhttp.request.maxLineBytes", 8192);
+    // Largest request head: request line, headers and the blank line after them
+    static final int MAX_HEAD = Integer.getInteger("jhttp.request.maxHeadBytes", 16384);
+    // Largest number of header lines
+    static final int MAX_HEADERS = Integer.getInteger("jhttp.request.maxHeaders", 100);
+
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE", "PATCH", "CONNECT", "PRI" };
+    private static final String[] HEADER_NAMES = { "host", "user-agent", "accept", "accept-encoding", "accept-language",
+            "accept-charset", "connection", "keep-alive", "content-length", "content-type", "transfer-encoding", "expect",
+            "range", "if-range", "if-none-match", "if-modified-since", "if-match", "if-unmodified-since", "authorization",
+            "cookie", "referer", "origin", "cache-control", "pragma", "upgrade", "http2-settings", "te", "dnt",
+            "x-forwarded-for", "x-forwarded-proto", "x-real-ip", "upgrade-insecure-requests", "sec-fetch-site",
+            "sec-fetch-mode", "sec-fetch-dest", "sec-fetch-user" };
+    // Header names grouped by length, so a lookup only compares names that could match
+    private static final String[][] HEADER_NAMES_BY_LENGTH = new String[32][];
+    // Characters allowed in methods and header names (RFC 7230 tchar)
+    private static final boolean[] TOKEN = new boolean[128];
+
+    static {
+        for (String name : HEADER_NAMES) {
+            String[] group = HEADER_NAMES_BY_LENGTH[name.length()];
+            group = group == null ? new String[1] : Arrays.copyOf(group, group.length + 1);
+            group[group.length - 1] = name;
+            HEADER_NAMES_BY_LENGTH[name.length()] = group;
+        }
+        for (char c = '0'; c <= '9'; c++) TOKEN[c] = true;
+        for (char c = 'a'; c <= 'z'; c++) TOKEN[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) TOKEN[c] = true;
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) TOKEN[c] = true;
+    }
+
+    // Thrown for a request that breaks the syntax or the limits; the connection is answered with the status and closed
+    public static final class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final String statusLine;
+
+        BadRequestException(String statusLine, String message) {
+            super(message);
+            this.statusLine = statusLine;
+        }
+
+        public String getStatusLine() {
+            return statusLine;
+        }
+    }
+
+    // Source and buffer when the parser reads from a stream
+    private final InputStream in;
+    private final byte[] buffer;
+    private int start;
+    private int limit;
+
+    // Scratch space for percent-decoding, allocated the first time a path needs it
+    private byte[] decoded;
+
+    // Results of the last parse
+    private String method;
+    private String target;
+    private String path;
+    private String query;
+    private String version;
+    private final Map<String, String> headers = new HashMap<>();
+
+    // Constructor for a parser that reads requests from a stream
+    public RequestParser(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[MAX_HEAD];
+    }
+
+    // Constructor for a parser that is handed complete request heads
+    public RequestParser() {
+        this.in = null;
+        this.buffer = null;
+    }
+
+    // Reads and parses the next request head from the stream. Blank lines left over from a previous request are
+    // skipped. Returns false if the stream ends cleanly before a new request starts.
+    public boolean readRequest() throws IOException {
+        int scanned = start;
+        while (true) {
+            // Skip CR and LF bytes sent between requests
+            while (start < limit && (buffer[start] == '\r' || buffer[start] == '\n')) start++;
+            scanned = Math.max(scanned, start);
+
+            int end = headEnd(buffer, start, scanned, limit);
+            if (end >= 0) {
+                parse(buffer, start, end);
+                start = end;
+                return true;
+            }
+            scanned = limit;
+
+            if (limit - start == buffer.length) {
+                throw tooLarge(buffer, start, limit);
+            }
+            if (limit == buffer.length) {
+                // Move the partial head to the front to make room for the rest of it
+                System.arraycopy(buffer, start, buffer, 0, limit - start);
+                scanned -= start;
+                limit -= start;
+                start = 0;
+            }
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                if (start == limit) return false;
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+            limit += n;
+        }
+    }
+
+    // Reads body bytes that follow the last head, taking them from the parser's buffer before the stream
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (start < limit) {
+            int n = Math.min(len, limit - start);
+            System.arraycopy(buffer, start, b, off, n);
+            start += n;
+            return n;
+        }
+        return in.read(b, off, len);
+    }
+
+    // Returns true if body bytes can be read without blocking
+    public boolean ready() throws IOException {
+        return start < limit || in.available() > 0;
+    }
+
+    // Returns the index just past the blank line that ends a request head in buf[start, end), or -1 if it has not
+    // arrived yet. Scanning starts at from, so a caller can skip bytes it has already looked at.
+    static int headEnd(byte[] buf, int start, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] != '\n') continue;
+            if (i - 1 >= start && buf[i - 1] == '\n') return i + 1;
+            if (i - 2 >= start && buf[i - 1] == '\r' && buf[i - 2] == '\n') return i + 1;
+        }
+        return -1;
+    }
+
+    // Parses a complete request head in buf[from, end), which must end with the blank line
+    public void parse(byte[] buf, int from, int end) throws BadRequestException {
+        headers.clear();
+        int lineEnd = lineEnd(buf, from, end);
+        parseRequestLine(buf, from, trimCR(buf, from, lineEnd));
+
+        int count = 0;
+        int pos = lineEnd + 1;
+        while (pos < end) {
+            lineEnd = lineEnd(buf, pos, end);
+            int contentEnd = trimCR(buf, pos, lineEnd);
+            if (contentEnd == pos) break;
+            if (++count > MAX_HEADERS) {
+                throw new BadRequestException("431 Request Header Fields Too Large", "More than " + MAX_HEADERS + " headers");
+            }
+            if (contentEnd - pos > MAX_LINE) {
+                throw new BadRequestException("431 Request Header Fields Too Large", "Header line longer than " + MAX_LINE + " bytes");
+            }
+            parseHeader(buf, pos, contentEnd);
+            pos = lineEnd + 1;
+        }
+    }
+
+    // Parses "METHOD SP request-target [SP HTTP-version]"; a request without a version is a HTTP/0.9 request
+    private void parseRequestLine(byte[] buf, int from, int end) throws BadRequestException {
+        if (end - from > MAX_LINE) {
+            throw new BadRequestException("414 URI Too Long", "Request line longer than " + MAX_LINE + " bytes");
+        }
+        int methodEnd = from;
+        while (methodEnd < end && buf[methodEnd] != ' ' && buf[methodEnd] != '\t') methodEnd++;
+        if (methodEnd == from || !isToken(buf, from, methodEnd)) {
+            throw new BadRequestException("400 Bad Request", "Malformed method");
+        }
+        method = lookup(METHODS, buf, from, methodEnd, false);
+        if (method == null) method = new String(buf, from, methodEnd - from, StandardCharsets.US_ASCII);
+
+        int targetStart = skipSpaces(buf, methodEnd, end);
+        int targetEnd = targetStart;
+        while (targetEnd < end && buf[targetEnd] != ' ' && buf[targetEnd] != '\t') targetEnd++;
+        if (targetEnd == targetStart) {
+            throw new BadRequestException("400 Bad Request", "Missing request target");
+        }
+        parseTarget(buf, targetStart, targetEnd);
+
+        int versionStart = skipSpaces(buf, targetEnd, end);
+        int versionEnd = versionStart;
+        while (versionEnd < end && buf[versionEnd] != ' ' && buf[versionEnd] != '\t') versionEnd++;
+        if (skipSpaces(buf, versionEnd, end) != end) {
+            throw new BadRequestException("400 Bad Request", "Unexpected text after the HTTP version");
+        }
+        version = parseVersion(buf, versionStart, versionEnd);
+    }
+
+    // Splits the target into a percent-decoded path and a raw query. Absolute targets ("http://host/path") are
+    // reduced to their path, and "*" is kept as it is for OPTIONS.
+    private void parseTarget(byte[] buf, int from, int end) throws BadRequestException {
+        for (int i = from; i < end; i++) {
+            if (buf[i] < 0x21 || buf[i] == 0x7f) {
+                throw new BadRequestException("400 Bad Request", "Invalid character in request target");
+            }
+        }
+        target = new String(buf, from, end - from, StandardCharsets.US_ASCII);
+
+        int pathStart = from;
+        if (startsWithIgnoreCase(buf, from, end, "http://") || startsWithIgnoreCase(buf, from, end, "https://")) {
+            pathStart = from + (buf[from + 4] == ':' ? 7 : 8);
+            while (pathStart < end && buf[pathStart] != '/' && buf[pathStart] != '?') pathStart++;
+        } else if (end - from == 1 && buf[from] == '*') {
+            path = "*";
+            query = null;
+            return;
+        } else if (buf[from] != '/') {
+            throw new BadRequestException("400 Bad Request", "Request target must start with /");
+        }
+
+        int pathEnd = pathStart;
+        while (pathEnd < end && buf[pathEnd] != '?' && buf[pathEnd] != '#') pathEnd++;
+        int queryEnd = pathEnd;
+        while (queryEnd < end && buf[queryEnd] != '#') queryEnd++;
+        query = pathEnd < queryEnd && buf[pathEnd] == '?'
+                ? new String(buf, pathEnd + 1, queryEnd - pathEnd - 1, StandardCharsets.US_ASCII)
+                : null;
+
+        if (pathStart == pathEnd) {
+            path = "/";
+        } else if (pathStart == from && pathEnd == end && indexOf(buf, pathStart, pathEnd, (byte) '%') < 0) {
+            // Nothing to decode or cut off, so the path is the target itself
+            path = target;
+        } else {
+            path = percentDecode(buf, pathStart, pathEnd);
+        }
+    }
+
+    // Parses a request target on its own, such as the :path of a HTTP/2 request, and returns the decoded path;
+    // getTarget() and getQuery() describe it afterwards
+    public String parseTarget(String target) throws BadRequestException {
+        byte[] bytes = target.getBytes(StandardCharsets.ISO_8859_1);
+        if (bytes.length == 0) {
+            throw new BadRequestException("400 Bad Request", "Missing request target");
+        }
+        if (bytes.length > MAX_LINE) {
+            throw new BadRequestException("414 URI Too Long", "Request target longer than " + MAX_LINE + " bytes");
+        }
+        parseTarget(bytes, 0, bytes.length);
+        return path;
+    }
+
+    // Decodes %XX escapes into UTF-8 text; malformed escapes and encoded NUL bytes are refused
+    private String percentDecode(byte[] buf, int from, int end) throws BadRequestException {
+        if (decoded == null || decoded.length < end - from) decoded = new byte[Math.max(256, end - from)];
+        int n = 0;
+        for (int i = from; i < end; i++) {
+            byte b = buf[i];
+            if (b == '%') {
+                int high = i + 2 < end ? hexValue(buf[i + 1]) : -1;
+                int low = i + 2 < end ? hexValue(buf[i + 2]) : -1;
+                if (high < 0 || low < 0) {
+                    throw new BadRequestException("400 Bad Request", "Malformed percent-encoding");
+                }
+                b = (byte) (high << 4 | low);
+                if (b == 0) {
+                    throw new BadRequestException("400 Bad Request", "Encoded NUL in path");
+                }
+                i += 2;
+            }
+            decoded[n++] = b;
+        }
+        return new String(decoded, 0, n, StandardCharsets.UTF_8);
+    }
+
+    // Returns the version as a constant for HTTP/1.0 and HTTP/1.1, or "" for a request without one
+    private static String parseVersion(byte[] buf, int from, int end) throws BadRequestException {
+        if (from == end) return "";
+        if (end - from != 8 || !startsWithIgnoreCase(buf, from, end, "HTTP/")
+                || !isDigit(buf[from + 5]) || buf[from + 6] != '.' || !isDigit(buf[from + 7])) {
+            throw new BadRequestException("400 Bad Request", "Malformed HTTP version");
+        }
+        if (buf[from + 5] == '1' && buf[from + 7] == '1') return "HTTP/1.1";
+        if (buf[from + 5] == '1' && buf[from + 7] == '0') return "HTTP/1.0";
+        return new String(buf, from, end - from, StandardCharsets.US_ASCII);
+    }
+
+    // Parses "name: value" into the header map; repeated headers are joined with commas
+    private void parseHeader(byte[] buf, int from, int end) throws BadRequestException {
+        if (buf[from] == ' ' || buf[from] == '\t') {
+            throw new BadRequestException("400 Bad Request", "Folded header lines are not supported");
+        }
+        int colon = indexOf(buf, from, end, (byte) ':');
+        if (colon <= from || !isToken(buf, from, colon)) {
+            throw new BadRequestException("400 Bad Request", "Malformed header line");
+        }
+        int nameLength = colon - from;
+        String[] group = nameLength < HEADER_NAMES_BY_LENGTH.length ? HEADER_NAMES_BY_LENGTH[nameLength] : null;
+        String name = group != null ? lookup(group, buf, from, colon, true) : null;
+        if (name == null) name = lowerCase(buf, from, colon);
+
+        int valueStart = skipSpaces(buf, colon + 1, end);
+        int valueEnd = end;
+        while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) valueEnd--;
+        for (int i = valueStart; i < valueEnd; i++) {
+            if (buf[i] == 0 || buf[i] == '\r') {
+                throw new BadRequestException("400 Bad Request", "Invalid character in header value");
+            }
+        }
+        String value = new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        headers.merge(name, value, (previous, next) -> previous + ", " + next);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    // The request target exactly as it was sent, for logging
+    public String getTarget() {
+        return target;
+    }
+
+    // The decoded path without the query
+    public String getPath() {
+        return path;
+    }
+
+    // The raw query string after "?", or null if there is none
+    public String getQuery() {
+        return query;
+    }
+
+    // "HTTP/1.0", "HTTP/1.1", another HTTP version, or "" for a HTTP/0.9 request
+    public String getVersion() {
+        return version;
+    }
+
+    // Headers keyed by lower-case name; the map is reused and only valid until the next request is parsed
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    // Builds the exception for a head that does not fit in the buffer: one long line or too many headers
+    static BadRequestException tooLarge(byte[] buf, int from, int end) {
+        if (indexOf(buf, from, end, (byte) '\n') < 0) {
+            return new BadRequestException("414 URI Too Long", "Request line longer than " + (end - from) + " bytes");
+        }
+        return new BadRequestException("431 Request Header Fields Too Large", "Request head longer than " + (end - from) + " bytes");
+    }
+
+    // Returns the constant from the table equal to buf[from, end), or null if there is none
+    private static String lookup(String[] table, byte[] buf, int from, int end, boolean ignoreCase) {
+        int length = end - from;
+        for (String candidate : table) {
+            if (candidate.length() != length) continue;
+            int i = 0;
+            while (i < length && matches(buf[from + i], candidate.charAt(i), ignoreCase)) i++;
+            if (i == length) return candidate;
+        }
+        return null;
+    }
+
+    private static boolean matches(byte b, char c, boolean ignoreCase) {
+        return b == c || (ignoreCase && b >= 'A' && b <= 'Z' && b + ('a' - 'A') == c);
+    }
+
+    private static String lowerCase(byte[] buf, int from, int end) {
+        char[] chars = new char[end - from];
+        for (int i = from; i < end; i++) {
+            byte b = buf[i];
+            chars[i - from] = (char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+        }
+        return new String(chars);
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buf, int from, int end, String prefix) {
+        if (end - from < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            byte b = buf[from + i];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != Character.toLowerCase(prefix.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static boolean isToken(byte[] buf, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] < 0 || !TOKEN[buf[i]]) return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+
+    private static int indexOf(byte[] buf, int from, int end, byte b) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(byte[] buf, int from, int end) {
+        while (from < end && (buf[from] == ' ' || buf[from] == '\t')) from++;
+        return from;
+    }
+
+    // Returns the index of the LF ending the line that starts at from; a complete head always has one
+    private static int lineEnd(byte[] buf, int from, int end) {
+        int lf = indexOf(buf, from, end, (byte) '\n');
+        return lf < 0 ? end : lf;
+    }
+
+    // Returns the end of a line's content, leaving out the CR before its LF
+    private static int trimCR(byte[] buf, int from, int lineEnd) {
+        return lineEnd > from && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+}
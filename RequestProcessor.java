@@ -1,93 +1,223 @@
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.*;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 public class RequestProcessor implements Runnable {
 
     // Logger for logging messages
     private static final Logger logger = Logger.getLogger(RequestProcessor.class.getCanonicalName());
+    // Milliseconds a persistent connection may stay idle before it is closed
+    static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("jhttp.keepAlive.timeout", 5000);
+    // Milliseconds a client has to send a whole request head, counted from when a thread takes up the connection for
+    // the first request and from its first byte for later ones, so a client trickling a header cannot hold a thread
+    static final int HEADER_TIMEOUT = Integer.getInteger("jhttp.request.headerTimeoutMillis", 10000);
+    // Milliseconds a single read of a request body may wait for data
+    static final int READ_TIMEOUT = Integer.getInteger("jhttp.request.readTimeoutMillis", 30000);
+    // Maximum number of requests served on one persistent connection
+    static final int MAX_KEEP_ALIVE_REQUESTS = Integer.getInteger("jhttp.keepAlive.maxRequests", 100);
+    // Interim response telling a client that sent "Expect: 100-continue" to go ahead with the body
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // Bodies of the error pages, encoded once
+    private static final byte[] NOT_FOUND_BODY = ("<HTML><HEAD><TITLE>File Not Found</TITLE></HEAD><BODY>"
+            + "<H1>HTTP Error 404: File Not Found</H1></BODY></HTML>").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NOT_IMPLEMENTED_BODY = ("<HTML><HEAD><TITLE>Not Implemented</TITLE></HEAD><BODY>"
+            + "<H1>HTTP Error 501: Not Implemented</H1></BODY></HTML>").getBytes(StandardCharsets.US_ASCII);
 
     // Fields to store information about the request and processing context
-    private File rootDirectory;
+    private PathResolver resolver;
+    private BasicAuth auth;
+    private RateLimiter rateLimiter;
+    private ReverseProxy proxy;
     private String indexFileName = "index.html";
     private Socket connection;
     private String method;
-    private Map<String, byte[]> cacheMap;
-
-    // Constructor to initialize the RequestProcessor with necessary information
-    public RequestProcessor(File rootDirectory, String indexFileName, Socket connection, String method, Map<String, byte[]> cacheMap) {
-        // Check if rootDirectory is a directory, not a file
-        if (rootDirectory.isFile()) {
-            throw new IllegalArgumentException("rootDirectory must be a directory, not a file");
-        }
-
-        try {
-            // Get the canonical file representation of rootDirectory
-            rootDirectory = rootDirectory.getCanonicalFile();
-        } catch (IOException ex) {
-            // Log a warning if there's an error getting the canonical file
-            logger.log(Level.WARNING, "Error getting canonical file", ex);
-        }
-
+    private FileCache cache;
+    private AccessLog accessLog;
+    private Metrics metrics;
+    // System.nanoTime() when the connection was accepted
+    private long acceptedAt;
+
+    // State of the request currently being served on this connection
+    private RequestParser parser;
+    private Map<String, String> headers;
+    private String responseVersion = "HTTP/1.0";
+    private boolean keepAlive;
+    private int status;
+    private long bytesSent;
+    // When the time to first byte of the current response is measured from, and whether it has been recorded
+    private long firstByteFrom;
+    private boolean firstByteSent;
+
+    // Set by drain() when the server stops: the connection is closed after the request in progress. idle is true
+    // while the connection waits for another request, when drain() can close it at once.
+    private volatile boolean draining;
+    private volatile boolean idle;
+
+    // Encoder for response headers, reused for every response on this connection
+    private final ResponseHeaders responseHeaders = new ResponseHeaders();
+    // Buffers waiting to go out together in the next gathering write
+    private ByteBuffer[] pending = new ByteBuffer[8];
+    private int pendingCount;
+
+    // Constructor to initialize the RequestProcessor with necessary information; the resolver holds the document
+    // root, canonicalized once when the server was created
+    public RequestProcessor(PathResolver resolver, BasicAuth auth, RateLimiter rateLimiter, ReverseProxy proxy,
+                            String indexFileName, Socket connection, FileCache cache, AccessLog accessLog, Metrics metrics,
+                            long acceptedAt) {
         // Initialize fields with provided values
-        this.rootDirectory = rootDirectory;
+        this.resolver = resolver;
+        this.auth = auth;
+        this.rateLimiter = rateLimiter;
+        this.proxy = proxy;
         if (indexFileName != null) this.indexFileName = indexFileName;
         this.connection = connection;
-        this.method = method;
-        this.cacheMap = cacheMap;
+        this.cache = cache;
+        this.accessLog = accessLog;
+        this.metrics = metrics;
+        this.acceptedAt = acceptedAt;
     }
 
-    // Runnable interface method to handle the request
+    // Runnable interface method to handle the requests sent over this connection
     @Override
     public void run() {
         try (
             OutputStream raw = new BufferedOutputStream(connection.getOutputStream());
-            Writer out = new OutputStreamWriter(raw);
-            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "US-ASCII"))
+            TimedInput in = new TimedInput(connection.getInputStream())
         ) {
-            // Read the request line
-            String requestLine = in.readLine();
-
-            System.out.println(connection.getRemoteSocketAddress() + " " + requestLine);
-
-            // Log headers for debugging
-            // String header;
-            // System.out.println("All Headers:");
-            // while (!(header = in.readLine()).isEmpty()) {
-            // System.out.println(header);
-            // }
-
-            String[] tokens = requestLine.split("\\s+");
-
-            // Log headers for debugging
-            // Arrays.stream(tokens)
-            // .filter(token -> !token.isEmpty())
-            //  .forEach(token -> System.out.println("Header: " + token));
-
-            // String authorizationHeader = findAuthorizationHeader(tokens);
-            // System.out.println("Authorization Header: " + authorizationHeader);
-
+            parser = new RequestParser(in);
+
+            // Serve requests in the order they arrive until the client or the limit ends the connection;
+            // pipelined requests simply wait in the parser's buffer until their turn
+            int served = 0;
+            do {
+                // Read the request line and headers, skipping blank lines left over from a previous request
+                long started;
+                try {
+                    // Between requests the connection is idle; drain() closes it rather than waiting for another
+                    if (served > 0) {
+                        idle = true;
+                        if (draining) break;
+                    }
+                    // The first request must arrive within the header timeout; a later one may keep the connection
+                    // waiting up to the keep-alive timeout, and then has the header timeout from its first byte
+                    if (served == 0) {
+                        in.expectHead(HEADER_TIMEOUT, false);
+                    } else {
+                        in.expectHead(KEEP_ALIVE_TIMEOUT, true);
+                    }
+                    boolean read = parser.readRequest();
+                    idle = false;
+                    if (!read) break;
+                    started = System.nanoTime();
+                    in.expectBody();
+                } catch (RequestParser.BadRequestException ex) {
+                    method = "-";
+                    responseVersion = "HTTP/1.1";
+                    started = System.nanoTime();
+                    firstByteFrom = served == 0 ? acceptedAt : started;
+                    firstByteSent = false;
+                    handleBadRequest(raw, ex);
+                    accessLog.log(remoteAddress(), "-", "-", status, bytesSent, 0);
+                    metrics.recordRequest(method, status, bytesSent, System.nanoTime() - started);
+                    break;
+                }
+                method = parser.getMethod();
+
+                logger.fine(connection.getRemoteSocketAddress() + " " + method + " " + parser.getTarget());
+
+                String version = parser.getVersion();
+                headers = parser.getHeaders();
+                // The first response on a connection is timed from the accept, later ones from reading their request
+                firstByteFrom = served == 0 ? acceptedAt : started;
+                firstByteSent = false;
+                served++;
+
+                // Decide whether the connection stays open after this response
+                responseVersion = "HTTP/1.1".equals(version) ? "HTTP/1.1" : "HTTP/1.0";
+                keepAlive = isKeepAlive(version, headers) && served < MAX_KEEP_ALIVE_REQUESTS && !draining;
+
+                // The HTTP/2 connection preface, or a request asking to upgrade to h2c, hands the rest of the
+                // connection over to HTTP/2. A request for a proxied path stays on HTTP/1.1, which is what the proxy
+                // speaks.
+                if (served == 1 && Http2Connection.isPreface(method, parser.getTarget(), version, headers)) {
+                    newHttp2Connection(raw).runPriorKnowledge();
+                    break;
+                }
+                ReverseProxy.Route route = proxy.route(method, parser.getPath());
+                byte[] http2Settings = draining || route != null ? null : Http2Connection.upgradeSettings(version, method, headers);
+                if (http2Settings != null) {
+                    newHttp2Connection(raw).runUpgrade(http2Settings, method, parser.getTarget(), headers, started);
+                    break;
+                }
 
-            logger.info(connection.getRemoteSocketAddress() + " " + requestLine);
+                // Work out how the request body is framed, whatever the method, so the next request on the
+                // connection is read from where this one ends rather than from inside its body
+                RequestBody body;
+                try {
+                    body = RequestBody.open(parser, headers, RequestBody.MAX_BYTES);
+                } catch (RequestParser.BadRequestException ex) {
+                    handleBadRequest(raw, ex);
+                    long latency = System.nanoTime() - started;
+                    accessLog.log(remoteAddress(), method, parser.getTarget(), status, bytesSent, latency);
+                    metrics.recordRequest(method, status, bytesSent, latency);
+                    break;
+                }
 
-            // Parse the request line
-            String version = (tokens.length > 2) ? tokens[2] : "";
+                // A client over its rate limit is told when to come back, and the connection is closed so it does
+                // not keep a worker busy refusing it
+                long wait = rateLimiter.acquire(connection.getInetAddress(), parser.getPath());
+
+                // Handle the request based on the HTTP method
+                if (wait > 0) {
+                    keepAlive = false;
+                    handleStatusPage(raw, "429 Too Many Requests", "Slow down",
+                            "Retry-After: " + RateLimiter.retryAfterSeconds(wait) + "\r\n");
+                } else if (route != null) {
+                    handleProxyRequest(route, version, body, raw);
+                } else if ("GET".equals(method) || "HEAD".equals(method)) {
+                    handleGetHeadRequest(parser.getPath(), version, raw);
+                } else if ("POST".equals(method)) {
+                    handlePostRequest(version, body, raw);
+                } else {
+                    handleNotImplemented(raw, version);
+                }
 
-            // Handle the request based on the HTTP method
-            if ("GET".equals(method) || "HEAD".equals(method)) {
-                handleGetHeadRequest(tokens, version, out, raw);
-            } else if ("POST".equals(method)) {
-                handlePostRequest(tokens, version, in, out, raw);
+                // Hand the finished request to the access log writer and the metrics
+                long latency = System.nanoTime() - started;
+                accessLog.log(remoteAddress(), method, parser.getTarget(), status, bytesSent, latency);
+                metrics.recordRequest(method, status, bytesSent, latency);
+
+                // Skip whatever of the body the handler did not read before the connection carries another request
+                if (keepAlive && !body.isFinished()) {
+                    try {
+                        body.discard();
+                    } catch (RequestParser.BadRequestException ex) {
+                        logger.fine("Unread body from " + connection.getRemoteSocketAddress() + " dropped: " + ex.getMessage());
+                        keepAlive = false;
+                    }
+                }
+            } while (keepAlive);
+        } catch (SocketTimeoutException ex) {
+            // The client kept the connection open without sending another request
+            logger.fine("Keep-alive timeout for " + connection.getRemoteSocketAddress());
+        } catch (IOException ex) {
+            if (draining) {
+                // drain() or close() closed the connection while the server was stopping
+                logger.fine("Connection to " + connection.getRemoteSocketAddress() + " closed on shutdown");
             } else {
-                handleNotImplemented(out, version);
+                // Log a warning if there's an error during request processing
+                logger.log(Level.WARNING, "Error talking to " + connection.getRemoteSocketAddress(), ex);
             }
-        } catch (IOException ex) {
-            // Log a warning if there's an error during request processing
-            logger.log(Level.WARNING, "Error talking to " + connection.getRemoteSocketAddress(), ex);
         } finally {
+            metrics.connectionClosed();
             try {
                 // Close the connection
                 connection.close();
@@ -98,10 +228,130 @@ public class RequestProcessor implements Runnable {
         }
     }
 
+    // The connection's input with the time limits of the request being read: a deadline for the whole head, and a
+    // timeout on each read of the body. A head that misses its deadline after it has started to arrive is answered
+    // with 408; a client that sends nothing at all is closed quietly, like an idle keep-alive connection.
+    private final class TimedInput extends FilterInputStream {
+        // System.nanoTime() by which the head must be complete, or 0 while reading a body
+        private long deadline;
+        // True until the first byte of the head arrives
+        private boolean waiting;
+        // Whether the first byte moves the deadline to the header timeout from then
+        private boolean restartOnFirstByte;
+
+        TimedInput(InputStream in) {
+            super(in);
+        }
+
+        void expectHead(long waitMillis, boolean restartOnFirstByte) {
+            this.deadline = System.nanoTime() + Math.max(0, waitMillis) * 1_000_000;
+            this.waiting = true;
+            this.restartOnFirstByte = restartOnFirstByte;
+        }
+
+        void expectBody() throws SocketException {
+            deadline = 0;
+            waiting = false;
+            connection.setSoTimeout(READ_TIMEOUT);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (deadline != 0) {
+                // Wait no longer than what is left of the deadline
+                long left = (deadline - System.nanoTime()) / 1_000_000;
+                if (left <= 0) throw timedOut();
+                connection.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+            }
+            int n;
+            try {
+                n = super.read(b, off, len);
+            } catch (SocketTimeoutException ex) {
+                if (deadline != 0) throw timedOut();
+                throw ex;
+            }
+            if (n > 0 && waiting) {
+                waiting = false;
+                if (restartOnFirstByte) deadline = System.nanoTime() + HEADER_TIMEOUT * 1_000_000L;
+            }
+            return n;
+        }
+
+        private IOException timedOut() {
+            if (waiting) return new SocketTimeoutException("No request received");
+            return new RequestParser.BadRequestException("408 Request Timeout", "Request head not received in time");
+        }
+    }
+
+    // Method to ask the connection to close once the request in progress has been answered; a connection waiting
+    // for its next request is closed right away. Called by the server while it stops.
+    void drain() {
+        draining = true;
+        if (idle) close();
+    }
+
+    // Method to tell whether the server asked the connection to close
+    boolean isDraining() {
+        return draining;
+    }
+
+    // Method to mark the connection as waiting for a request, when drain() may close it at once
+    void setIdle(boolean idle) {
+        this.idle = idle;
+    }
+
+    // Method to hand the connection to HTTP/2, which reads through the same parser so no input is lost
+    private Http2Connection newHttp2Connection(OutputStream raw) {
+        return new Http2Connection(this, connection, parser, raw, resolver, auth, rateLimiter, proxy, indexFileName,
+                cache, accessLog, metrics);
+    }
+
+    // Method to close the connection at once, cutting off a request in progress
+    void close() {
+        draining = true;
+        try {
+            connection.close();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Error closing connection", ex);
+        }
+    }
+
+    // Method to get the client's address as it appears in the access log
+    private String remoteAddress() {
+        InetAddress address = connection.getInetAddress();
+        return address != null ? address.getHostAddress() : "-";
+    }
+
+    // Method to decide whether a connection is persistent: HTTP/1.1 defaults to keep-alive unless the
+    // client sends "Connection: close", HTTP/1.0 only stays open if it asks for "Connection: keep-alive"
+    static boolean isKeepAlive(String version, Map<String, String> headers) {
+        String connectionHeader = headers.getOrDefault("connection", "");
+        if ("HTTP/1.1".equals(version)) {
+            return !"close".equalsIgnoreCase(connectionHeader);
+        }
+        return "HTTP/1.0".equals(version) && "keep-alive".equalsIgnoreCase(connectionHeader);
+    }
+
     // Method to handle GET and HEAD requests
-    private void handleGetHeadRequest(String[] tokens, String version, Writer out, OutputStream raw) throws IOException {
-        // Extract the requested file name from the request tokens
-        String fileName = tokens[1];
+    private void handleGetHeadRequest(String path, String version, OutputStream raw) throws IOException {
+        // The reserved metrics path is answered with the server's metrics rather than a file
+        if (!Metrics.PATH.isEmpty() && Metrics.PATH.equals(path)) {
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            queueHeader("200 OK", Metrics.CONTENT_TYPE, body.length, "Cache-Control: no-store\r\n");
+            if (!"HEAD".equals(method)) queue(ByteBuffer.wrap(body));
+            sendQueued(raw);
+            return;
+        }
+
+        // The requested file name is the decoded path, without any query string
+        String fileName = path;
 
         // If the file name ends with "/", append the default index file name
         if (fileName.endsWith("/")) fileName += indexFileName;
@@ -109,144 +359,327 @@ public class RequestProcessor implements Runnable {
         // Get the content type for the file
         String contentType = URLConnection.getFileNameMap().getContentTypeFor(fileName);
 
-        // Check if the file is cached
-        if (cacheMap.containsKey(fileName)) {
-            byte[] cachedData = cacheMap.get(fileName);
-            sendHeader(out, "HTTP/1.0 200 OK", contentType, cachedData.length);
+        // Look the file up in the cache, loading it from the file system on a miss
+        FileCache.Entry entry = loadFile(resolver, fileName, cache);
+        if (entry != null) {
+            // A protected file needs a user; without a valid one the client is asked for it
+            if (auth.isProtected(entry.getPath()) && auth.authenticate(headers.get("authorization")) == null) {
+                handleStatusPage(raw, "401 Unauthorized", "Unauthorized", auth.getChallenge());
+                return;
+            }
 
-            // If it's a GET request, send the cached data
-            if ("GET".equals(method)) {
-                raw.write(cachedData);
-                raw.flush();
+            // Work out the status, validators and body, honouring conditional and range headers
+            FileResponse response = FileResponse.forFile(method, fileName, entry, contentType, headers, cache);
+
+            // Queue the HTTP header
+            queueHeader(response.statusLine, response.contentType, response.contentLength, response.headers);
+
+            // Send the header and the body, which is empty for HEAD requests and 304 responses. Literal bytes and
+            // heap bodies go out with the header in one gathering write; other bodies are written after it.
+            for (FileResponse.Segment segment : response.segments) {
+                if (segment.bytes != null) {
+                    queue(ByteBuffer.wrap(segment.bytes));
+                } else if (segment.entry.getData() != null) {
+                    queue(ByteBuffer.wrap(segment.entry.getData(), (int) segment.offset, (int) segment.length));
+                } else {
+                    sendQueued(raw);
+                    sendBody(segment.entry, segment.offset, segment.length, raw);
+                }
             }
+            sendQueued(raw);
         } else {
-            // If the file is not cached, read it from the file system
-                File theFile = new File(rootDirectory, fileName.substring(1));
+            handleFileNotFound(raw, version);
+        }
+    }
 
-                // Check if the file is readable and within the server's root directory
-                if (theFile.canRead() && theFile.getCanonicalPath().startsWith(rootDirectory.getPath())) {
-                    // Read the file data
-                    byte[] data = Files.readAllBytes(theFile.toPath());
+    // Method to add a buffer to the next gathering write
+    private void queue(ByteBuffer buffer) {
+        if (pendingCount == pending.length) {
+            pending = Arrays.copyOf(pending, pendingCount * 2);
+        }
+        pending[pendingCount++] = buffer;
+    }
 
-                    // Cache the file data
-                    cacheMap.put(fileName, data);
+    // Method to send the queued buffers, with one gathering write when the socket has a channel so the header and
+    // a small body leave in the same packet
+    private void sendQueued(OutputStream raw) throws IOException {
+        if (pendingCount == 0) return;
+        if (!firstByteSent) {
+            metrics.recordFirstByte(System.nanoTime() - firstByteFrom);
+            firstByteSent = true;
+        }
+        try {
+            SocketChannel channel = connection.getChannel();
+            if (channel != null) {
+                long remaining = 0;
+                for (int i = 0; i < pendingCount; i++) {
+                    remaining += pending[i].remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= channel.write(pending, 0, pendingCount);
+                }
+            } else {
+                for (int i = 0; i < pendingCount; i++) {
+                    ByteBuffer buffer = pending[i];
+                    raw.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                }
+                raw.flush();
+            }
+        } finally {
+            Arrays.fill(pending, 0, pendingCount, null);
+            pendingCount = 0;
+        }
+    }
 
-                    // Send the HTTP header
-                    sendHeader(out, "HTTP/1.0 200 OK", contentType, data.length);
+    // Method to send a body that is not on the heap: an off-heap body is written straight to the socket,
+    // and anything else (a large file, or an off-heap body freed in the meantime) is sent from disk
+    private void sendBody(FileCache.Entry entry, long offset, long length, OutputStream raw) throws IOException {
+        ByteBuffer buffer = entry.acquireBuffer();
+        if (buffer == null) {
+            sendFile(entry.getPath(), offset, length, raw);
+            return;
+        }
+        try {
+            // Make sure the header has left the buffered stream before writing to the channel underneath it
+            raw.flush();
+            WritableByteChannel target = socketChannel(raw);
+            buffer.position((int) offset).limit((int) (offset + length));
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        } finally {
+            entry.releaseBuffer();
+        }
+    }
 
-                    // If it's a GET request, send the file data
-                    if ("GET".equals(method)) {
-                        raw.write(data);
-                        raw.flush();
-                    }
-                } else {
-                    handleFileNotFound(out, raw, version);
+    // Method to get a channel for writing directly to the client, preferring the socket's own channel
+    private WritableByteChannel socketChannel(OutputStream raw) {
+        SocketChannel socketChannel = connection.getChannel();
+        return socketChannel != null ? socketChannel : Channels.newChannel(raw);
+    }
+
+    // Method to send a large file straight from disk to the socket with FileChannel.transferTo, which lets the
+    // kernel copy the data (sendfile) instead of passing it through the Java heap
+    private void sendFile(Path path, long offset, long length, OutputStream raw) throws IOException {
+        // Make sure the header has left the buffered stream before writing to the channel underneath it
+        raw.flush();
+        WritableByteChannel target = socketChannel(raw);
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long n = file.transferTo(position, end - position, target);
+                if (n <= 0 && position >= file.size()) {
+                    // The file shrank after the Content-length header was sent
+                    throw new EOFException("File truncated while sending " + path);
                 }
+                position += n;
             }
         }
-    // private boolean authenticateUser(String[] tokens) {
-    //     System.out.println("Entering authenticateUser method");
-    
-    //     // Decode the Base64-encoded username:password string
-    //     String authorizationHeader = findAuthorizationHeader(tokens);
-    //     for(int i = 0; i<tokens.length; i++){
-    //         System.out.println(tokens[i]);
-    //     }
-    //     System.out.println("Authorization Header: " + authorizationHeader);
-    
-    //     if (authorizationHeader != null && authorizationHeader.startsWith("Basic ")) {
-    //         String credentials = new String(Base64.getDecoder().decode(authorizationHeader.substring(6)));
-    //         System.out.println("Decoded credentials: " + credentials);
-    
-    //         String[] userPass = credentials.split(":");
-    //         String username = userPass[0].trim();
-    //         String password = userPass[1].trim();
-    
-    //         // Check against the user.txt file
-    //         Path userFilePath = rootDirectory.toPath().resolve("user.txt");
-    //         System.out.println("User file path: " + userFilePath.toAbsolutePath());
-    
-    //         try (BufferedReader userFileReader = new BufferedReader(new FileReader(userFilePath.toFile()))) {
-    //             String line;
-    //             while ((line = userFileReader.readLine()) != null) {
-    //                 System.out.println("Line: " + line);  // Log each line for debugging
-    //                 String[] parts = line.split(":");
-    //                 if (parts.length == 2 && parts[0].equals(username) && parts[1].equals(password)) {
-    //                     System.out.println("Authentication successful!");
-    //                     return true;
-    //                 }
-    //             }
-    //         } catch (IOException e) {
-    //             logger.log(Level.WARNING, "Error reading user.txt file", e);
-    //         }
-    //     }
-    // }
+    }
+
+    // Method to fetch a file from the cache or read it from the root directory, shared with the NIO engine
+    // Returns null if the file cannot be read, is not a regular file or lies outside the root directory
+    static FileCache.Entry loadFile(PathResolver resolver, String fileName, FileCache cache) throws IOException {
+        // Check if the file is cached
+        FileCache.Entry cached = cache.get(fileName);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Find the readable file inside the root the name refers to; the answer, found or not, is remembered
+        Path file = resolver.resolve(fileName);
+        if (file == null) {
+            return null;
+        }
+        // Read the file data into the cache; concurrent misses for the same file share one read
+        return cache.load(fileName, file);
+    }
 
     // Method to handle POST requests
-    private void handlePostRequest(String[] tokens, String version, BufferedReader in, Writer out, OutputStream raw) throws IOException {
-        // Process the POST request data, read data sent in the body of POST request
-        StringBuilder requestBody = new StringBuilder();
-        while (in.ready()) {
-            requestBody.append(in.readLine());
+    private void handlePostRequest(String version, RequestBody body, OutputStream raw) throws IOException {
+        // A client that asked to wait for approval sends the body only after 100 Continue
+        if (body.isPresent() && "HTTP/1.1".equals(version) && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+            queue(ByteBuffer.wrap(CONTINUE));
+            sendQueued(raw);
+        }
+
+        // Read the body as it arrives; anything over the spill threshold goes to a temp file instead of the heap
+        RequestBody.Spooled requestBody;
+        try {
+            requestBody = body.spool(RequestBody.SPILL_BYTES);
+        } catch (RequestParser.BadRequestException ex) {
+            handleBadRequest(raw, ex);
+            return;
+        }
+
+        try {
+            // A form posted by create_acc.html creates an account instead of being echoed
+            if (BasicAuth.SIGNUP_PATH.equals(parser.getPath()) && requestBody.getData() != null
+                    && "application/x-www-form-urlencoded".equalsIgnoreCase(mediaType(headers.get("content-type")))) {
+                Map<String, String> form;
+                try {
+                    form = parseForm(new String(requestBody.getData(), StandardCharsets.US_ASCII));
+                } catch (IllegalArgumentException ex) {
+                    handleStatusPage(raw, "400 Bad Request", "Malformed form", "");
+                    return;
+                }
+                if (form.containsKey("username") && form.containsKey("password")) {
+                    handleSignup(raw, form.get("username"), form.get("password"));
+                    return;
+                }
+            }
+
+            // Create the HTML response for the POST request, echoing the body back between a prefix and a suffix
+            byte[] prefix = ("<HTML><HEAD><TITLE>POST Request Processed</TITLE></HEAD><BODY>"
+                    + "<H1>POST Request Processed</H1><p>Request Body: ").getBytes(StandardCharsets.US_ASCII);
+            byte[] suffix = "</p></BODY></HTML>".getBytes(StandardCharsets.US_ASCII);
+
+            // Send the HTTP header for the POST response
+            queueHeader("200 OK", "text/html; charset=utf-8", prefix.length + requestBody.length() + suffix.length);
+
+            // If it's not a HEAD request, send the response body
+            if (!"HEAD".equals(method)) {
+                queue(ByteBuffer.wrap(prefix));
+                if (requestBody.getData() != null) {
+                    queue(ByteBuffer.wrap(requestBody.getData()));
+                } else {
+                    sendQueued(raw);
+                    sendFile(requestBody.getFile(), 0, requestBody.length(), raw);
+                }
+                queue(ByteBuffer.wrap(suffix));
+            }
+            sendQueued(raw);
+        } finally {
+            requestBody.close();
         }
+    }
 
-        // Create the HTML response body for the POST request
-        String responseBody = "<HTML><HEAD><TITLE>POST Request Processed</TITLE></HEAD><BODY>"
-                + "<H1>POST Request Processed</H1><p>Request Body: " + requestBody.toString() + "</p></BODY></HTML>";
+    // Method to forward a request on a proxied path to a backend, streaming the request and response bodies
+    // through; when the backend cannot answer, the client gets the error page the proxy chose
+    private void handleProxyRequest(ReverseProxy.Route route, String version, RequestBody body, OutputStream raw)
+            throws IOException {
+        ReverseProxy.Exchange exchange = proxy.forward(route, method, parser.getTarget(), version, headers, body,
+                responseVersion, connection.getInetAddress(), raw, keepAlive && !draining);
+        if (exchange.errorStatusLine != null) {
+            // Rather than read the rest of a body no backend will take, the connection is closed
+            if (body.isPresent()) keepAlive = false;
+            handleStatusPage(raw, exchange.errorStatusLine, exchange.errorMessage, exchange.errorHeaders);
+            return;
+        }
+        status = exchange.status;
+        bytesSent = exchange.bytesSent;
+        keepAlive = exchange.keepAlive;
+        if (!firstByteSent) {
+            metrics.recordFirstByte(exchange.headSentAt - firstByteFrom);
+            firstByteSent = true;
+        }
+    }
 
-        // Send the HTTP header for the POST response
-        sendHeader(out, "HTTP/1.0 200 OK", "text/html; charset=utf-8", responseBody.length());
+    // Method to store a new user from the signup form
+    private void handleSignup(OutputStream raw, String user, String password) throws IOException {
+        if (!UserStore.isValidName(user) || password.isEmpty() || password.length() > UserStore.MAX_PASSWORD) {
+            handleStatusPage(raw, "400 Bad Request", "Invalid user name or password", "");
+            return;
+        }
+        char[] chars = password.toCharArray();
+        boolean added;
+        try {
+            added = auth.getUsers().add(user, chars);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+        if (added) {
+            logger.info("Created account " + user + " for " + connection.getRemoteSocketAddress());
+            handleStatusPage(raw, "201 Created", "Account created", "");
+        } else {
+            handleStatusPage(raw, "409 Conflict", "User name is taken", "");
+        }
+    }
 
-        // If it's not a HEAD request, send the response body
-        if (!"HEAD".equals(method)) {
-            out.write(responseBody);
-            out.flush();
+    // Method to get the media type of a Content-Type header, without parameters such as the charset
+    private static String mediaType(String contentType) {
+        if (contentType == null) return "";
+        int semicolon = contentType.indexOf(';');
+        return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim();
+    }
+
+    // Method to decode an application/x-www-form-urlencoded body; a repeated field keeps its first value
+    static Map<String, String> parseForm(String body) {
+        Map<String, String> form = new HashMap<>();
+        for (String pair : body.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String name = equals >= 0 ? pair.substring(0, equals) : pair;
+            String value = equals >= 0 ? pair.substring(equals + 1) : "";
+            form.putIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
         }
+        return form;
     }
 
-    // Method to send the HTTP header
-    private void sendHeader(Writer out, String responseCode, String contentType, int length) throws IOException {
-        out.write(responseCode + "\r\n");
-        Date now = new Date();
-        out.write("Date: " + now + "\r\n");
-        out.write("Server: JHTTP 2.0\r\n");
-        out.write("Content-length: " + length + "\r\n");
-        out.write("Content-type: " + contentType + "\r\n\r\n");
-        out.flush();
+    // Method to send a short HTML page for a status, with extra header lines each ending in CRLF
+    private void handleStatusPage(OutputStream raw, String statusLine, String message, String extraHeaders) throws IOException {
+        byte[] body = ("<HTML><HEAD><TITLE>" + statusLine.substring(4) + "</TITLE></HEAD><BODY>"
+                + "<H1>" + statusLine.substring(4) + "</H1><p>" + message + "</p></BODY></HTML>")
+                .getBytes(StandardCharsets.US_ASCII);
+        queueHeader(statusLine, "text/html; charset=utf-8", body.length, extraHeaders);
+        if (!"HEAD".equals(method)) queue(ByteBuffer.wrap(body));
+        sendQueued(raw);
     }
 
-    // Method to handle file not found errors
-    private void handleFileNotFound(Writer out, OutputStream raw, String version) throws IOException {
-        String body = "<HTML><HEAD><TITLE>File Not Found</TITLE></HEAD><BODY>"
-                + "<H1>HTTP Error 404: File Not Found</H1></BODY></HTML>";
+    // Method to queue the HTTP header
+    private void queueHeader(String responseCode, String contentType, long length) {
+        queueHeader(responseCode, contentType, length, "");
+    }
+
+    // Method to queue the HTTP header with extra header lines, each already terminated by CRLF; it is sent
+    // together with the body by sendQueued
+    private void queueHeader(String responseCode, String contentType, long length, String extraHeaders) {
+        status = ResponseHeaders.statusCode(responseCode);
+        bytesSent = "HEAD".equals(method) ? 0 : Math.max(0, length);
+        // The server may have started draining while the request was being read
+        if (draining) keepAlive = false;
+        queue(responseHeaders.encode(responseVersion, responseCode, contentType, length, keepAlive, extraHeaders));
+    }
 
+    // Method to handle file not found errors
+    private void handleFileNotFound(OutputStream raw, String version) throws IOException {
         // Send the HTTP header for file not found
         if (version.startsWith("HTTP/")) {
-            sendHeader(out, "HTTP/1.0 404 File Not Found", "text/html; charset=utf-8", body.length());
+            queueHeader("404 File Not Found", "text/html; charset=utf-8", NOT_FOUND_BODY.length);
         }
 
         // If it's not a HEAD request, send the response body
         if (!"HEAD".equals(method)) {
-            out.write(body);
-            out.flush();
+            queue(ByteBuffer.wrap(NOT_FOUND_BODY));
         }
+        sendQueued(raw);
     }
 
-    // Method to handle not implemented errors
-    private void handleNotImplemented(Writer out, String version) throws IOException {
-        // Create the HTML response body for the not implemented error
-        String body = "<HTML><HEAD><TITLE>Not Implemented</TITLE></HEAD><BODY>"
-                + "<H1>HTTP Error 501: Not Implemented</H1></BODY></HTML>";
+    // Method to answer a request head the parser refused; the connection is closed afterwards because the
+    // rest of the input cannot be trusted to start at a request boundary
+    private void handleBadRequest(OutputStream raw, RequestParser.BadRequestException ex) throws IOException {
+        logger.fine("Bad request from " + connection.getRemoteSocketAddress() + ": " + ex.getMessage());
+        keepAlive = false;
+        byte[] body = ("<HTML><HEAD><TITLE>" + ex.getStatusLine().substring(4) + "</TITLE></HEAD><BODY>"
+                + "<H1>HTTP Error " + ex.getStatusLine() + "</H1></BODY></HTML>").getBytes(StandardCharsets.US_ASCII);
+        queueHeader(ex.getStatusLine(), "text/html; charset=utf-8", body.length);
+        queue(ByteBuffer.wrap(body));
+        sendQueued(raw);
+    }
 
+    // Method to handle not implemented errors
+    private void handleNotImplemented(OutputStream raw, String version) throws IOException {
         // Send the HTTP header for not implemented error
         if (version.startsWith("HTTP/")) {
-            sendHeader(out, "HTTP/1.0 501 Not Implemented", "text/html; charset=utf-8", body.length());
+            queueHeader("501 Not Implemented", "text/html; charset=utf-8", NOT_IMPLEMENTED_BODY.length);
         }
 
         // If it's not a HEAD request, send the response body
         if (!"HEAD".equals(method)) {
-            out.write(body);
-            out.flush();
+            queue(ByteBuffer.wrap(NOT_IMPLEMENTED_BODY));
         }
+        sendQueued(raw);
     }
 }
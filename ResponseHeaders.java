@@ -0,0 +1,160 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+// Encodes response header blocks straight into bytes, shared by RequestProcessor and the NIO engine.
+// The fixed parts (status lines, Server, Connection, common content types) are encoded once when the class loads,
+// and the Date value is formatted at most once a second and shared by all threads, so encoding a header creates
+// no strings. Each connection keeps one encoder and reuses its buffer for every response.
+public final class ResponseHeaders {
+
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] HTTP_1_0 = ascii("HTTP/1.0 ");
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1 ");
+    private static final byte[] SERVER = ascii("Server: JHTTP 2.0\r\n");
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-length: ");
+    private static final byte[] CONTENT_TYPE = ascii("Content-type: ");
+
+    // Status lines and content types the server sends all the time, each encoded with its trailing CRLF
+    private static final Map<String, byte[]> STATUS_LINES = new HashMap<>();
+    private static final Map<String, byte[]> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        for (String line : new String[] { "200 OK", "201 Created", "206 Partial Content", "304 Not Modified",
+                "400 Bad Request", "401 Unauthorized", "404 File Not Found", "408 Request Timeout", "409 Conflict",
+                "413 Payload Too Large", "414 URI Too Long", "416 Range Not Satisfiable", "429 Too Many Requests",
+                "431 Request Header Fields Too Large", "501 Not Implemented", "503 Service Unavailable" }) {
+            STATUS_LINES.put(line, ascii(line + "\r\n"));
+        }
+        for (String type : new String[] { "text/html", "text/html; charset=utf-8", "text/plain", "text/css",
+                "application/javascript", "text/javascript", "application/json", "application/xml", "image/png",
+                "image/jpeg", "image/gif", "image/svg+xml", "image/x-icon", "application/octet-stream" }) {
+            CONTENT_TYPES.put(type, ascii("Content-type: " + type + "\r\n"));
+        }
+    }
+
+    // The "Date: ...\r\n" line for one second of wall-clock time
+    private static final class DateLine {
+        final long second;
+        final String value;
+        final byte[] bytes;
+
+        DateLine(long second) {
+            this.second = second;
+            this.value = FileResponse.HTTP_DATE.format(Instant.ofEpochSecond(second));
+            this.bytes = ascii("Date: " + value + "\r\n");
+        }
+    }
+
+    // Replaced by whichever thread first notices the second has changed; a race only formats the same line twice
+    private static volatile DateLine dateLine = new DateLine(System.currentTimeMillis() / 1000);
+
+    private byte[] buffer = new byte[512];
+    private int size;
+
+    // Returns the encoded Date header line for the current second
+    static byte[] dateLine() {
+        return currentDateLine().bytes;
+    }
+
+    // Returns the value of the Date header for the current second
+    static String date() {
+        return currentDateLine().value;
+    }
+
+    private static DateLine currentDateLine() {
+        long second = System.currentTimeMillis() / 1000;
+        DateLine current = dateLine;
+        if (current.second != second) {
+            current = new DateLine(second);
+            dateLine = current;
+        }
+        return current;
+    }
+
+    // Returns the numeric status code at the start of a status line such as "200 OK"
+    static int statusCode(String statusLine) {
+        return (statusLine.charAt(0) - '0') * 100 + (statusLine.charAt(1) - '0') * 10 + (statusLine.charAt(2) - '0');
+    }
+
+    // Encodes a header block and returns it as a buffer over this encoder's storage, valid until the next call.
+    // A negative length leaves out Content-length and a null type leaves out Content-type, as for a 304;
+    // extra header lines must each end in CRLF.
+    public ByteBuffer encode(String version, String statusLine, String contentType, long length, boolean keepAlive,
+                             String extraHeaders) {
+        size = 0;
+        append("HTTP/1.1".equals(version) ? HTTP_1_1 : HTTP_1_0);
+        byte[] status = STATUS_LINES.get(statusLine);
+        if (status != null) {
+            append(status);
+        } else {
+            append(statusLine);
+            append(CRLF);
+        }
+        append(dateLine());
+        append(SERVER);
+        append(keepAlive ? KEEP_ALIVE : CLOSE);
+        if (length >= 0) {
+            append(CONTENT_LENGTH);
+            append(length);
+            append(CRLF);
+        }
+        append(extraHeaders);
+        if (contentType != null) {
+            byte[] type = CONTENT_TYPES.get(contentType);
+            if (type != null) {
+                append(type);
+            } else {
+                append(CONTENT_TYPE);
+                append(contentType);
+                append(CRLF);
+            }
+        }
+        append(CRLF);
+        return ByteBuffer.wrap(buffer, 0, size);
+    }
+
+    private void append(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    // Appends a header value; anything outside printable ASCII is replaced, since it is not allowed in a header
+    private void append(String value) {
+        int length = value.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            buffer[size++] = (byte) (c < 0x80 ? c : '?');
+        }
+    }
+
+    // Appends a non-negative number in decimal without going through a String
+    private void append(long value) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) digits++;
+        ensure(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, size + extra)];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,782 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.*;
+
+// Forwards requests on configured path prefixes to backend servers over HTTP/1.1, so the docroot is served from
+// the cache while, say, the form POSTs from create_acc.html go to an application. Each backend keeps a pool of
+// persistent connections: an exchange takes the most recently used one, checks that the backend has not closed it,
+// and gives it back when the response was read to its end. Bodies are copied through a small buffer in both
+// directions and never held whole. Backends are picked round-robin or by fewest exchanges in progress. Health is
+// checked passively: connect errors, timeouts, broken responses and 502/503/504 answers count as failures, and a
+// backend with maxFails failures in a row is left out for ejectMillis before it is tried again.
+public class ReverseProxy {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(ReverseProxy.class.getCanonicalName());
+    // Routes as "[METHOD ]prefix=host:port|host:port" separated by commas, such as "POST /=127.0.0.1:9001" or
+    // "/api/=127.0.0.1:9001|127.0.0.1:9002". The longest matching prefix applies. Empty turns the proxy off.
+    static final String ROUTES = System.getProperty("jhttp.proxy", "");
+    // How a backend is picked: "round-robin" or "least-connections"
+    static final String BALANCE = System.getProperty("jhttp.proxy.balance", "round-robin");
+    // Milliseconds to wait for a backend to accept a connection, and for each read of its response
+    static final int CONNECT_TIMEOUT = Integer.getInteger("jhttp.proxy.connectTimeoutMillis", 2000);
+    static final int READ_TIMEOUT = Integer.getInteger("jhttp.proxy.readTimeoutMillis", 30000);
+    // Most idle connections kept per backend, and how long one may sit idle before it is closed
+    static final int MAX_IDLE = Integer.getInteger("jhttp.proxy.maxIdlePerBackend", 16);
+    static final long IDLE_TIMEOUT = Long.getLong("jhttp.proxy.idleTimeoutMillis", 15000);
+    // Failures in a row that take a backend out of use, and for how long
+    static final int MAX_FAILS = Integer.getInteger("jhttp.proxy.maxFails", 3);
+    static final long EJECT_MILLIS = Long.getLong("jhttp.proxy.ejectMillis", 10000);
+
+    // Size of the buffer bodies are copied through
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // Headers that are not passed on in either direction: those that describe one connection rather than the
+    // message, and the framing headers, which are set again as the body is framed on each side
+    private static final Set<String> NOT_FORWARDED = new HashSet<>(Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding",
+            "upgrade", "expect", "http2-settings", "content-length"));
+
+    // A server requests are forwarded to, shared by every route that names it
+    private static final class Backend {
+        final String name;
+        final InetSocketAddress address;
+        // Idle connections, most recently used first
+        final ConcurrentLinkedDeque<Upstream> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger idleCount = new AtomicInteger();
+        // Exchanges in progress, for least-connections
+        final AtomicInteger active = new AtomicInteger();
+        // Failures since the last success, and System.nanoTime() until which the backend is left out, or 0
+        final AtomicInteger failures = new AtomicInteger();
+        volatile long ejectedUntil;
+
+        Backend(String name, InetSocketAddress address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        boolean isAvailable(long now) {
+            long until = ejectedUntil;
+            return until == 0 || now - until >= 0;
+        }
+    }
+
+    // A path prefix, optionally for one method only, and the backends that serve it
+    static final class Route {
+        final String method;
+        final String prefix;
+        final Backend[] backends;
+        final AtomicInteger next = new AtomicInteger();
+
+        Route(String method, String prefix, Backend[] backends) {
+            this.method = method;
+            this.prefix = prefix;
+            this.backends = backends;
+        }
+    }
+
+    // A connection to a backend
+    private static final class Upstream {
+        final SocketChannel channel;
+        final InputStream in;
+        final OutputStream out;
+        // Whether it came from the pool, and System.nanoTime() when it went back there
+        boolean reused;
+        long idleSince;
+
+        Upstream(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            Socket socket = channel.socket();
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Error closing backend connection", ex);
+            }
+        }
+    }
+
+    // An I/O error on the backend's side of an exchange, as opposed to the client's
+    private static final class UpstreamException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UpstreamException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    // How an exchange ended: either a response was sent to the client, or nothing was and the caller answers with
+    // the error status
+    static final class Exchange {
+        final String errorStatusLine;
+        final String errorMessage;
+        final String errorHeaders;
+        final int status;
+        final long bytesSent;
+        final boolean keepAlive;
+        // System.nanoTime() when the response head was written
+        final long headSentAt;
+
+        private Exchange(String errorStatusLine, String errorMessage, String errorHeaders, int status, long bytesSent,
+                         boolean keepAlive, long headSentAt) {
+            this.errorStatusLine = errorStatusLine;
+            this.errorMessage = errorMessage;
+            this.errorHeaders = errorHeaders;
+            this.status = status;
+            this.bytesSent = bytesSent;
+            this.keepAlive = keepAlive;
+            this.headSentAt = headSentAt;
+        }
+
+        static Exchange error(String statusLine, String message, String extraHeaders) {
+            return new Exchange(statusLine, message, extraHeaders, 0, 0, false, 0);
+        }
+    }
+
+    // A response head read from a backend
+    private static final class ResponseHead {
+        String version;
+        int status;
+        String reason;
+        final List<String[]> headers = new ArrayList<>();
+        final Set<String> connectionTokens = new HashSet<>();
+        boolean chunked;
+        long contentLength = -1;
+        // True for a response that never has a body: to HEAD, 204 or 304
+        boolean bodyless;
+    }
+
+    // Routes with the longest prefix first, those for one method ahead of those for any at the same length
+    private final List<Route> routes = new ArrayList<>();
+    private final List<Backend> backends = new ArrayList<>();
+    private final boolean leastConnections;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxIdle;
+    private final long idleTimeoutNanos;
+    private final int maxFails;
+    private final long ejectNanos;
+
+    // Counters read by the metrics
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsReused = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+
+    public ReverseProxy() {
+        this(ROUTES, BALANCE, CONNECT_TIMEOUT, READ_TIMEOUT, MAX_IDLE, IDLE_TIMEOUT, MAX_FAILS, EJECT_MILLIS);
+    }
+
+    public ReverseProxy(String routes, String balance, int connectTimeout, int readTimeout, int maxIdle,
+                        long idleTimeoutMillis, int maxFails, long ejectMillis) {
+        Map<String, Backend> byName = new HashMap<>();
+        for (String route : routes.split(",")) {
+            route = route.trim();
+            if (route.isEmpty()) continue;
+            int equals = route.indexOf('=');
+            if (equals <= 0) throw new IllegalArgumentException("Proxy route is not [METHOD ]prefix=host:port: " + route);
+            String match = route.substring(0, equals).trim();
+            int space = match.indexOf(' ');
+            String method = space > 0 ? match.substring(0, space).toUpperCase(Locale.ROOT) : null;
+            String prefix = space > 0 ? match.substring(space + 1).trim() : match;
+            if (!prefix.startsWith("/")) throw new IllegalArgumentException("Proxy prefix must start with /: " + route);
+            List<Backend> targets = new ArrayList<>();
+            for (String name : route.substring(equals + 1).split("\\|")) {
+                name = name.trim();
+                if (name.isEmpty()) continue;
+                targets.add(byName.computeIfAbsent(name, ReverseProxy::newBackend));
+            }
+            if (targets.isEmpty()) throw new IllegalArgumentException("Proxy route has no backends: " + route);
+            this.routes.add(new Route(method, prefix, targets.toArray(new Backend[0])));
+        }
+        this.routes.sort(Comparator.comparingInt((Route r) -> r.prefix.length()).reversed()
+                .thenComparing(r -> r.method == null));
+        this.backends.addAll(byName.values());
+        if (!"round-robin".equals(balance) && !"least-connections".equals(balance)) {
+            throw new IllegalArgumentException("Proxy balance is not round-robin or least-connections: " + balance);
+        }
+        this.leastConnections = "least-connections".equals(balance);
+        this.connectTimeout = Math.max(1, connectTimeout);
+        this.readTimeout = Math.max(0, readTimeout);
+        this.maxIdle = Math.max(0, maxIdle);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.maxFails = Math.max(1, maxFails);
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(ejectMillis);
+    }
+
+    // Parses "host:port", or "[v6 address]:port"
+    private static Backend newBackend(String name) {
+        int colon = name.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Proxy backend is not host:port: " + name);
+        String host = name.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+        int port = Integer.parseInt(name.substring(colon + 1));
+        return new Backend(name, new InetSocketAddress(host, port));
+    }
+
+    public boolean isEnabled() {
+        return !routes.isEmpty();
+    }
+
+    // Returns the route a request is forwarded on, or null if it is served locally. The metrics path always is.
+    Route route(String method, String path) {
+        if (routes.isEmpty() || (!Metrics.PATH.isEmpty() && Metrics.PATH.equals(path))) return null;
+        for (Route route : routes) {
+            if ((route.method == null || route.method.equals(method)) && path.startsWith(route.prefix)) return route;
+        }
+        return null;
+    }
+
+    // Forwards a request whose head has been read to one of the route's backends and relays the response to out.
+    // When no response has been written the exchange carries the error to answer with instead: 503 when every
+    // backend is ejected, 502 when none could be reached or the response was broken, 504 when it was too slow. An
+    // IOException means the client's side failed and the connection should be closed.
+    Exchange forward(Route route, String method, String target, String version, Map<String, String> headers,
+                     RequestBody body, String responseVersion, InetAddress client, OutputStream out, boolean keepAlive)
+            throws IOException {
+        requests.increment();
+        byte[] head = requestHead(method, target, headers, body, client);
+        boolean expectContinue = body.isPresent() && "HTTP/1.1".equals(version)
+                && "100-continue".equalsIgnoreCase(headers.get("expect"));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        // Backends that could not be connected to; the request never reached them, so another may be tried
+        List<Backend> unreachable = new ArrayList<>(2);
+        boolean bodySent = false;
+
+        while (true) {
+            long now = System.nanoTime();
+            Backend backend = choose(route, unreachable, now);
+            if (backend == null) {
+                if (!unreachable.isEmpty()) return Exchange.error("502 Bad Gateway", "No backend could be reached", "");
+                return Exchange.error("503 Service Unavailable", "No backend available",
+                        "Retry-After: " + retryAfter(route, now) + "\r\n");
+            }
+
+            Upstream upstream = takeIdle(backend, now);
+            if (upstream == null) {
+                try {
+                    upstream = connect(backend);
+                } catch (IOException ex) {
+                    failed(backend, "connect: " + ex.getMessage());
+                    unreachable.add(backend);
+                    continue;
+                }
+            }
+
+            backend.active.incrementAndGet();
+            boolean reusable = false;
+            ResponseHead response = null;
+            try {
+                // Send the request head and body. The body is only read from the client once there is a connection
+                // for it, so a client waiting on 100 Continue is told to go ahead at that point.
+                try {
+                    upstream.out.write(head);
+                    if (!headers.containsKey("host")) {
+                        upstream.out.write(("Host: " + backend.name + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    } else {
+                        upstream.out.write(CRLF);
+                    }
+                } catch (IOException ex) {
+                    throw new UpstreamException(ex);
+                }
+                if (body.isPresent()) {
+                    bodySent = true;
+                    if (expectContinue) {
+                        out.write(CONTINUE);
+                        out.flush();
+                        expectContinue = false;
+                    }
+                    try {
+                        sendBody(body, upstream.out, buffer);
+                    } catch (RequestParser.BadRequestException ex) {
+                        // The request body broke its framing or the size limit; the backend has half a request
+                        return Exchange.error(ex.getStatusLine(), ex.getMessage(), "");
+                    }
+                }
+                try {
+                    upstream.out.flush();
+                    response = readResponseHead(upstream.in, "HEAD".equals(method));
+                } catch (SocketTimeoutException ex) {
+                    failed(backend, "no response in " + readTimeout + " ms");
+                    return Exchange.error("504 Gateway Timeout", "The backend did not answer in time", "");
+                } catch (IOException ex) {
+                    throw new UpstreamException(ex);
+                }
+                if (response == null) {
+                    failed(backend, "malformed response head");
+                    return Exchange.error("502 Bad Gateway", "The backend sent a malformed response", "");
+                }
+
+                long headSentAt = System.nanoTime();
+                long[] sent = new long[1];
+                boolean clientKeepAlive;
+                try {
+                    clientKeepAlive = relay(response, responseVersion, keepAlive, upstream.in, out, buffer, sent);
+                } catch (UpstreamException ex) {
+                    // The head has gone out, so the client only learns of this from the connection closing
+                    failed(backend, "response cut off: " + ex.getMessage());
+                    out.flush();
+                    return new Exchange(null, null, null, response.status, sent[0], false, headSentAt);
+                }
+                if (response.status == 502 || response.status == 503 || response.status == 504) {
+                    failed(backend, "answered " + response.status);
+                } else {
+                    succeeded(backend);
+                }
+                reusable = isPersistent(response);
+                return new Exchange(null, null, null, response.status, sent[0], clientKeepAlive, headSentAt);
+            } catch (UpstreamException ex) {
+                if (response == null && upstream.reused && !bodySent) {
+                    // The backend closed a pooled connection before the request reached it; try a fresh one, which
+                    // does not count against the backend
+                    logger.fine("Pooled connection to " + backend.name + " was closed: " + ex.getMessage());
+                    continue;
+                }
+                if (upstream.reused) {
+                    // Likely the same, but the body has been read and cannot be sent again
+                    return Exchange.error("502 Bad Gateway", "The backend closed the connection", "");
+                }
+                failed(backend, ex.getMessage());
+                return Exchange.error("502 Bad Gateway", "The backend failed", "");
+            } finally {
+                backend.active.decrementAndGet();
+                if (reusable) {
+                    release(backend, upstream);
+                } else {
+                    upstream.close();
+                }
+            }
+        }
+    }
+
+    // Encodes the request line and headers for the backend, without the blank line that ends them, so a Host line
+    // can follow when the client sent none
+    private static byte[] requestHead(String method, String target, Map<String, String> headers, RequestBody body,
+                                      InetAddress client) {
+        StringBuilder head = new StringBuilder(256);
+        head.append(method).append(' ').append(originForm(target)).append(" HTTP/1.1\r\n");
+        Set<String> named = connectionTokens(headers.get("connection"));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (NOT_FORWARDED.contains(name) || named.contains(name) || name.startsWith("x-forwarded-")) continue;
+            head.append(name).append(": ").append(header.getValue()).append("\r\n");
+        }
+        String address = client != null ? client.getHostAddress() : "unknown";
+        String forwardedFor = headers.get("x-forwarded-for");
+        head.append("X-Forwarded-For: ").append(forwardedFor != null ? forwardedFor + ", " + address : address).append("\r\n");
+        head.append("X-Forwarded-Proto: http\r\n");
+        if (headers.containsKey("host")) head.append("X-Forwarded-Host: ").append(headers.get("host")).append("\r\n");
+        if (body.isChunked()) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (body.isPresent()) {
+            head.append("Content-Length: ").append(body.getLength()).append("\r\n");
+        }
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Reduces an absolute target ("http://host/path") to the path and query a backend expects
+    private static String originForm(String target) {
+        int scheme = target.indexOf("://");
+        if (scheme <= 0 || target.startsWith("/")) return target;
+        int slash = target.indexOf('/', scheme + 3);
+        return slash >= 0 ? target.substring(slash) : "/";
+    }
+
+    // Returns the lower-case header names listed in a Connection header
+    private static Set<String> connectionTokens(String value) {
+        if (value == null) return Collections.emptySet();
+        Set<String> tokens = new HashSet<>();
+        for (String token : value.split(",")) {
+            token = token.trim().toLowerCase(Locale.ROOT);
+            if (!token.isEmpty()) tokens.add(token);
+        }
+        return tokens;
+    }
+
+    // Copies the request body to the backend, chunked again when the client sent it chunked. Errors reading the
+    // client's body are thrown as they are; errors writing to the backend as UpstreamException.
+    private static void sendBody(RequestBody body, OutputStream upstream, byte[] buffer) throws IOException {
+        int n;
+        while ((n = body.read(buffer, 0, buffer.length)) >= 0) {
+            if (n == 0) continue;
+            try {
+                if (body.isChunked()) upstream.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                upstream.write(buffer, 0, n);
+                if (body.isChunked()) upstream.write(CRLF);
+            } catch (IOException ex) {
+                throw new UpstreamException(ex);
+            }
+        }
+        if (body.isChunked()) {
+            try {
+                upstream.write(LAST_CHUNK);
+            } catch (IOException ex) {
+                throw new UpstreamException(ex);
+            }
+        }
+    }
+
+    // Reads a response head from the backend, skipping interim 1xx responses. Returns null if it is malformed or
+    // too large; throws EOFException if the connection closes first.
+    private static ResponseHead readResponseHead(InputStream in, boolean head) throws IOException {
+        while (true) {
+            int[] budget = { RequestParser.MAX_HEAD };
+            String statusLine = readLine(in, budget);
+            if (statusLine == null) return null;
+            ResponseHead response = new ResponseHead();
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/1.") || parts[1].length() != 3) return null;
+            response.version = parts[0];
+            try {
+                response.status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            response.reason = parts.length > 2 ? parts[2] : "";
+            if (response.status < 100 || response.status > 999) return null;
+
+            String line;
+            while ((line = readLine(in, budget)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) return null;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                String lower = name.toLowerCase(Locale.ROOT);
+                if ("connection".equals(lower)) {
+                    response.connectionTokens.addAll(connectionTokens(value));
+                } else if ("transfer-encoding".equals(lower)) {
+                    response.chunked = value.toLowerCase(Locale.ROOT).endsWith("chunked");
+                } else if ("content-length".equals(lower)) {
+                    try {
+                        long length = Long.parseLong(value);
+                        if (length < 0 || (response.contentLength >= 0 && length != response.contentLength)) return null;
+                        response.contentLength = length;
+                    } catch (NumberFormatException ex) {
+                        return null;
+                    }
+                }
+                response.headers.add(new String[] { name, value, lower });
+            }
+            if (line == null) return null;
+            // 101 is never asked for, as Upgrade is not passed on
+            if (response.status == 101) return null;
+            if (response.status >= 200) {
+                if (response.chunked) response.contentLength = -1;
+                response.bodyless = head || response.status == 204 || response.status == 304;
+                return response;
+            }
+        }
+    }
+
+    // Reads one line of a response head without its line ending, charging it to what is left of the head's budget.
+    // Returns null when the budget runs out.
+    private static String readLine(InputStream in, int[] budget) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        while (true) {
+            int c = in.read();
+            if (c < 0) throw new EOFException("Backend closed the connection");
+            if (--budget[0] < 0) return null;
+            if (c == '\n') break;
+            line.append((char) c);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+        return line.toString();
+    }
+
+    // Sends the response head to the client and copies the body, which keeps its length when the backend gave one,
+    // is chunked again for a HTTP/1.1 client otherwise, and is ended by closing the connection for a HTTP/1.0 one.
+    // Returns whether the client connection can carry another request; sent[0] counts the body bytes written.
+    private static boolean relay(ResponseHead response, String responseVersion, boolean keepAlive,
+                                 InputStream upstream, OutputStream out, byte[] buffer, long[] sent) throws IOException {
+        boolean untilClose = !response.bodyless && response.contentLength < 0;
+        boolean chunked = untilClose && "HTTP/1.1".equals(responseVersion);
+        if (untilClose && !chunked) keepAlive = false;
+
+        StringBuilder head = new StringBuilder(256);
+        head.append(responseVersion).append(' ').append(response.status).append(' ').append(response.reason).append("\r\n");
+        for (String[] header : response.headers) {
+            if (NOT_FORWARDED.contains(header[2]) || response.connectionTokens.contains(header[2])) continue;
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        // A HEAD or 304 response keeps the length the backend announced, which describes the body it left out
+        if (response.contentLength >= 0) head.append("Content-Length: ").append(response.contentLength).append("\r\n");
+        if (chunked) head.append("Transfer-Encoding: chunked\r\n");
+        head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n").append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (!response.bodyless && response.contentLength != 0) {
+            InputStream body = response.chunked ? new ChunkedInput(upstream) : upstream;
+            long left = response.contentLength;
+            while (left != 0) {
+                int n;
+                try {
+                    n = body.read(buffer, 0, left > 0 ? (int) Math.min(buffer.length, left) : buffer.length);
+                } catch (IOException ex) {
+                    throw new UpstreamException(ex);
+                }
+                if (n < 0) {
+                    // The end of a chunked body, or of one framed by the connection closing
+                    if (left > 0) throw new UpstreamException(new EOFException("Backend closed the connection"));
+                    break;
+                }
+                if (chunked) out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(buffer, 0, n);
+                if (chunked) out.write(CRLF);
+                sent[0] += n;
+                if (left > 0) left -= n;
+                // Pass on what has arrived when the backend pauses, so a slow response streams to the client
+                if (body.available() == 0) out.flush();
+            }
+            if (chunked) out.write(LAST_CHUNK);
+        }
+        out.flush();
+        return keepAlive;
+    }
+
+    // Returns whether a connection can carry another exchange after this response
+    private static boolean isPersistent(ResponseHead response) {
+        if (response.connectionTokens.contains("close")) return false;
+        if (!response.bodyless && response.contentLength < 0 && !response.chunked) return false;
+        return "HTTP/1.1".equals(response.version) || response.connectionTokens.contains("keep-alive");
+    }
+
+    // Picks an available backend of the route that has not been found unreachable, or returns null
+    private Backend choose(Route route, List<Backend> unreachable, long now) {
+        Backend[] candidates = route.backends;
+        int start = Math.floorMod(route.next.getAndIncrement(), candidates.length);
+        Backend best = null;
+        for (int i = 0; i < candidates.length; i++) {
+            Backend backend = candidates[(start + i) % candidates.length];
+            if (!backend.isAvailable(now) || unreachable.contains(backend)) continue;
+            if (!leastConnections) return backend;
+            if (best == null || backend.active.get() < best.active.get()) best = backend;
+        }
+        return best;
+    }
+
+    // Returns the Retry-After seconds for a route whose backends are all ejected: until the first is tried again
+    private static long retryAfter(Route route, long now) {
+        long wait = Long.MAX_VALUE;
+        for (Backend backend : route.backends) {
+            wait = Math.min(wait, backend.ejectedUntil - now);
+        }
+        return RateLimiter.retryAfterSeconds(wait);
+    }
+
+    // Takes the most recently used idle connection that is still open, closing the ones that idled too long or that
+    // the backend has closed in the meantime
+    private Upstream takeIdle(Backend backend, long now) {
+        // Connections at the old end of the pool are closed first, so an unused pool shrinks
+        Upstream oldest;
+        while ((oldest = backend.idle.peekLast()) != null && now - oldest.idleSince > idleTimeoutNanos) {
+            if (backend.idle.removeLastOccurrence(oldest)) {
+                backend.idleCount.decrementAndGet();
+                oldest.close();
+            }
+        }
+        Upstream upstream;
+        while ((upstream = backend.idle.pollFirst()) != null) {
+            backend.idleCount.decrementAndGet();
+            if (now - upstream.idleSince <= idleTimeoutNanos && isOpen(upstream)) {
+                upstream.reused = true;
+                connectionsReused.increment();
+                return upstream;
+            }
+            upstream.close();
+        }
+        return null;
+    }
+
+    // Checks without blocking that an idle connection has not been closed by the backend. An idle connection has
+    // nothing to read, so data or end of stream both mean it cannot be used.
+    private static boolean isOpen(Upstream upstream) {
+        try {
+            upstream.channel.configureBlocking(false);
+            int n = upstream.channel.read(ByteBuffer.allocate(1));
+            upstream.channel.configureBlocking(true);
+            return n == 0;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // Opens a new connection to a backend
+    private Upstream connect(Backend backend) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(backend.address, connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            connectionsOpened.increment();
+            return new Upstream(channel);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // Puts a connection back in the pool unless the pool is full or the backend has been ejected
+    private void release(Backend backend, Upstream upstream) {
+        long now = System.nanoTime();
+        if (!backend.isAvailable(now)) {
+            upstream.close();
+            return;
+        }
+        if (backend.idleCount.incrementAndGet() > maxIdle) {
+            backend.idleCount.decrementAndGet();
+            upstream.close();
+            return;
+        }
+        upstream.idleSince = now;
+        backend.idle.addFirst(upstream);
+    }
+
+    private void succeeded(Backend backend) {
+        if (backend.failures.getAndSet(0) >= maxFails) {
+            backend.ejectedUntil = 0;
+            logger.info("Backend " + backend.name + " is answering again");
+        }
+    }
+
+    // Counts a failure against a backend and ejects it on reaching maxFails. A backend let back in after its
+    // ejection keeps its count, so the first failure there ejects it again.
+    private void failed(Backend backend, String reason) {
+        failures.increment();
+        int count = backend.failures.incrementAndGet();
+        logger.warning("Backend " + backend.name + " failed (" + count + " in a row): " + reason);
+        long now = System.nanoTime();
+        if (count >= maxFails && backend.isAvailable(now)) {
+            backend.ejectedUntil = now + ejectNanos;
+            ejections.increment();
+            logger.warning("Ejecting backend " + backend.name + " for " + TimeUnit.NANOSECONDS.toMillis(ejectNanos) + " ms");
+            closeIdle(backend);
+        }
+    }
+
+    private static void closeIdle(Backend backend) {
+        Upstream upstream;
+        while ((upstream = backend.idle.pollFirst()) != null) {
+            backend.idleCount.decrementAndGet();
+            upstream.close();
+        }
+    }
+
+    // Closes every pooled connection; called when the server stops
+    public void close() {
+        for (Backend backend : backends) closeIdle(backend);
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    // Number of connections opened to backends, and of exchanges that reused a pooled one instead
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long getConnectionsReused() {
+        return connectionsReused.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getEjections() {
+        return ejections.sum();
+    }
+
+    // Number of idle connections held across all backends
+    public int idleConnections() {
+        int idle = 0;
+        for (Backend backend : backends) idle += backend.idleCount.get();
+        return idle;
+    }
+
+    // Number of backends currently left out
+    public int ejectedBackends() {
+        long now = System.nanoTime();
+        int ejected = 0;
+        for (Backend backend : backends) {
+            if (!backend.isAvailable(now)) ejected++;
+        }
+        return ejected;
+    }
+
+    // A chunked response body from a backend, decoded; trailers are dropped
+    private static final class ChunkedInput extends FilterInputStream {
+        private long remaining;
+        private boolean started;
+        private boolean finished;
+
+        ChunkedInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished) return -1;
+            if (remaining == 0) {
+                int[] budget = { RequestParser.MAX_LINE };
+                if (started && !"".equals(readLine(in, budget))) throw new IOException("Missing CRLF after chunk data");
+                started = true;
+                budget[0] = RequestParser.MAX_LINE;
+                String line = readLine(in, budget);
+                if (line == null) throw new IOException("Chunk size line too long");
+                int semicolon = line.indexOf(';');
+                try {
+                    remaining = Long.parseLong((semicolon >= 0 ? line.substring(0, semicolon) : line).trim(), 16);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Invalid chunk size " + line);
+                }
+                if (remaining < 0) throw new IOException("Invalid chunk size " + line);
+                if (remaining == 0) {
+                    budget[0] = RequestParser.MAX_HEAD;
+                    String trailer;
+                    while ((trailer = readLine(in, budget)) != null && !trailer.isEmpty()) {
+                    }
+                    if (trailer == null) throw new IOException("Trailers too long");
+                    finished = true;
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) throw new EOFException("Backend closed the connection inside a chunk");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return finished ? 0 : (int) Math.min(remaining, in.available());
+        }
+    }
+}
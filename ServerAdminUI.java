@@ -2,23 +2,67 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.net.Socket;
-import java.io.BufferedReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.text.BadLocationException;
 
 public class ServerAdminUI extends JFrame {
 
+    private static final Logger logger = Logger.getLogger(ServerAdminUI.class.getCanonicalName());
+    // Most lines kept in the log view; the oldest are dropped as new ones are appended
+    private static final int MAX_LOG_LINES = Integer.getInteger("jhttp.ui.logLines", 1000);
+    // Most bytes of the log read in one poll; when the log is further ahead than this, the tail skips to the last
+    // TAIL_BYTES, which also keeps a large existing log from being read when the UI opens
+    private static final int TAIL_BYTES = 256 * 1024;
+
     private JLabel statusLabel;
     private JLabel connectionsLabel;
     private JHTTP jhttp;
     private JTextArea logTextArea;
-    private File docRoot;  // Store the selected document root directory
+
+    // Access log tailing, done on a background thread: the file, how far it has been read, the identity of the file
+    // so rotation is noticed, and the start of a line whose end has not been written yet
+    private final Path logFile;
+    private final ScheduledExecutorService logTailer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "jhttp-ui-log-tail");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long logOffset = -1;
+    private Object logFileKey;
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    // Set after skipping ahead, when the first bytes read are the end of a line already skipped
+    private boolean skipToLineEnd;
+
+    // Live metrics panel, refreshed once a second
+    private JLabel requestsLabel;
+    private JLabel connectionsMetricLabel;
+    private JLabel queueLabel;
+    private JLabel bytesLabel;
+    private JLabel cacheLabel;
+    private JLabel latencyLabel;
+    private JLabel firstByteLabel;
+    private long lastRequests;
+    private long lastRefresh = System.nanoTime();
 
     public ServerAdminUI(JHTTP jhttp) {
         super("Server Admin UI");
         this.jhttp = jhttp;
+        this.logFile = jhttp.getAccessLogFile();
 
         // Initialize UI components
         statusLabel = new JLabel("Server Status: Not Checked");
@@ -27,7 +71,7 @@ public class ServerAdminUI extends JFrame {
         checkStatusButton.addActionListener(e -> checkServerStatus());
 
         JButton updateLogButton = new JButton("Update Log");
-        updateLogButton.addActionListener(e -> loadAndDisplayLog());
+        updateLogButton.addActionListener(e -> logTailer.execute(this::tailLog));
 
         // Add a JTextArea for displaying log
         logTextArea = new JTextArea();
@@ -48,18 +92,86 @@ public class ServerAdminUI extends JFrame {
         buttonPanel.add(checkStatusButton);
         buttonPanel.add(updateLogButton);
 
+        // Create a panel for live metrics
+        JPanel metricsPanel = new JPanel(new GridLayout(0, 2, 8, 2));
+        metricsPanel.setBorder(BorderFactory.createTitledBorder("Metrics"));
+        requestsLabel = addMetric(metricsPanel, "Requests");
+        connectionsMetricLabel = addMetric(metricsPanel, "Open connections");
+        queueLabel = addMetric(metricsPanel, "Pool queue depth");
+        bytesLabel = addMetric(metricsPanel, "Bytes sent");
+        cacheLabel = addMetric(metricsPanel, "Cache hits / misses / evictions");
+        latencyLabel = addMetric(metricsPanel, "Request time p50 / p90 / p99");
+        firstByteLabel = addMetric(metricsPanel, "First byte p50 / p90 / p99");
+
+        JPanel centerPanel = new JPanel(new BorderLayout());
+        centerPanel.add(buttonPanel, BorderLayout.NORTH);
+        centerPanel.add(metricsPanel, BorderLayout.CENTER);
+
         // Add panels to the frame
         add(labelPanel, BorderLayout.NORTH);
-        add(buttonPanel, BorderLayout.CENTER);
+        add(centerPanel, BorderLayout.CENTER);
         add(logScrollPane, BorderLayout.SOUTH);
 
+        // Refresh the metrics panel once a second on the event dispatch thread
+        new Timer(1000, e -> refreshMetrics()).start();
+
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(400, 400); // Adjusted size to accommodate the log display
+        setSize(520, 520); // Adjusted size to accommodate the metrics and log display
         setLocationRelativeTo(null);
         setVisible(true);
 
-        // Load and display the log with the initially selected document root
-        loadAndDisplayLog();
+        // Follow the access log once a second; the file is read off the event dispatch thread and only the new
+        // lines are appended to the view
+        logTailer.scheduleWithFixedDelay(this::tailLog, 0, 1, TimeUnit.SECONDS);
+    }
+
+    // Opens the admin UI for a server on the event dispatch thread
+    public static void launch(JHTTP jhttp) {
+        SwingUtilities.invokeLater(() -> {
+            try {
+                new ServerAdminUI(jhttp);
+            } catch (Exception e) {
+                // Log a severe error if starting ServerAdminUI fails
+                logger.log(Level.SEVERE, "Error starting ServerAdminUI", e);
+            }
+        });
+    }
+
+    // Adds a name and a value label to the metrics panel and returns the value label
+    private static JLabel addMetric(JPanel panel, String name) {
+        JLabel value = new JLabel("-");
+        panel.add(new JLabel(name));
+        panel.add(value);
+        return value;
+    }
+
+    private void refreshMetrics() {
+        // Read the server's metrics; the values are counters and snapshots, so this never blocks request threads
+        Metrics metrics = jhttp.getMetrics();
+        long now = System.nanoTime();
+        long requests = metrics.getRequests();
+        double perSecond = (requests - lastRequests) * 1e9 / Math.max(1, now - lastRefresh);
+        lastRequests = requests;
+        lastRefresh = now;
+
+        long queue = metrics.getGauge("jhttp_pool_queue_depth");
+        requestsLabel.setText(String.format("%d (%.1f/s)", requests, perSecond));
+        connectionsMetricLabel.setText(String.valueOf(metrics.getActiveConnections()));
+        queueLabel.setText(queue >= 0 ? String.valueOf(queue) : "n/a");
+        bytesLabel.setText(String.format("%,d", metrics.getBytesSent()));
+        cacheLabel.setText(metrics.getGauge("jhttp_cache_hits_total") + " / " + metrics.getGauge("jhttp_cache_misses_total")
+                + " / " + metrics.getGauge("jhttp_cache_evictions_total"));
+        latencyLabel.setText(percentiles(metrics.getTotal()));
+        firstByteLabel.setText(percentiles(metrics.getFirstByte()));
+    }
+
+    // Formats the median, 90th and 99th percentile of a histogram in milliseconds
+    private static String percentiles(LatencyHistogram histogram) {
+        long[] snapshot = histogram.snapshot();
+        return String.format("%.2f / %.2f / %.2f ms",
+                LatencyHistogram.percentile(snapshot, 0.50) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 0.90) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 0.99) / 1000.0);
     }
 
     private void updateStatus(JHTTP jhttp) {
@@ -86,33 +198,89 @@ public class ServerAdminUI extends JFrame {
         });
     }
 
-    private void loadAndDisplayLog() {
-        // Load and display the connection log in the JTextArea
-        SwingUtilities.invokeLater(() -> {
-            try {
-                // Use the stored document root directory
-                if (docRoot == null) {
-                    docRoot = getDocRoot();
-                }
+    // Reads whatever has been added to the access log since the last poll and appends the complete lines to the view.
+    // Runs on the log tail thread.
+    private void tailLog() {
+        try {
+            if (!Files.exists(logFile)) return;
+            BasicFileAttributes attributes = Files.readAttributes(logFile, BasicFileAttributes.class);
+            long size = attributes.size();
+            Object key = attributes.fileKey();
+            if (logOffset >= 0 && (size < logOffset || (key != null && !key.equals(logFileKey)))) {
+                // The log was rotated or truncated, so read the new file from its start
+                logOffset = 0;
+                partialLine.reset();
+            }
+            logFileKey = key;
+            if (logOffset < 0 || size - logOffset > TAIL_BYTES) {
+                // Too far behind to be worth reading, or just opened: skip to the last part of the file
+                logOffset = Math.max(0, size - TAIL_BYTES);
+                partialLine.reset();
+                skipToLineEnd = logOffset > 0;
+            }
+            if (size == logOffset) return;
 
-                // Read the log file and display its content
-                File logFile = new File(docRoot, "connection_log.txt");
-
-                try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-                    StringBuilder logContent = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        logContent.append(line).append("\n");
-                    }
-                    logTextArea.setText(logContent.toString());
-                } catch (IOException e) {
-                    logTextArea.setText("Error loading log file: " + e.getMessage());
+            ByteBuffer buffer = ByteBuffer.allocate((int) (size - logOffset));
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+                while (buffer.hasRemaining() && channel.read(buffer, logOffset + buffer.position()) >= 0) {
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                handleException("An error occurred while loading the log file.", e);
             }
-        });
+            logOffset += buffer.position();
+
+            String lines = completeLines(buffer.array(), buffer.position());
+            if (!lines.isEmpty()) {
+                SwingUtilities.invokeLater(() -> appendLog(lines));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Error reading the access log " + logFile, e);
+        }
+    }
+
+    // Returns the lines of a chunk of the log that end in it, joined to the partial line left by the previous chunk;
+    // the bytes after the last line ending are kept for the next chunk
+    private String completeLines(byte[] bytes, int length) {
+        int start = 0;
+        int lastEnd = -1;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != '\n') continue;
+            if (skipToLineEnd) {
+                skipToLineEnd = false;
+                start = i + 1;
+                continue;
+            }
+            lastEnd = i;
+        }
+        if (skipToLineEnd) return "";
+
+        StringBuilder text = new StringBuilder();
+        if (lastEnd >= 0) {
+            partialLine.write(bytes, start, lastEnd + 1 - start);
+            text.append(new String(partialLine.toByteArray(), StandardCharsets.UTF_8));
+            partialLine.reset();
+            start = lastEnd + 1;
+        }
+        // A line that never ends is not kept forever
+        if (partialLine.size() + length - start > TAIL_BYTES) {
+            partialLine.reset();
+        } else {
+            partialLine.write(bytes, start, length - start);
+        }
+        return text.toString();
+    }
+
+    // Appends lines to the log view and drops the oldest beyond MAX_LOG_LINES. Runs on the event dispatch thread.
+    private void appendLog(String lines) {
+        logTextArea.append(lines);
+        // The text ends with a line break, so the last line the text area counts is empty
+        int excess = logTextArea.getLineCount() - 1 - MAX_LOG_LINES;
+        if (excess > 0) {
+            try {
+                logTextArea.replaceRange("", 0, logTextArea.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                logTextArea.setText("");
+            }
+        }
+        logTextArea.setCaretPosition(logTextArea.getDocument().getLength());
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.*;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// The user file ("name:password" lines) held in memory as an immutable map from user name to a salted PBKDF2 hash
+// of the password. Lookups read the current map without locking. At most once every RELOAD_CHECK_MILLIS a lookup
+// checks whether the file has changed, and if so builds a new map and swaps it in whole. A lookup that finds a
+// reload already running uses the old map. Passwords found in plain text are hashed on loading; the file itself is
+// only rewritten with the hashes when REHASH asks for it, as it is the operator's file and may sit in the document
+// root. New users are appended to the file and published in a new map; the lock only orders writers and reloads,
+// never readers.
+public class UserStore {
+
+    // Logger for logging messages
+    private static final Logger logger = Logger.getLogger(UserStore.class.getCanonicalName());
+    // PBKDF2 iterations for new hashes; stored hashes keep the count they were made with
+    static final int ITERATIONS = Integer.getInteger("jhttp.auth.iterations", 210000);
+    // Whether plain-text passwords found on loading are replaced in the file with their hashes
+    static final boolean REHASH = Boolean.getBoolean("jhttp.auth.rehash");
+    // How often, at most, lookups check the file for changes
+    static final long RELOAD_CHECK_MILLIS = Long.getLong("jhttp.auth.reloadCheckMillis", 1000);
+    // Longest user name and password accepted from a signup
+    static final int MAX_NAME = 64;
+    static final int MAX_PASSWORD = 1024;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "$pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // A salted password hash as stored after the user name: "$pbkdf2-sha256$iterations$salt$key", Base64 encoded
+    static final class Hash {
+        final int iterations;
+        final byte[] salt;
+        final byte[] key;
+
+        private Hash(int iterations, byte[] salt, byte[] key) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.key = key;
+        }
+
+        // Hashes a password with a new random salt
+        static Hash create(char[] password, int iterations) {
+            byte[] salt = new byte[SALT_BYTES];
+            RANDOM.nextBytes(salt);
+            return new Hash(iterations, salt, derive(password, salt, iterations));
+        }
+
+        // Parses a stored hash, or returns null if the text is not one
+        static Hash parse(String text) {
+            if (!text.startsWith(PREFIX)) return null;
+            String[] parts = text.substring(PREFIX.length()).split("\\$");
+            if (parts.length != 3) return null;
+            try {
+                int iterations = Integer.parseInt(parts[0]);
+                if (iterations < 1) return null;
+                Base64.Decoder decoder = Base64.getDecoder();
+                return new Hash(iterations, decoder.decode(parts[1]), decoder.decode(parts[2]));
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        // Checks a password in time that does not depend on how much of it is right
+        boolean matches(char[] password) {
+            return MessageDigest.isEqual(key, derive(password, salt, iterations));
+        }
+
+        String encode() {
+            Base64.Encoder encoder = Base64.getEncoder();
+            return PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(key);
+        }
+
+        private static byte[] derive(char[] password, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_BITS);
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ALGORITHM + " is not available", ex);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+
+    // Checked against when the user does not exist, so an unknown name takes as long to refuse as a wrong password
+    private static final Hash UNKNOWN_USER = Hash.create(new char[0], ITERATIONS);
+
+    private final Path file;
+    private final int iterations;
+    // The current index, replaced whole on every change
+    private volatile Map<String, Hash> users = Collections.emptyMap();
+    // Incremented each time the index is replaced, so callers can tell their cached answers may be stale
+    private volatile long generation;
+    // Size, modification time and file key of the user file when it was last read or written
+    private volatile List<Object> stamp;
+    // System.nanoTime() of the next check for changes
+    private volatile long nextCheck;
+    // Held while reloading or writing the file
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Counters read by the metrics
+    private final AtomicLong reloads = new AtomicLong();
+
+    // Constructor loads the user file; a missing file gives an empty index that fills in when the file appears
+    public UserStore(Path file) {
+        this(file, ITERATIONS);
+    }
+
+    public UserStore(Path file, int iterations) {
+        this.file = file;
+        this.iterations = iterations;
+        lock.lock();
+        try {
+            reload();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Returns true if the password is right for the user; false for a wrong password or an unknown user
+    public boolean verify(String user, char[] password) {
+        Hash hash = lookup(user);
+        if (hash == null) {
+            UNKNOWN_USER.matches(password);
+            return false;
+        }
+        return hash.matches(password);
+    }
+
+    // Returns the stored hash of a user, or null if there is no such user
+    Hash lookup(String user) {
+        checkForChanges();
+        return users.get(user);
+    }
+
+    // Adds a user and returns true, or returns false if the name is taken. The hash is computed before taking the
+    // lock, and the line is on disk before the new index is published.
+    public boolean add(String user, char[] password) throws IOException {
+        if (!isValidName(user)) throw new IllegalArgumentException("Invalid user name");
+        Hash hash = Hash.create(password, iterations);
+        lock.lock();
+        try {
+            // Pick up any edit made to the file since the last check, so it is not overwritten in memory
+            if (!Objects.equals(stamp, readStamp())) reload();
+            if (users.containsKey(user)) return false;
+            append(user + ":" + hash.encode());
+            Map<String, Hash> updated = new HashMap<>(users);
+            updated.put(user, hash);
+            publish(updated);
+            stamp = readStamp();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns true if a name can be stored in the user file: 1 to MAX_NAME printable characters, no colon
+    public static boolean isValidName(String user) {
+        if (user == null || user.isEmpty() || user.length() > MAX_NAME) return false;
+        for (int i = 0; i < user.length(); i++) {
+            char c = user.charAt(i);
+            if (c == ':' || Character.isISOControl(c) || Character.isWhitespace(c)) return false;
+        }
+        return true;
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    // Reloads the file if it changed since it was read; a reload already running elsewhere is not waited for
+    private void checkForChanges() {
+        long now = System.nanoTime();
+        if (now - nextCheck < 0) return;
+        nextCheck = now + TimeUnit.MILLISECONDS.toNanos(RELOAD_CHECK_MILLIS);
+        if (Objects.equals(stamp, readStamp()) || !lock.tryLock()) return;
+        try {
+            if (!Objects.equals(stamp, readStamp())) reload();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reads the whole file into a new index and publishes it; called with the lock held
+    private void reload() {
+        List<Object> current = readStamp();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException ex) {
+            if (stamp != null) logger.warning("User file " + file + " is gone; no user can sign in");
+            lines = Collections.emptyList();
+        } catch (IOException ex) {
+            // Keep the users we have rather than locking everyone out
+            logger.log(Level.WARNING, "Could not read user file " + file, ex);
+            stamp = current;
+            return;
+        }
+
+        Map<String, Hash> loaded = new HashMap<>();
+        List<String> rewritten = new ArrayList<>(lines.size());
+        boolean plainText = false;
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                // Blank lines and anything else that is not a user are kept as they are
+                rewritten.add(line);
+                continue;
+            }
+            String user = line.substring(0, colon);
+            String stored = line.substring(colon + 1);
+            Hash hash = Hash.parse(stored);
+            if (hash == null) {
+                char[] password = stored.toCharArray();
+                hash = Hash.create(password, iterations);
+                Arrays.fill(password, '\0');
+                plainText = true;
+            }
+            loaded.put(user, hash);
+            rewritten.add(user + ":" + hash.encode());
+        }
+        publish(loaded);
+        reloads.incrementAndGet();
+        stamp = current;
+        logger.info("Loaded " + loaded.size() + " users from " + file);
+
+        if (plainText && !REHASH) {
+            logger.warning("User file " + file + " holds plain-text passwords; they are hashed in memory only. "
+                    + "Start with -Djhttp.auth.rehash=true to store the hashes in the file instead.");
+        } else if (plainText) {
+            try {
+                replace(rewritten);
+                stamp = readStamp();
+                logger.info("Replaced plain-text passwords in " + file + " with salted hashes");
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not rewrite " + file + " with hashed passwords", ex);
+            }
+        }
+    }
+
+    private void publish(Map<String, Hash> index) {
+        users = Collections.unmodifiableMap(index);
+        generation++;
+    }
+
+    // Appends a line, starting a new line first if the file does not end with one
+    private void append(String line) throws IOException {
+        boolean newLine = false;
+        if (Files.exists(file) && Files.size(file) > 0) {
+            try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                channel.position(channel.size() - 1).read(last);
+                newLine = last.get(0) != '\n';
+            }
+        }
+        String text = (newLine ? "\n" : "") + line + "\n";
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                StandardOpenOption.DSYNC);
+    }
+
+    // Replaces the file with the given lines, through a temporary file so readers never see half of it
+    private void replace(List<String> lines) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns what identifies the current contents of the file, or null if it does not exist
+    private List<Object> readStamp() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return Arrays.asList(attributes.size(), attributes.lastModifiedTime(), attributes.fileKey());
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+// Microbenchmark comparing the old header path (string concatenation, new Date() per response and an
+// OutputStreamWriter) with ResponseHeaders. Reports time and bytes allocated per response header.
+//
+// Build and run from the project directory:
+//   javac -d out *.java bench/HeaderEncodingBench.java
+//   java -cp out HeaderEncodingBench
+public class HeaderEncodingBench {
+
+    private static final int WARMUP = 2_000_000;
+    private static final int ITERATIONS = 5_000_000;
+    private static final String EXTRA = "ETag: \"2a6-1a146cd21d9\"\r\n"
+            + "Last-Modified: Fri, 16 Oct 2026 22:20:11 GMT\r\n"
+            + "Accept-Ranges: bytes\r\n";
+
+    // Prevents the JIT from discarding the work
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        // The old path wrote through a Writer wrapped around the socket stream; a reused byte array stands in for it
+        ByteArrayOutputStream socket = new ByteArrayOutputStream(1024);
+        Writer writer = new OutputStreamWriter(socket);
+        ResponseHeaders encoder = new ResponseHeaders();
+
+        for (int round = 0; round < 2; round++) {
+            int n = round == 0 ? WARMUP : ITERATIONS;
+
+            long bytes = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                socket.reset();
+                legacy(writer, "HTTP/1.1", "200 OK", "text/html", 678 + (i & 7), true, EXTRA);
+                sink += socket.size();
+            }
+            long legacyNanos = System.nanoTime() - start;
+            long legacyBytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+
+            bytes = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                ByteBuffer header = encoder.encode("HTTP/1.1", "200 OK", "text/html", 678 + (i & 7), true, EXTRA);
+                sink += header.remaining();
+            }
+            long encodedNanos = System.nanoTime() - start;
+            long encodedBytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+
+            if (round == 1) {
+                System.out.printf("%-16s %10s %14s%n", "path", "ns/op", "bytes/op");
+                System.out.printf("%-16s %10.1f %14.1f%n", "legacy", (double) legacyNanos / n, (double) legacyBytes / n);
+                System.out.printf("%-16s %10.1f %14.1f%n", "ResponseHeaders", (double) encodedNanos / n, (double) encodedBytes / n);
+            }
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    // The header code RequestProcessor used before ResponseHeaders
+    private static void legacy(Writer out, String responseVersion, String responseCode, String contentType, long length,
+                               boolean keepAlive, String extraHeaders) throws IOException {
+        out.write(responseVersion + " " + responseCode + "\r\n");
+        Date now = new Date();
+        out.write("Date: " + now + "\r\n");
+        out.write("Server: JHTTP 2.0\r\n");
+        out.write("Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n");
+        if (length >= 0) out.write("Content-length: " + length + "\r\n");
+        out.write(extraHeaders);
+        if (contentType != null) out.write("Content-type: " + contentType + "\r\n");
+        out.write("\r\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator that starts JHTTP on a loopback port, serving a generated docroot of mixed file sizes, and drives
+// it with persistent connections:
+// - closed loop: each connection sends its next request as soon as the previous response has arrived, so the
+//   offered load adapts to the server and the result is the throughput it can sustain
+// - open loop: requests are due at a fixed rate whether or not earlier ones have finished. Latency is measured
+//   from when a request was due, not when a free connection sent it, so a server that falls behind shows it in
+//   the percentiles instead of hiding it (coordinated omission). Use enough connections for the target rate.
+// Requests for the first warmup seconds are not counted. The results, with throughput and latency percentiles,
+// are printed to stdout as one JSON object, and a summary goes to stderr.
+//
+// Build and run from the project directory:
+//   javac -d out *.java bench/LoadTest.java
+//   java -cp out LoadTest [--mode closed|open] [--connections 64] [--rate 2000] [--duration 10] [--warmup 3]
+//                         [--files 200] [--engine pool|virtual|nio] [--target host:port] [--seed 1]
+// --target skips starting a server and loads one that is already running; it must serve the generated docroot,
+// which is left in place and printed when --target is given.
+public class LoadTest {
+
+    // Share of generated files by size: most are small pages and assets, a few are large downloads
+    private static final int[][] SIZE_CLASSES = {
+            // percent of files, smallest bytes, largest bytes
+            { 60, 512, 8 * 1024 },
+            { 30, 8 * 1024, 128 * 1024 },
+            { 10, 128 * 1024, 2 * 1024 * 1024 },
+    };
+
+    private static String mode = "closed";
+    private static int connections = 64;
+    private static int rate = 2000;
+    private static int duration = 10;
+    private static int warmup = 3;
+    private static int files = 200;
+    private static String engine = "pool";
+    private static String target;
+    private static long seed = 1;
+
+    // Results shared by the client threads
+    private static final LatencyHistogram latency = new LatencyHistogram();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder reconnects = new LongAdder();
+    // Next open-loop request to send
+    private static final AtomicLong ticket = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--mode": mode = value; break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--rate": rate = Integer.parseInt(value); break;
+                case "--duration": duration = Integer.parseInt(value); break;
+                case "--warmup": warmup = Integer.parseInt(value); break;
+                case "--files": files = Integer.parseInt(value); break;
+                case "--engine": engine = value; break;
+                case "--target": target = value; break;
+                case "--seed": seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (!"closed".equals(mode) && !"open".equals(mode)) throw new IllegalArgumentException("Unknown mode " + mode);
+
+        Path docroot = Files.createTempDirectory("jhttp-load-");
+        List<String> paths = createDocroot(docroot);
+        String host = "127.0.0.1";
+        int port;
+        JHTTP server = null;
+        if (target != null) {
+            host = target.substring(0, target.lastIndexOf(':'));
+            port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+            System.err.println("Docroot for the target server: " + docroot);
+        } else {
+            port = freePort();
+            server = startServer(docroot, port);
+        }
+
+        // Requests are built once; each names a random file
+        byte[][] requests = new byte[paths.size()][];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = ("GET " + paths.get(i) + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmup * 1_000_000_000L;
+        long end = measureFrom + duration * 1_000_000_000L;
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Client client = new Client(host, port, requests, new Random(seed + i), start, measureFrom, end);
+            Thread thread = new Thread(client, "load-client-" + i);
+            thread.start();
+            clients.add(thread);
+        }
+        for (Thread thread : clients) thread.join();
+
+        if (server != null) server.stop();
+        report(end - measureFrom);
+        if (target == null) delete(docroot);
+        System.exit(0);
+    }
+
+    // One persistent connection sending requests in closed or open loop until the end of the run
+    private static final class Client implements Runnable {
+        private final String host;
+        private final int port;
+        private final byte[][] requests;
+        private final Random random;
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        Client(String host, int port, byte[][] requests, Random random, long start, long measureFrom, long end) {
+            this.host = host;
+            this.port = port;
+            this.requests = requests;
+            this.random = random;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long due;
+                if ("open".equals(mode)) {
+                    // Take the next request due and wait for its time to come
+                    due = start + ticket.getAndIncrement() * 1_000_000_000L / rate;
+                    if (due >= end) break;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                } else {
+                    due = System.nanoTime();
+                    if (due >= end) break;
+                }
+
+                long received;
+                try {
+                    received = exchange(requests[random.nextInt(requests.length)]);
+                } catch (IOException ex) {
+                    if (due >= measureFrom) errors.increment();
+                    close();
+                    continue;
+                }
+                if (due >= measureFrom) {
+                    latency.record(System.nanoTime() - due);
+                    bytes.add(received);
+                }
+            }
+            close();
+        }
+
+        // Sends one request and reads its response, opening a new connection if the last one was closed; returns
+        // the body length, or throws if the response was not 200
+        private long exchange(byte[] request) throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), 5000);
+                socket.setSoTimeout(30_000);
+                in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                out = socket.getOutputStream();
+                reconnects.increment();
+            }
+            out.write(request);
+            out.flush();
+
+            String statusLine = readLine();
+            long length = -1;
+            boolean close = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim();
+                if ("content-length".equals(name)) length = Long.parseLong(value);
+                if ("connection".equals(name)) close = "close".equalsIgnoreCase(value);
+            }
+            if (length < 0) throw new IOException("Response without Content-Length: " + statusLine);
+            for (long left = length; left > 0; ) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n < 0) throw new EOFException("Connection closed inside the body");
+                left -= n;
+            }
+            // The server ends persistent connections after a number of requests; reconnect for the next one
+            if (close) close();
+            if (!statusLine.startsWith("HTTP/1.1 200 ")) throw new IOException("Unexpected response: " + statusLine);
+            return length;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) throw new EOFException("Connection closed inside the response head");
+                if (c != '\r') line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        private void close() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Nothing to do, the next request opens a new connection
+            }
+            socket = null;
+        }
+    }
+
+    // Writes the files, with sizes drawn from SIZE_CLASSES, and returns their request paths
+    private static List<String> createDocroot(Path docroot) throws IOException {
+        Random random = new Random(seed);
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            int pick = random.nextInt(100);
+            int[] sizeClass = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+            for (int[] candidate : SIZE_CLASSES) {
+                if (pick < candidate[0]) {
+                    sizeClass = candidate;
+                    break;
+                }
+                pick -= candidate[0];
+            }
+            byte[] data = new byte[sizeClass[1] + random.nextInt(sizeClass[2] - sizeClass[1])];
+            random.nextBytes(data);
+            String name = "file" + i + (data.length < 8 * 1024 ? ".html" : ".bin");
+            Files.write(docroot.resolve(name), data);
+            paths.add("/" + name);
+        }
+        return paths;
+    }
+
+    // Starts JHTTP headless on the given port in this JVM and waits until it accepts connections
+    private static JHTTP startServer(Path docroot, int port) throws Exception {
+        System.setProperty("jhttp.mode", System.getProperty("jhttp.mode", engine));
+        System.setProperty("jhttp.headless", "true");
+        System.setProperty("jhttp.report.seconds", "0");
+        System.setProperty("jhttp.drain.millis", "1000");
+        System.setProperty("jhttp.accessLog.file", docroot.resolve("access.log.txt").toString());
+        JHTTP server = new JHTTP(docroot.toFile(), port);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }, "load-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return server;
+            } catch (IOException ex) {
+                if (System.nanoTime() > deadline) throw new IOException("JHTTP did not start on port " + port, ex);
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void report(long measuredNanos) {
+        long[] snapshot = latency.snapshot();
+        long requests = latency.getCount();
+        double seconds = measuredNanos / 1e9;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("mode", mode);
+        result.put("engine", target != null ? "external" : System.getProperty("jhttp.mode"));
+        result.put("connections", connections);
+        result.put("targetRate", "open".equals(mode) ? rate : null);
+        result.put("durationSeconds", duration);
+        result.put("files", files);
+        result.put("requests", requests);
+        result.put("errors", errors.sum());
+        result.put("connects", reconnects.sum());
+        result.put("throughputPerSecond", Math.round(requests / seconds));
+        result.put("bytesPerSecond", Math.round(bytes.sum() / seconds));
+        result.put("latencyMeanMicros", requests == 0 ? 0 : latency.getSumNanos() / requests / 1000);
+        double[] percentiles = { 0.5, 0.9, 0.99, 0.999, 1.0 };
+        String[] names = { "latencyP50Micros", "latencyP90Micros", "latencyP99Micros", "latencyP999Micros", "latencyMaxMicros" };
+        for (int i = 0; i < percentiles.length; i++) {
+            result.put(names[i], LatencyHistogram.percentile(snapshot, percentiles[i]));
+        }
+
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            if (json.length() > 1) json.append(',');
+            json.append('"').append(entry.getKey()).append("\":");
+            Object value = entry.getValue();
+            json.append(value instanceof String ? "\"" + value + "\"" : String.valueOf(value));
+        }
+        System.out.println(json.append('}'));
+        System.err.printf(Locale.ROOT, "%s loop, %d connections: %d requests/s, %d errors, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                mode, connections, result.get("throughputPerSecond"), errors.sum(),
+                (Long) result.get("latencyP50Micros") / 1000.0, (Long) result.get("latencyP99Micros") / 1000.0,
+                (Long) result.get("latencyMaxMicros") / 1000.0);
+    }
+
+    private static void delete(Path docroot) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(docroot)) {
+            for (Path entry : entries) Files.deleteIfExists(entry);
+        }
+        Files.deleteIfExists(docroot);
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+// Benchmark suite for the request path, run the way JMH runs benchmarks: a few warmup iterations, then measured
+// iterations of fixed length, each thread calling the operation in a loop until a flag tells it to stop. Multi-
+// threaded benchmarks give every thread its own state and report the average time per operation per thread.
+// Covers request parsing, response header encoding, cache lookups with and without contention, and serving small
+// and large files through RequestProcessor over an in-memory socket.
+//
+// Build and run from the project directory:
+//   javac -d out *.java bench/Microbench.java
+//   java -cp out Microbench [--json] [name regex]
+// Iterations are set with -Dbench.warmup=3 -Dbench.iterations=5 -Dbench.millis=1000. --json prints one JSON object
+// per benchmark instead of a table. The same cases run under JMH with `gradle jmh`; see jmh/.
+public class Microbench {
+
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long MILLIS = Long.getLong("bench.millis", 1000);
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private static final String REQUEST = "GET /images/logo%20large.png?v=3 HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: image/avif,image/webp,image/png,image/svg+xml,image/*;q=0.8,*/*;q=0.5\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+    private static final String EXTRA = "ETag: \"2a6-1a146cd21d9\"\r\n"
+            + "Last-Modified: Fri, 16 Oct 2026 22:20:11 GMT\r\n"
+            + "Accept-Ranges: bytes\r\n";
+    // Files in the generated docroot: small ones served from the cache, and one above the sendfile threshold
+    private static final int SMALL_FILES = 64;
+    private static final int SMALL_BYTES = 2048;
+    private static final int LARGE_BYTES = 1024 * 1024;
+    private static final int PIPELINED = 100;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile boolean stop;
+    // Prevents the JIT from discarding the work
+    private static long sink;
+
+    // One call is one operation, or batch operations if the benchmark says so; the result keeps the JIT honest
+    interface Operation {
+        long run() throws Exception;
+    }
+
+    // Creates the per-thread state of a benchmark and returns the operation that uses it
+    interface Setup {
+        Operation create() throws Exception;
+    }
+
+    private static final class Benchmark {
+        final String name;
+        final int threads;
+        final int batch;
+        final Setup setup;
+
+        Benchmark(String name, int threads, int batch, Setup setup) {
+            this.name = name;
+            this.threads = threads;
+            this.batch = batch;
+            this.setup = setup;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean json = false;
+        Pattern filter = Pattern.compile(".*");
+        for (String arg : args) {
+            if ("--json".equals(arg)) {
+                json = true;
+            } else {
+                filter = Pattern.compile(arg);
+            }
+        }
+
+        List<Benchmark> benchmarks = benchmarks();
+        if (!json) {
+            System.out.printf("%-28s %8s %14s %10s %14s %16s%n", "benchmark", "threads", "ns/op", "stdev", "bytes/op", "ops/s");
+        }
+        for (Benchmark benchmark : benchmarks) {
+            if (!filter.matcher(benchmark.name).find()) continue;
+            double[] result = measure(benchmark);
+            if (json) {
+                System.out.println(String.format(Locale.ROOT,
+                        "{\"benchmark\":\"%s\",\"threads\":%d,\"iterations\":%d,\"nsPerOp\":%.2f,\"stdev\":%.2f,"
+                                + "\"bytesPerOp\":%.1f,\"opsPerSecond\":%.0f}",
+                        benchmark.name, benchmark.threads, ITERATIONS, result[0], result[1], result[2], result[3]));
+            } else {
+                System.out.printf("%-28s %8d %14.1f %10.1f %14.1f %16.0f%n", benchmark.name, benchmark.threads,
+                        result[0], result[1], result[2], result[3]);
+            }
+        }
+        System.err.println("(checksum " + sink + ")");
+    }
+
+    // Builds the docroot, cache and server parts the benchmarks share, and the benchmarks themselves
+    private static List<Benchmark> benchmarks() throws IOException {
+        Path docroot = createDocroot();
+        FileCache cache = new FileCache(docroot.toFile(), 64L * 1024 * 1024, 256L * 1024);
+        PathResolver resolver = new PathResolver(docroot);
+        // No path is protected, so serving never checks a password
+        BasicAuth auth = new BasicAuth(new UserStore(docroot.resolve("user.txt")), resolver, "");
+        RateLimiter rateLimiter = new RateLimiter("", 32, 64, 1, 1000);
+        ReverseProxy proxy = new ReverseProxy("", "round-robin", 1000, 1000, 0, 0, 1, 0);
+        for (int i = 0; i < SMALL_FILES; i++) {
+            RequestProcessor.loadFile(resolver, "/f" + i + ".html", cache);
+        }
+        AccessLog accessLog = new AccessLog(docroot.resolve("access.log"), 1024, 1000, AccessLog.FsyncPolicy.NEVER, 0, 0);
+        Metrics metrics = new Metrics();
+
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new Benchmark("parse.request", 1, 1, () -> {
+            byte[] bytes = REQUEST.getBytes(StandardCharsets.US_ASCII);
+            int end = RequestParser.headEnd(bytes, 0, 0, bytes.length);
+            RequestParser parser = new RequestParser();
+            return () -> {
+                parser.parse(bytes, 0, end);
+                return parser.getPath().length() + parser.getHeaders().size();
+            };
+        }));
+        benchmarks.add(new Benchmark("headers.encode", 1, 1, () -> {
+            ResponseHeaders encoder = new ResponseHeaders();
+            long[] i = { 0 };
+            return () -> encoder.encode("HTTP/1.1", "200 OK", "text/html", 678 + (i[0]++ & 7), true, EXTRA).remaining();
+        }));
+        benchmarks.add(new Benchmark("cache.get", 1, 1, cacheLookup(cache, SMALL_FILES)));
+        benchmarks.add(new Benchmark("cache.get.threads", THREADS, 1, cacheLookup(cache, SMALL_FILES)));
+        benchmarks.add(new Benchmark("cache.get.hotKey.threads", THREADS, 1, cacheLookup(cache, 1)));
+        benchmarks.add(new Benchmark("serve.small.pipelined", 1, PIPELINED, () -> {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < PIPELINED; i++) {
+                requests.append("GET /f").append(i % SMALL_FILES).append(".html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            }
+            byte[] input = requests.toString().getBytes(StandardCharsets.US_ASCII);
+            return serve(resolver, auth, rateLimiter, proxy, cache, accessLog, metrics, input, (long) PIPELINED * SMALL_BYTES);
+        }));
+        benchmarks.add(new Benchmark("serve.large", 1, 1, () -> {
+            byte[] input = "GET /large.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII);
+            return serve(resolver, auth, rateLimiter, proxy, cache, accessLog, metrics, input, LARGE_BYTES);
+        }));
+        return benchmarks;
+    }
+
+    // The benchmarks by name, for the JMH wrappers in jmh/. JMH only takes benchmarks in a named package, and a named
+    // package cannot see this one, so they get each case by reflection and in JDK types: a Callable that creates one
+    // thread's operation as a LongSupplier.
+    public static Map<String, Callable<LongSupplier>> cases() throws IOException {
+        Map<String, Callable<LongSupplier>> cases = new LinkedHashMap<>();
+        for (Benchmark benchmark : benchmarks()) {
+            cases.put(benchmark.name, () -> {
+                Operation operation = benchmark.setup.create();
+                return () -> {
+                    try {
+                        return operation.run();
+                    } catch (Exception ex) {
+                        throw new IllegalStateException(benchmark.name + " failed", ex);
+                    }
+                };
+            });
+        }
+        return cases;
+    }
+
+    // Looks up the first keys cached files in turn, keys being a power of two; with one key every thread hits the
+    // same stripe
+    private static Setup cacheLookup(FileCache cache, int keys) {
+        return () -> {
+            String[] names = new String[keys];
+            for (int i = 0; i < keys; i++) names[i] = "/f" + i + ".html";
+            int[] next = { new Random().nextInt(keys) };
+            return () -> {
+                FileCache.Entry entry = cache.get(names[next[0]++ & (keys - 1)]);
+                return entry.getLength();
+            };
+        };
+    }
+
+    // Runs RequestProcessor over a socket that reads the given requests and discards the responses, checking that
+    // at least the expected number of body bytes came back
+    private static Operation serve(PathResolver resolver, BasicAuth auth, RateLimiter rateLimiter, ReverseProxy proxy,
+                                   FileCache cache, AccessLog accessLog, Metrics metrics, byte[] input, long expectedBytes) {
+        return () -> {
+            MemorySocket socket = new MemorySocket(input);
+            new RequestProcessor(resolver, auth, rateLimiter, proxy, "index.html", socket, cache, accessLog, metrics,
+                    System.nanoTime()).run();
+            if (socket.written < expectedBytes) {
+                throw new IllegalStateException("Only " + socket.written + " bytes written, expected " + expectedBytes);
+            }
+            return socket.written;
+        };
+    }
+
+    // Runs the warmup and measured iterations and returns ns per operation, its standard deviation across
+    // iterations, bytes allocated per operation and operations per second over all threads
+    private static double[] measure(Benchmark benchmark) throws Exception {
+        Operation[] operations = new Operation[benchmark.threads];
+        for (int i = 0; i < operations.length; i++) operations[i] = benchmark.setup.create();
+
+        double[] nsPerOp = new double[ITERATIONS];
+        double bytesPerOp = 0;
+        double opsPerSecond = 0;
+        for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+            long[] ops = new long[benchmark.threads];
+            long[] allocated = new long[benchmark.threads];
+            long[] sums = new long[benchmark.threads];
+            Exception[] failures = new Exception[1];
+            CountDownLatch ready = new CountDownLatch(benchmark.threads);
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[benchmark.threads];
+            stop = false;
+            for (int t = 0; t < threads.length; t++) {
+                int index = t;
+                threads[t] = new Thread(() -> {
+                    Operation operation = operations[index];
+                    ready.countDown();
+                    try {
+                        go.await();
+                        long bytes = threadBean.getCurrentThreadAllocatedBytes();
+                        long count = 0;
+                        long sum = 0;
+                        while (!stop) {
+                            sum += operation.run();
+                            count++;
+                        }
+                        allocated[index] = threadBean.getCurrentThreadAllocatedBytes() - bytes;
+                        ops[index] = count;
+                        sums[index] = sum;
+                    } catch (Exception ex) {
+                        failures[0] = ex;
+                    }
+                }, "bench-" + t);
+                threads[t].start();
+            }
+            ready.await();
+            long start = System.nanoTime();
+            go.countDown();
+            Thread.sleep(MILLIS);
+            stop = true;
+            for (Thread thread : threads) thread.join();
+            long elapsed = System.nanoTime() - start;
+            if (failures[0] != null) throw new IllegalStateException(benchmark.name + " failed", failures[0]);
+
+            long totalOps = 0;
+            long totalBytes = 0;
+            for (int t = 0; t < threads.length; t++) {
+                totalOps += ops[t] * benchmark.batch;
+                totalBytes += allocated[t];
+                sink += sums[t];
+            }
+            if (iteration >= 0) {
+                nsPerOp[iteration] = (double) elapsed * benchmark.threads / Math.max(1, totalOps);
+                bytesPerOp += (double) totalBytes / Math.max(1, totalOps) / ITERATIONS;
+                opsPerSecond += totalOps * 1e9 / elapsed / ITERATIONS;
+            }
+        }
+
+        double mean = 0;
+        for (double value : nsPerOp) mean += value / ITERATIONS;
+        double variance = 0;
+        for (double value : nsPerOp) variance += (value - mean) * (value - mean) / Math.max(1, ITERATIONS - 1);
+        return new double[] { mean, Math.sqrt(variance), bytesPerOp, opsPerSecond };
+    }
+
+    // Writes the small files and the large one to a temp directory that is deleted on exit
+    private static Path createDocroot() throws IOException {
+        Path docroot = Files.createTempDirectory("jhttp-bench-");
+        Random random = new Random(42);
+        byte[] small = new byte[SMALL_BYTES];
+        for (int i = 0; i < SMALL_FILES; i++) {
+            random.nextBytes(small);
+            Files.write(docroot.resolve("f" + i + ".html"), small);
+        }
+        byte[] large = new byte[LARGE_BYTES];
+        random.nextBytes(large);
+        Files.write(docroot.resolve("large.bin"), large);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(docroot)) {
+                for (Path file : files) Files.deleteIfExists(file);
+                Files.deleteIfExists(docroot);
+            } catch (IOException ex) {
+                System.err.println("Could not delete " + docroot + ": " + ex);
+            }
+        }));
+        return docroot;
+    }
+
+    // A connection that reads a fixed request stream and counts the response bytes instead of sending them; it has
+    // no channel, so RequestProcessor writes through the stream
+    private static final class MemorySocket extends Socket {
+        private final byte[] input;
+        long written;
+
+        MemorySocket(byte[] input) {
+            this.input = input;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(input);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    written++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    written += len;
+                }
+            };
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+        }
+
+        @Override
+        public synchronized void close() {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// Microbenchmark comparing the old request parsing (BufferedReader.readLine, split("\\s+") and a new header map per
+// request) with RequestParser. Both read the same stream of pipelined browser-like requests, as they would on one
+// keep-alive connection. Reports time and bytes allocated per request.
+//
+// Build and run from the project directory:
+//   javac -d out *.java bench/RequestParserBench.java
+//   java -cp out RequestParserBench
+public class RequestParserBench {
+
+    private static final int REQUESTS_PER_CONNECTION = 100;
+    private static final int WARMUP = 20_000;
+    private static final int CONNECTIONS = 50_000;
+    private static final String REQUEST = "GET /images/logo%20large.png?v=3 HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: image/avif,image/webp,image/png,image/svg+xml,image/*;q=0.8,*/*;q=0.5\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Referer: http://localhost:8080/index.html\r\n"
+            + "If-None-Match: \"2a6-1a146cd21d9\"\r\n"
+            + "\r\n";
+
+    // Prevents the JIT from discarding the work
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StringBuilder connection = new StringBuilder();
+        for (int i = 0; i < REQUESTS_PER_CONNECTION; i++) connection.append(REQUEST);
+        byte[] input = connection.toString().getBytes(StandardCharsets.US_ASCII);
+
+        for (int round = 0; round < 2; round++) {
+            int n = round == 0 ? WARMUP : CONNECTIONS;
+            long requests = (long) n * REQUESTS_PER_CONNECTION;
+
+            long bytes = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) legacy(input);
+            long legacyNanos = System.nanoTime() - start;
+            long legacyBytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+
+            bytes = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) parser(input);
+            long parserNanos = System.nanoTime() - start;
+            long parserBytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+
+            if (round == 1) {
+                System.out.printf("%-14s %10s %14s%n", "path", "ns/req", "bytes/req");
+                System.out.printf("%-14s %10.1f %14.1f%n", "legacy", (double) legacyNanos / requests, (double) legacyBytes / requests);
+                System.out.printf("%-14s %10.1f %14.1f%n", "RequestParser", (double) parserNanos / requests, (double) parserBytes / requests);
+            }
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    // The request reading RequestProcessor used before RequestParser
+    private static void legacy(byte[] input) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input), "US-ASCII"));
+        String requestLine;
+        while ((requestLine = in.readLine()) != null) {
+            if (requestLine.isEmpty()) continue;
+            String[] tokens = requestLine.split("\\s+");
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            sink += tokens[1].length() + headers.size();
+        }
+    }
+
+    private static void parser(byte[] input) throws IOException {
+        RequestParser parser = new RequestParser(new ByteArrayInputStream(input));
+        while (parser.readRequest()) {
+            sink += parser.getPath().length() + parser.getHeaders().size();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+// Fuzzer for RequestParser. Each round builds a random valid request and checks the parser returns exactly the
+// method, path, query, version and headers it was built from, both when the bytes arrive at once and when they
+// trickle in a few at a time. The request is then mutated (bytes flipped, inserted, deleted or padded, or the request cut short) and the
+// parser must either accept it or refuse it with BadRequestException or EOFException; anything else is a bug.
+//
+// Build and run from the project directory:
+//   javac -d out *.java bench/RequestParserFuzz.java
+//   java -cp out RequestParserFuzz [rounds] [seed]
+public class RequestParserFuzz {
+
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "BREW" };
+    private static final String[] NAMES = { "Host", "User-Agent", "Accept", "Accept-Encoding", "Connection", "Range",
+            "If-None-Match", "Cookie", "X-Custom-Header", "x-lower" };
+    private static final String PATH_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789-._~/";
+    // Bytes with a special meaning to the parser, inserted by mutations
+    private static final String SPECIAL = "\r\n :%\t\0?#";
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        System.out.println("seed " + seed + ", " + rounds + " rounds");
+
+        int accepted = 0, refused = 0;
+        for (int round = 0; round < rounds; round++) {
+            Expected expected = new Expected();
+            byte[] request = build(random, expected);
+
+            // Valid requests must parse to what they were built from, however the bytes are split up
+            check(request, parseWhole(request), expected);
+            check(request, parseTrickled(request, random), expected);
+
+            // Mutated requests must be accepted or refused cleanly
+            byte[] mutated = mutate(request, random);
+            try {
+                parseWhole(mutated);
+                accepted++;
+            } catch (RequestParser.BadRequestException | EOFException ex) {
+                refused++;
+            } catch (RuntimeException ex) {
+                throw new AssertionError("Parser crashed on " + dump(mutated), ex);
+            }
+        }
+        System.out.println("ok: " + accepted + " mutated requests accepted, " + refused + " refused");
+    }
+
+    // What a generated request should parse to
+    private static final class Expected {
+        String method;
+        String path;
+        String query;
+        String version;
+        final Map<String, String> headers = new LinkedHashMap<>();
+    }
+
+    private static byte[] build(Random random, Expected expected) {
+        StringBuilder out = new StringBuilder();
+        expected.method = METHODS[random.nextInt(METHODS.length)];
+
+        // Path with some characters percent-encoded, and sometimes a query
+        StringBuilder raw = new StringBuilder("/");
+        StringBuilder decoded = new StringBuilder("/");
+        int length = random.nextInt(40);
+        for (int i = 0; i < length; i++) {
+            char c = PATH_CHARS.charAt(random.nextInt(PATH_CHARS.length()));
+            decoded.append(c);
+            if (random.nextInt(8) == 0) {
+                raw.append('%').append(String.format("%02X", (int) c));
+            } else {
+                raw.append(c);
+            }
+        }
+        expected.path = decoded.toString();
+        expected.query = random.nextBoolean() ? null : "q=" + random.nextInt(1000) + "&x=%20y";
+        String target = raw + (expected.query != null ? "?" + expected.query : "");
+
+        expected.version = random.nextInt(4) == 0 ? "HTTP/1.0" : "HTTP/1.1";
+        out.append(expected.method).append(' ').append(target).append(' ').append(expected.version).append("\r\n");
+
+        int count = random.nextInt(12);
+        for (int i = 0; i < count; i++) {
+            String name = NAMES[random.nextInt(NAMES.length)];
+            String value = "v" + random.nextInt(100000) + (random.nextBoolean() ? " with spaces" : "");
+            String padding = random.nextBoolean() ? " " : "";
+            out.append(name).append(':').append(padding).append(value).append(padding).append("\r\n");
+            expected.headers.merge(name.toLowerCase(), value, (a, b) -> a + ", " + b);
+        }
+        out.append("\r\n");
+        return out.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] mutate(byte[] request, Random random) {
+        byte[] out = request.clone();
+        int edits = 1 + random.nextInt(4);
+        for (int e = 0; e < edits && out.length > 0; e++) {
+            int at = random.nextInt(out.length);
+            switch (random.nextInt(5)) {
+                case 0:
+                    out[at] = (byte) random.nextInt(256);
+                    break;
+                case 1: {
+                    byte[] grown = new byte[out.length + 1];
+                    System.arraycopy(out, 0, grown, 0, at);
+                    grown[at] = (byte) SPECIAL.charAt(random.nextInt(SPECIAL.length()));
+                    System.arraycopy(out, at, grown, at + 1, out.length - at);
+                    out = grown;
+                    break;
+                }
+                case 2: {
+                    byte[] shrunk = new byte[out.length - 1];
+                    System.arraycopy(out, 0, shrunk, 0, at);
+                    System.arraycopy(out, at + 1, shrunk, at, out.length - at - 1);
+                    out = shrunk;
+                    break;
+                }
+                case 3: {
+                    // A run long enough to hit the line and head limits
+                    byte[] padded = new byte[out.length + random.nextInt(2 * RequestParser.MAX_HEAD)];
+                    System.arraycopy(out, 0, padded, 0, at);
+                    Arrays.fill(padded, at, at + padded.length - out.length, (byte) 'a');
+                    System.arraycopy(out, at, padded, at + padded.length - out.length, out.length - at);
+                    out = padded;
+                    break;
+                }
+                default:
+                    out = Arrays.copyOf(out, at);
+            }
+        }
+        return out;
+    }
+
+    private static RequestParser parseWhole(byte[] request) throws IOException {
+        RequestParser parser = new RequestParser(new ByteArrayInputStream(request));
+        if (!parser.readRequest()) throw new EOFException("No request");
+        return parser;
+    }
+
+    // Feeds the request through a stream that returns at most a few bytes per read
+    private static RequestParser parseTrickled(byte[] request, Random random) throws IOException {
+        int chunk = 1 + random.nextInt(7);
+        InputStream in = new ByteArrayInputStream(request) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+        RequestParser parser = new RequestParser(in);
+        if (!parser.readRequest()) throw new EOFException("No request");
+        return parser;
+    }
+
+    private static void check(byte[] request, RequestParser parser, Expected expected) {
+        boolean ok = expected.method.equals(parser.getMethod())
+                && expected.path.equals(parser.getPath())
+                && Objects.equals(expected.query, parser.getQuery())
+                && expected.version.equals(parser.getVersion())
+                && expected.headers.equals(parser.getHeaders());
+        if (!ok) {
+            throw new AssertionError("Mismatch for " + dump(request) + ": got " + parser.getMethod() + " "
+                    + parser.getPath() + " ? " + parser.getQuery() + " " + parser.getVersion() + " " + parser.getHeaders());
+        }
+    }
+
+    private static String dump(byte[] request) {
+        return new String(request, StandardCharsets.ISO_8859_1).replace("\r", "\\r").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Loopback check for ReverseProxy. Starts JHTTP in this JVM with routes to stand-in backends that misbehave in one
+// way each, sends requests through it and checks what the client gets back and what the backends saw:
+// - a well-behaved backend: sequential requests share one pooled connection
+// - a backend that closes idle connections right after answering: the pool notices and opens a fresh one
+// - a backend that drops a pooled connection once the next request has arrived: the request is retried on a fresh
+//   connection and the backend is not blamed
+// - a backend that never answers: 504 until it is ejected, then 503 with Retry-After without trying it
+// - a port nobody listens on: 502
+// Any mismatch throws AssertionError.
+//
+// Build and run from the project directory:
+//   javac -d out *.java bench/ReverseProxyCheck.java
+//   java -cp out ReverseProxyCheck
+public class ReverseProxyCheck {
+
+    private static final int READ_TIMEOUT_MILLIS = 300;
+    private static final int MAX_FAILS = 2;
+    // Port JHTTP listens on
+    private static int port;
+
+    public static void main(String[] args) throws Exception {
+        StandIn ok = new StandIn("ok");
+        StandIn idleClose = new StandIn("idle-close");
+        StandIn drop = new StandIn("drop");
+        StandIn silent = new StandIn("silent");
+        int down;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            down = socket.getLocalPort();
+        }
+
+        // ReverseProxy reads its settings when the class is loaded, so they have to be in place before JHTTP is built
+        System.setProperty("jhttp.proxy", "/ok/=127.0.0.1:" + ok.port() + ",/idle-close/=127.0.0.1:" + idleClose.port()
+                + ",/drop/=127.0.0.1:" + drop.port() + ",/silent/=127.0.0.1:" + silent.port()
+                + ",/down/=127.0.0.1:" + down);
+        System.setProperty("jhttp.proxy.readTimeoutMillis", String.valueOf(READ_TIMEOUT_MILLIS));
+        System.setProperty("jhttp.proxy.maxFails", String.valueOf(MAX_FAILS));
+        System.setProperty("jhttp.proxy.ejectMillis", "60000");
+        JHTTP server = startServer();
+        try {
+            // Sequential requests to a healthy backend reuse one connection
+            for (int i = 1; i <= 5; i++) {
+                Reply reply = get("/ok/page");
+                expect(reply.status == 200 && reply.body.equals("ok " + i), "pooled request " + i, reply);
+            }
+            expect(ok.connections.get() == 1, "one connection to the healthy backend", ok.connections.get() + " connections");
+            expect(metric("jhttp_proxy_connections_reused_total") >= 4, "reuse counted", metric("jhttp_proxy_connections_reused_total"));
+            System.out.println("ok: 5 requests over " + ok.connections.get() + " backend connection");
+
+            long failures = metric("jhttp_proxy_failures_total");
+
+            // A pooled connection the backend has closed is found before use and replaced
+            for (int i = 1; i <= 2; i++) {
+                Reply reply = get("/idle-close/page");
+                expect(reply.status == 200, "request " + i + " to a backend closing idle connections", reply);
+                Thread.sleep(50);
+            }
+            expect(idleClose.connections.get() == 2, "a fresh connection after the idle close", idleClose.connections.get() + " connections");
+            System.out.println("ok: idle connection closed by the backend was replaced");
+
+            // A pooled connection that breaks once the request is on it is retried on a fresh one
+            for (int i = 1; i <= 2; i++) {
+                Reply reply = get("/drop/page");
+                expect(reply.status == 200, "request " + i + " to a backend dropping pooled connections", reply);
+            }
+            expect(drop.connections.get() == 2 && drop.answered.get() == 2, "retry on a fresh connection",
+                    drop.connections.get() + " connections, " + drop.answered.get() + " answered");
+            expect(metric("jhttp_proxy_failures_total") == failures, "closed pooled connections not counted as failures",
+                    metric("jhttp_proxy_failures_total") - failures + " failures");
+            System.out.println("ok: request retried after a pooled connection was dropped");
+
+            // A backend that never answers times out until it is ejected, then is not tried at all
+            for (int i = 1; i <= MAX_FAILS; i++) {
+                long start = System.nanoTime();
+                Reply reply = get("/silent/page");
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                expect(reply.status == 504 && millis >= READ_TIMEOUT_MILLIS, "timeout " + i, reply + " after " + millis + " ms");
+            }
+            int tried = silent.connections.get();
+            Reply ejected = get("/silent/page");
+            expect(ejected.status == 503 && ejected.headers.containsKey("retry-after"), "503 with Retry-After once ejected", ejected);
+            expect(silent.connections.get() == tried, "ejected backend left alone", silent.connections.get() + " connections");
+            expect(metric("jhttp_proxy_ejections_total") == 1, "one ejection", metric("jhttp_proxy_ejections_total"));
+            expect(metric("jhttp_proxy_ejected_backends") == 1, "one backend left out", metric("jhttp_proxy_ejected_backends"));
+            System.out.println("ok: " + MAX_FAILS + " timeouts answered 504, then 503 with Retry-After: "
+                    + ejected.headers.get("retry-after"));
+
+            // Nothing listening
+            Reply refused = get("/down/page");
+            expect(refused.status == 502, "502 for an unreachable backend", refused);
+            System.out.println("ok: unreachable backend answered 502");
+        } finally {
+            server.stop();
+            ok.close();
+            idleClose.close();
+            drop.close();
+            silent.close();
+        }
+    }
+
+    // A backend on a loopback port that answers GET requests with keep-alive, misbehaving according to its mode:
+    // "ok" behaves, "idle-close" closes each connection right after answering, "drop" closes a connection without
+    // answering when a second request arrives on it, and "silent" reads requests but never answers
+    private static final class StandIn implements Closeable {
+        final String mode;
+        final ServerSocket server = new ServerSocket(0);
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger answered = new AtomicInteger();
+
+        StandIn(String mode) throws IOException {
+            this.mode = mode;
+            Thread thread = new Thread(this::accept, "stand-in-" + mode);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(() -> serve(socket), "stand-in-" + mode + "-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                int served = 0;
+                while (readHead(in)) {
+                    if ("silent".equals(mode)) {
+                        // Hold the connection open until the proxy gives up on it
+                        while (in.read() >= 0) {
+                            // Discard
+                        }
+                        return;
+                    }
+                    if ("drop".equals(mode) && served > 0) return;
+                    served++;
+                    answered.incrementAndGet();
+                    byte[] body = (mode + " " + answered.get()).getBytes(StandardCharsets.US_ASCII);
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length
+                            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                    if ("idle-close".equals(mode)) return;
+                }
+            } catch (IOException ex) {
+                // The proxy closed the connection
+            }
+        }
+
+        // Reads a request head; returns false at end of stream
+        private static boolean readHead(InputStream in) throws IOException {
+            String line;
+            boolean any = false;
+            while ((line = readLine(in)) != null) {
+                if (line.isEmpty()) {
+                    if (any) return true;
+                    continue;
+                }
+                any = true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    // Status, lower-case headers and body of a response
+    private static final class Reply {
+        int status;
+        final Map<String, String> headers = new HashMap<>();
+        String body;
+
+        @Override
+        public String toString() {
+            return status + " " + headers + " " + body;
+        }
+    }
+
+    // Sends a GET through the proxy on a new connection and reads the whole response
+    private static Reply get(String path) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            Reply reply = new Reply();
+            String statusLine = readLine(in);
+            if (statusLine == null) throw new EOFException("No response to " + path);
+            reply.status = Integer.parseInt(statusLine.split(" ")[1]);
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                reply.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+            reply.body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return reply;
+        }
+    }
+
+    // Reads the value of an unlabelled metric from the metrics page
+    private static long metric(String name) throws IOException {
+        for (String line : get(Metrics.PATH).body.split("\n")) {
+            if (line.startsWith(name + " ")) return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+        }
+        throw new AssertionError("No metric " + name);
+    }
+
+    // Reads a line ending in LF, without the line end; returns null at end of stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') line.append((char) c);
+        }
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+    private static void expect(boolean condition, String what, Object actual) {
+        if (!condition) throw new AssertionError(what + ": got " + actual);
+    }
+
+    // Starts JHTTP headless in this JVM on a free port, serving an empty docroot, and waits until it accepts
+    private static JHTTP startServer() throws Exception {
+        Path docroot = Files.createTempDirectory("jhttp-proxy-check");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        System.setProperty("jhttp.mode", "pool");
+        System.setProperty("jhttp.headless", "true");
+        System.setProperty("jhttp.report.seconds", "0");
+        System.setProperty("jhttp.drain.millis", "0");
+        System.setProperty("jhttp.accessLog.file", docroot.resolve("access.log.txt").toString());
+        JHTTP server = new JHTTP(docroot.toFile(), port);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }, "check-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return server;
+            } catch (IOException ex) {
+                if (System.nanoTime() > deadline) throw new IOException("JHTTP did not start on port " + port, ex);
+                Thread.sleep(50);
+            }
+        }
+    }
+}
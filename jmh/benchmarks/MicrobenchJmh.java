@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+// The Microbench cases as JMH benchmarks, with the same names once underscores are read as dots and the same
+// warmup and iterations; the threaded ones run a thread per core. The server and Microbench live in the default
+// package, which JMH does not accept and a named package cannot import, so the cases are looked up once per fork by
+// reflection and each call goes through a LongSupplier. Every benchmark only ever sees one implementation of it, so
+// the JIT inlines the call.
+//
+// Run from the project directory:
+//   gradle jmh
+//   gradle jmh -Pjmh.args='cache_get -prof gc'
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MicrobenchJmh {
+
+    // The cases, and the docroot and cache behind them, built once per fork
+    @State(Scope.Benchmark)
+    public static class Cases {
+        Map<String, Callable<LongSupplier>> byName;
+
+        @Setup(Level.Trial)
+        @SuppressWarnings("unchecked")
+        public void setUp() throws Exception {
+            byName = (Map<String, Callable<LongSupplier>>) Class.forName("Microbench").getMethod("cases").invoke(null);
+        }
+    }
+
+    // One thread's operation for the case the running benchmark method is named after
+    @State(Scope.Thread)
+    public static class Operation {
+        LongSupplier operation;
+
+        @Setup(Level.Trial)
+        public void setUp(Cases cases, BenchmarkParams params) throws Exception {
+            String method = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1);
+            Callable<LongSupplier> setup = cases.byName.get(method.replace('_', '.'));
+            if (setup == null) throw new IllegalStateException("No Microbench case for " + method);
+            operation = setup.call();
+        }
+    }
+
+    @Benchmark
+    public long parse_request(Operation op) {
+        return op.operation.getAsLong();
+    }
+
+    @Benchmark
+    public long headers_encode(Operation op) {
+        return op.operation.getAsLong();
+    }
+
+    @Benchmark
+    public long cache_get(Operation op) {
+        return op.operation.getAsLong();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long cache_get_threads(Operation op) {
+        return op.operation.getAsLong();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long cache_get_hotKey_threads(Operation op) {
+        return op.operation.getAsLong();
+    }
+
+    // One call serves Microbench.PIPELINED requests
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public long serve_small_pipelined(Operation op) {
+        return op.operation.getAsLong();
+    }
+
+    @Benchmark
+    public long serve_large(Operation op) {
+        return op.operation.getAsLong();
+    }
+}